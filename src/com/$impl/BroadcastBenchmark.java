@@ -0,0 +1,154 @@
+package com.$impl;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sunflow.client.Client;
+import com.sunflow.common.Connection;
+import com.sunflow.common.ContextType;
+import com.sunflow.message.MessageBuffer;
+import com.sunflow.server.Server;
+import com.sunflow.server.WorkerSelection;
+import com.sunflow.util.Logger;
+
+/**
+ * Measures how long broadcasting a message to all clients takes depending on the
+ * amount of clients, {@link Server#messageAllClients(MessageBuffer)} on the calling
+ * thread next to {@link Server#messageAllClientsParallel(MessageBuffer, Connection...)}.
+ * <p>
+ * "call" is how long the caller is blocked, "queued" until every client has the
+ * message queued and "delivered" until every client received it. For the serial
+ * broadcast the first two are the same.
+ * <p>
+ * Usage: BroadcastBenchmark [port] [broadcasts] [client counts...]
+ */
+public class BroadcastBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 53000;
+		int broadcasts = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+		List<Integer> counts = new ArrayList<>();
+		for (int i = 2; i < args.length; i++) counts.add(Integer.parseInt(args[i]));
+		if (counts.isEmpty()) {
+			counts.add(100);
+			counts.add(500);
+			counts.add(2000);
+		}
+
+		for (int clients : counts) new BroadcastBenchmark(new InetSocketAddress(PrivateInfo.localhostIP, port++), clients, broadcasts);
+
+		System.exit(0);
+	}
+
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+
+	private volatile boolean running = true;
+
+	public BroadcastBenchmark(SocketAddress endpoint, int clientCount, int broadcasts) throws Exception {
+		BroadcastServer server = new BroadcastServer();
+		server.setContextType(ContextType.Selector);
+		server.setWorkers(Runtime.getRuntime().availableProcessors(), WorkerSelection.RoundRobin);
+		server.create(endpoint);
+		server.start();
+		// The context only counts as running once its thread is up
+		while (!server.isRunning()) Thread.sleep(1);
+
+		Thread serverThread = new Thread(() -> {
+			while (server.isRunning()) server.update(true);
+		}, "BroadcastBenchmark-Server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		List<BroadcastClient> clients = new ArrayList<>();
+		for (int i = 0; i < clientCount; i++) {
+			BroadcastClient client = new BroadcastClient();
+			client.setContextType(ContextType.Selector);
+			client.connect(endpoint);
+			clients.add(client);
+		}
+
+		// The clients are drained in the background, so the broadcasts don't pile up
+		Thread clientThread = new Thread(() -> {
+			while (running) {
+				for (BroadcastClient client : clients) client.update();
+				Thread.yield();
+			}
+		}, "BroadcastBenchmark-Clients");
+		clientThread.setDaemon(true);
+		clientThread.start();
+
+		// Wait for the handshakes, anything sent before would fail the validation
+		long deadline = System.currentTimeMillis() + 30000;
+		while (accepted.get() < clientCount && System.currentTimeMillis() < deadline) Thread.sleep(1);
+
+		// The first rounds only warm up the JIT
+		for (int round = 0; round < 3; round++) {
+			boolean report = round == 2;
+			measure(server, "serial", false, clientCount, broadcasts, report);
+			measure(server, "parallel", true, clientCount, broadcasts, report);
+		}
+
+		running = false;
+		clientThread.join();
+		for (BroadcastClient client : clients) client.close();
+		server.close();
+	}
+
+	private void measure(BroadcastServer server, String name, boolean parallel, int clientCount, int broadcasts, boolean report) throws Exception {
+		long called = 0, queued = 0, delivered = 0, lost = 0;
+		for (int b = 0; b < broadcasts; b++) {
+			long expected = received.get() + clientCount;
+			MessageBuffer<CustomMsgTypes> msg = MessageBuffer.create(CustomMsgTypes.ServerMessage);
+			msg.writeVarLong(System.nanoTime());
+			long start = System.nanoTime();
+			if (parallel) {
+				CompletableFuture<Integer> done = server.messageAllClientsParallel(msg);
+				called += System.nanoTime() - start;
+				done.join();
+			} else {
+				server.messageAllClients(msg);
+				called += System.nanoTime() - start;
+			}
+			queued += System.nanoTime() - start;
+
+			// One broadcast at a time, so the latency isn't hidden behind the previous ones
+			long deadline = System.currentTimeMillis() + 10000;
+			while (received.get() < expected && System.currentTimeMillis() < deadline) Thread.yield();
+			delivered += System.nanoTime() - start;
+			lost += Math.max(0, expected - received.get());
+		}
+
+		if (report) Logger.info("BroadcastBenchmark", String.format("%-8s %6d clients, call %9.1f us, queued %9.1f us, delivered %9.1f us, %7.1f ns/client%s",
+				name, clientCount, called / 1e3 / broadcasts, queued / 1e3 / broadcasts, delivered / 1e3 / broadcasts,
+				(double) delivered / broadcasts / clientCount, lost > 0 ? ", lost: " + lost : ""));
+	}
+
+	class BroadcastServer extends Server<CustomMsgTypes> {
+
+		@Override
+		protected boolean onClientConnect(Connection<CustomMsgTypes> client, int clientID) {
+			MessageBuffer<CustomMsgTypes> msg = MessageBuffer.create(CustomMsgTypes.ServerAccept);
+			msg.writeVarInt(clientID);
+			client.send(msg);
+			return true;
+		}
+
+		@Override
+		protected void onMessage(Connection<CustomMsgTypes> client, MessageBuffer<CustomMsgTypes> msg) {}
+	}
+
+	class BroadcastClient extends Client<CustomMsgTypes> {
+
+		@Override
+		protected void onMessage(MessageBuffer<CustomMsgTypes> msg) {
+			if (msg.getID() == CustomMsgTypes.ServerAccept) accepted.incrementAndGet();
+			else if (msg.getID() == CustomMsgTypes.ServerMessage) received.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package com.$impl;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.sunflow.client.Client;
+import com.sunflow.common.Connection;
+import com.sunflow.common.ContextType;
+import com.sunflow.common.LoopbackAddress;
+import com.sunflow.common.LoopbackTransport;
+import com.sunflow.message.MessageBuffer;
+import com.sunflow.server.Server;
+import com.sunflow.util.Logger;
+import com.sunflow.util.UnixDomainSockets;
+
+/**
+ * Bounces {@link CustomMsgTypes#ServerPing} messages like {@link SimpleServer} does and
+ * compares the context types by throughput and the amount of threads they needed.
+ * <p>
+ * Usage: EchoBenchmark [port] [clients] [messages per client] [context types...]
+ * <p>
+ * The context type {@code Loopback} connects through the {@link LoopbackTransport}
+ * instead, which measures the message pipeline without TCP, {@code Unix} connects
+ * through a unix domain socket (Java 16+).
+ * <p>
+ * With {@code -DEchoBenchmark.pooled=true} all messages come from the pool, the garbage
+ * collections during the run show the difference.
+ */
+public class EchoBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 52000;
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int messages = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+		List<String> types = new ArrayList<>();
+		for (int i = 3; i < args.length; i++) types.add(args[i]);
+		if (types.isEmpty()) {
+			types.add(ContextType.Blocking.name());
+			types.add(ContextType.VirtualThread.name());
+		}
+
+		for (String type : types) {
+			if (type.equals("Loopback")) new EchoBenchmark(new LoopbackAddress("EchoBenchmark-" + port++), clients, messages, type, ContextType.Blocking);
+			else if (type.equals("Unix")) {
+				String path = System.getProperty("java.io.tmpdir") + "/EchoBenchmark-" + port++ + ".sock";
+				new EchoBenchmark(UnixDomainSockets.address(path), clients, messages, type, ContextType.Selector);
+			}
+			else new EchoBenchmark(new InetSocketAddress(PrivateInfo.localhostIP, port++), clients, messages, type, ContextType.valueOf(type));
+		}
+
+		System.exit(0);
+	}
+
+	private static final boolean pooled = Boolean.getBoolean("EchoBenchmark.pooled");
+
+	private static final Supplier<MessageBuffer<CustomMsgTypes>> messageFactory = pooled ? MessageBuffer::createPooled : MessageBuffer::new;
+
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+
+	public EchoBenchmark(SocketAddress endpoint, int clientCount, int messages, String name, ContextType type) throws InterruptedException {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+
+		EchoServer server = new EchoServer();
+		server.setContextType(type);
+		server.setReadLoop(type == ContextType.VirtualThread);
+		server.create(endpoint);
+		server.start();
+		// The context only counts as running once its thread is up
+		while (!server.isRunning()) Thread.sleep(1);
+
+		Thread serverThread = new Thread(() -> {
+			while (server.isRunning()) server.update(true);
+		}, "EchoBenchmark-Server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		List<EchoClient> clients = new ArrayList<>();
+		for (int i = 0; i < clientCount; i++) {
+			EchoClient client = new EchoClient();
+			client.setContextType(type);
+			client.setReadLoop(type == ContextType.VirtualThread);
+			client.connect(endpoint);
+			clients.add(client);
+		}
+
+		// Wait for the handshakes, anything sent before would fail the validation
+		long deadline = System.currentTimeMillis() + 10000;
+		while (accepted.get() < clientCount && System.currentTimeMillis() < deadline) {
+			for (EchoClient client : clients) client.update();
+			Thread.sleep(1);
+		}
+
+		long expected = (long) clientCount * messages;
+		long collections = collections();
+		long start = System.nanoTime();
+		for (int m = 0; m < messages; m++) {
+			for (EchoClient client : clients) {
+				MessageBuffer<CustomMsgTypes> msg = messageFactory.get().setID(CustomMsgTypes.ServerPing);
+				msg.writeVarLong(System.nanoTime());
+				client.send(msg);
+				// The connection holds its own reference until it's written
+				if (pooled) msg.release();
+			}
+		}
+
+		deadline = System.currentTimeMillis() + 60000;
+		while (received.get() < expected && System.currentTimeMillis() < deadline) {
+			for (EchoClient client : clients) client.update();
+			Thread.sleep(1);
+		}
+		long elapsed = System.nanoTime() - start;
+		collections = collections() - collections;
+
+		Logger.info("EchoBenchmark", String.format("%-14s %6d clients, %9d/%d echoes in %8.1f ms, %10.0f msg/s, peak threads: %d, GCs: %d%s",
+				name, clientCount, received.get(), expected, elapsed / 1e6, received.get() / (elapsed / 1e9), threads.getPeakThreadCount(),
+				collections, pooled ? " (pooled)" : ""));
+
+		for (EchoClient client : clients) client.close();
+		server.close();
+	}
+
+	/**
+	 * @return the garbage collections so far, of all collectors
+	 */
+	private static long collections() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) count += Math.max(0, gc.getCollectionCount());
+		return count;
+	}
+
+	class EchoServer extends Server<CustomMsgTypes> {
+
+		EchoServer() { super(EchoBenchmark.messageFactory); }
+
+		@Override
+		protected boolean onClientConnect(Connection<CustomMsgTypes> client, int clientID) {
+			MessageBuffer<CustomMsgTypes> msg = messageFactory.get().setID(CustomMsgTypes.ServerAccept);
+			msg.writeVarInt(clientID);
+			client.send(msg);
+			if (pooled) msg.release();
+			return true;
+		}
+
+		@Override
+		protected void onMessage(Connection<CustomMsgTypes> client, MessageBuffer<CustomMsgTypes> msg) {
+			// Simply bounce back to client
+			client.send(msg);
+		}
+	}
+
+	class EchoClient extends Client<CustomMsgTypes> {
+
+		EchoClient() { super(EchoBenchmark.messageFactory); }
+
+		@Override
+		protected void onMessage(MessageBuffer<CustomMsgTypes> msg) {
+			if (msg.getID() == CustomMsgTypes.ServerAccept) accepted.incrementAndGet();
+			else if (msg.getID() == CustomMsgTypes.ServerPing) received.incrementAndGet();
+		}
+	}
+}
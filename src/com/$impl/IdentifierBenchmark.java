@@ -0,0 +1,133 @@
+package com.$impl;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+import com.sunflow.message.FrameFormat;
+import com.sunflow.message.IIdentifier;
+import com.sunflow.message.IdentifierDictionary;
+import com.sunflow.message.IdentifierRegistry;
+import com.sunflow.message.MessageBuffer;
+import com.sunflow.message.MessageDecoder;
+import com.sunflow.message.PacketBuffer;
+import com.sunflow.util.Logger;
+
+/**
+ * Measures how long decoding a message takes depending on its id, an enum next to
+ * {@link IIdentifier}s created the different ways {@link IdentifierRegistry} knows of,
+ * and the reflective lookup of the constructor every message used to do.
+ * <p>
+ * Usage: IdentifierBenchmark [messages] [rounds]
+ */
+public class IdentifierBenchmark {
+
+	public static class Id implements IIdentifier {
+		private int value;
+
+		public Id() {}
+
+		public Id(int value) { this.value = value; }
+
+		@Override
+		public int size() { return Integer.BYTES; }
+
+		@Override
+		public void write(PacketBuffer buffer) { buffer.writeInt(value); }
+
+		@Override
+		public void read(PacketBuffer buffer) { value = buffer.readInt(); }
+
+		@Override
+		public boolean equals(Object obj) { return obj != null && obj.getClass() == getClass() && ((Id) obj).value == value; }
+
+		@Override
+		public int hashCode() { return value; }
+	}
+
+	/**
+	 * A separate class for every way of creating it, the registry holds one factory per class
+	 */
+	public static class ReflectionId extends Id {
+		public ReflectionId() {}
+
+		public ReflectionId(int value) { super(value); }
+	}
+
+	public static class ConstructorId extends Id {
+		public ConstructorId() {}
+
+		public ConstructorId(int value) { super(value); }
+	}
+
+	public static class SupplierId extends Id {
+		public SupplierId() {}
+
+		public SupplierId(int value) { super(value); }
+	}
+
+	public static class SharedId extends Id {
+		public SharedId() {}
+
+		public SharedId(int value) { super(value); }
+	}
+
+	public static void main(String[] args) throws IOException {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		IdentifierRegistry.register(ReflectionId.class, () -> reflect(ReflectionId.class));
+		IdentifierRegistry.register(SupplierId.class, () -> new SupplierId());
+		IdentifierRegistry.register(SharedId.class, () -> new SharedId(), true);
+
+		for (int round = 0; round < rounds; round++) {
+			// Only the last round is reported, the others warm up the JIT
+			boolean report = round == rounds - 1;
+			measure("enum", MessageBuffer.create(CustomMsgTypes.ServerPing), messages, report);
+			measure("reflection", MessageBuffer.create(new ReflectionId(1)), messages, report);
+			measure("constructor", MessageBuffer.create(new ConstructorId(1)), messages, report);
+			measure("supplier", MessageBuffer.create(new SupplierId(1)), messages, report);
+			measure("shared", MessageBuffer.create(new SharedId(1)), messages, report);
+		}
+	}
+
+	private static <T> void measure(String name, MessageBuffer<T> msg, int messages, boolean report) throws IOException {
+		msg.writeInt(42);
+		PacketBuffer frames = new PacketBuffer();
+		IdentifierDictionary identifiers = new IdentifierDictionary();
+		for (int i = 0; i < messages; i++) msg.writeFrame(frames, identifiers);
+
+		MessageDecoder<T> decoder = new MessageDecoder<>(MessageBuffer::new);
+		decoder.setFormat(FrameFormat.V2);
+		decoder.buffer().writeBytes(frames);
+
+		long start = System.nanoTime();
+		int decoded = decoder.decode(m -> {});
+		long elapsed = System.nanoTime() - start;
+		if (decoded != messages) throw new IllegalStateException("Decoded " + decoded + " of " + messages);
+		if (report) Logger.info("IdentifierBenchmark", String.format("%-12s %8d messages in %8.1f ms, %6.1f ns/msg",
+				name, messages, elapsed / 1e6, (double) elapsed / messages));
+	}
+
+	/**
+	 * What every {@link IIdentifier} message did before the constructors were cached
+	 */
+	private static <I extends IIdentifier> I reflect(Class<I> idClazz) {
+		try {
+			@SuppressWarnings("unchecked")
+			Constructor<I>[] ctors = (Constructor<I>[]) idClazz.getDeclaredConstructors();
+			Constructor<I> ctor = null;
+			int minLen = 1000;
+			for (int i = 0; i < ctors.length; i++) {
+				int len = ctors[i].getGenericParameterTypes().length;
+				if (len < minLen) {
+					minLen = len;
+					ctor = ctors[i];
+				}
+			}
+			return ctor.newInstance(new Object[minLen]);
+		} catch (IllegalArgumentException | InstantiationException | IllegalAccessException | InvocationTargetException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package com.$impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Supplier;
+
+import com.sunflow.common.Interface;
+import com.sunflow.util.IQueue;
+import com.sunflow.util.Logger;
+import com.sunflow.util.MPSCQueue;
+import com.sunflow.util.TSQueue;
+
+/**
+ * Measures how fast messages get through the incoming queue of an {@link Interface}
+ * while several connections add to it, the locking {@link TSQueue} next to the
+ * {@link MPSCQueue}. One consumer takes the elements out like
+ * {@link Interface#update(boolean)} does, sleeping whenever the queue is empty,
+ * either one by one or in batches with {@link IQueue#drainTo(java.util.Collection, int)}.
+ * <p>
+ * Usage: QueueBenchmark [elements per producer] [producer counts...]
+ */
+public class QueueBenchmark {
+
+	private static final Integer ELEMENT = 42;
+
+	private static final int BATCH = 256;
+
+	public static void main(String[] args) throws Exception {
+		int elements = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+		List<Integer> counts = new ArrayList<>();
+		for (int i = 1; i < args.length; i++) counts.add(Integer.parseInt(args[i]));
+		if (counts.isEmpty()) {
+			counts.add(1);
+			counts.add(4);
+			counts.add(16);
+		}
+
+		// The first rounds only warm up the JIT
+		for (int round = 0; round < 3; round++) {
+			boolean report = round == 2;
+			for (int producers : counts) {
+				measure("TSQueue", TSQueue::new, producers, elements, 0, report);
+				measure("TSQueue", TSQueue::new, producers, elements, BATCH, report);
+				measure("MPSCQueue", MPSCQueue::new, producers, elements, 0, report);
+				measure("MPSCQueue", MPSCQueue::new, producers, elements, BATCH, report);
+			}
+		}
+	}
+
+	private static void measure(String name, Supplier<IQueue<Integer>> factory, int producers, int elements, int batch, boolean report) throws Exception {
+		IQueue<Integer> queue = factory.get();
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int p = 0; p < producers; p++) {
+			Thread producer = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (int i = 0; i < elements; i++) queue.push_back(ELEMENT);
+			}, "QueueBenchmark-Producer-" + p);
+			producer.start();
+			threads.add(producer);
+		}
+
+		long total = (long) producers * elements;
+		List<Integer> drained = new ArrayList<>(batch);
+		long taken = 0, sleeps = 0;
+		long begin = System.nanoTime();
+		start.countDown();
+		while (taken < total) {
+			if (queue.empty()) {
+				queue.sleep();
+				sleeps++;
+			}
+			if (batch > 0) {
+				int count;
+				while ((count = queue.drainTo(drained, batch)) > 0) {
+					taken += count;
+					drained.clear();
+				}
+			} else while (queue.pop_front() != null) taken++;
+		}
+		long elapsed = System.nanoTime() - begin;
+		for (Thread producer : threads) producer.join();
+
+		if (report) Logger.info("QueueBenchmark", String.format("%-9s %-9s %2d producers, %8.1f ns/element, %6.2f M elements/s, %d sleeps",
+				name, batch > 0 ? "drainTo" : "pop_front", producers, (double) elapsed / total, total * 1e3 / elapsed, sleeps));
+	}
+}
@@ -0,0 +1,78 @@
+package com.$impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.sunflow.message.MessageBuffer;
+import com.sunflow.message.PacketBuffer;
+import com.sunflow.util.Logger;
+
+import io.netty.buffer.Unpooled;
+
+/**
+ * Measures how fast a large {@link CustomMsgTypes#ServerPingFull} message is taken in,
+ * once from a stream like the blocking contexts do and once from a channel, next to
+ * a plain array copy of the same size as the upper bound set by the memory bandwidth.
+ * <p>
+ * Usage: ReadBenchmark [message size in KB] [iterations]
+ */
+public class ReadBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int size = (args.length > 0 ? Integer.parseInt(args[0]) : 1024) * 1024;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+		MessageBuffer<CustomMsgTypes> msg = MessageBuffer.create(CustomMsgTypes.ServerPingFull);
+		for (int i = 0; i < size / Long.BYTES; i++) msg.writeLong(i);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		msg.write(out);
+		byte[] frame = out.toByteArray();
+
+		// A file stands in for the socket, after the first round it's served from the page cache
+		Path file = Files.createTempFile("ReadBenchmark", ".bin");
+		Files.write(file, frame);
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+		// Twice, the first round only warms up the JIT
+		for (int round = 0; round < 2; round++) {
+			boolean report = round == 1;
+			measure("array copy", frame.length, iterations, report, () -> {
+				byte[] copy = new byte[frame.length];
+				System.arraycopy(frame, 0, copy, 0, frame.length);
+			});
+			measure("message stream", frame.length, iterations, report, () -> {
+				MessageBuffer<CustomMsgTypes> in = new MessageBuffer<>();
+				in.readFrame(new ByteArrayInputStream(frame));
+			});
+			measure("packet stream", frame.length, iterations, report, () -> {
+				PacketBuffer in = new PacketBuffer(Unpooled.buffer(frame.length));
+				in.read(new ByteArrayInputStream(frame), frame.length);
+			});
+			measure("packet channel", frame.length, iterations, report, () -> {
+				PacketBuffer in = new PacketBuffer(Unpooled.directBuffer(frame.length));
+				in.read(channel.position(0), frame.length);
+				in.release();
+			});
+		}
+
+		channel.close();
+		Files.delete(file);
+	}
+
+	private static void measure(String name, int size, int iterations, boolean report, Task task) throws IOException {
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) task.run();
+		long elapsed = System.nanoTime() - start;
+		if (report) Logger.info("ReadBenchmark", String.format("%-14s %6d KB x %d in %8.1f ms, %8.1f MB/s",
+				name, size / 1024, iterations, elapsed / 1e6, (double) size * iterations / (1 << 20) / (elapsed / 1e9)));
+	}
+
+	private interface Task {
+		void run() throws IOException;
+	}
+}
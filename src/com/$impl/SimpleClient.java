@@ -2,6 +2,7 @@ package com.$impl;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.time.Duration;
 
 import com.sunflow.client.Client;
 import com.sunflow.message.MessageBuffer;
@@ -57,7 +58,8 @@ public class SimpleClient {
 			}
 
 			if (c.isConnected()) {
-				c.update();
+				// Waits for messages a while instead of spinning, the console is looked at in between
+				c.update(Duration.ofMillis(10));
 			} else {
 				Logger.info("Client", "Server Down");
 				bQuit = true;
@@ -0,0 +1,70 @@
+package com.$impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import com.sunflow.common.Interface;
+import com.sunflow.util.IQueue;
+import com.sunflow.util.Logger;
+import com.sunflow.util.MPSCQueue;
+import com.sunflow.util.WaitStrategy;
+
+/**
+ * Measures the {@link WaitStrategy wait strategies} an {@link Interface} can wait for messages
+ * with: how long after an element was added the waiting consumer takes it out, and how much
+ * CPU time the consumer burns meanwhile. A producer adds an element at a fixed interval,
+ * so the consumer waits on an empty queue between them.
+ * <p>
+ * Usage: WaitBenchmark [elements] [interval in microseconds]
+ */
+public class WaitBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int elements = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+		long interval = (args.length > 1 ? Long.parseLong(args[1]) : 100) * 1000;
+
+		Map<String, WaitStrategy> strategies = new LinkedHashMap<>();
+		strategies.put("busy spin", WaitStrategy.BUSY_SPIN);
+		strategies.put("spin, yield", WaitStrategy.spinThenYield(1000));
+		strategies.put("spin, park", WaitStrategy.spinThenPark(1000, 50_000));
+		strategies.put("blocking", WaitStrategy.BLOCKING);
+
+		// The first round only warms up the JIT
+		for (int round = 0; round < 2; round++) {
+			for (Map.Entry<String, WaitStrategy> strategy : strategies.entrySet())
+				measure(strategy.getKey(), strategy.getValue(), elements, interval, round == 1);
+		}
+	}
+
+	private static void measure(String name, WaitStrategy strategy, int elements, long interval, boolean report) throws Exception {
+		IQueue<Long> queue = new MPSCQueue<>();
+		Thread producer = new Thread(() -> {
+			for (int i = 0; i < elements; i++) {
+				LockSupport.parkNanos(interval);
+				queue.push_back(System.nanoTime());
+			}
+		}, "WaitBenchmark-Producer");
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long[] latencies = new long[elements];
+		long cpu = threads.getCurrentThreadCpuTime();
+		long begin = System.nanoTime();
+		producer.start();
+		for (int taken = 0; taken < elements;) {
+			strategy.await(queue, Long.MAX_VALUE);
+			Long added;
+			while ((added = queue.pop_front()) != null) latencies[taken++] = System.nanoTime() - added;
+		}
+		long elapsed = System.nanoTime() - begin;
+		cpu = threads.getCurrentThreadCpuTime() - cpu;
+		producer.join();
+
+		Arrays.sort(latencies);
+		if (report) Logger.info("WaitBenchmark", String.format("%-11s latency p50 %8.1f us, p99 %8.1f us, consumer CPU %5.1f %%",
+				name, latencies[elements / 2] / 1e3, latencies[elements * 99 / 100] / 1e3, cpu * 100.0 / elapsed));
+	}
+}
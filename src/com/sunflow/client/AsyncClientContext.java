@@ -0,0 +1,99 @@
+package com.sunflow.client;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import com.sunflow.common.AsyncContext;
+import com.sunflow.common.ISocket;
+import com.sunflow.util.Logger;
+import com.sunflow.util.Side;
+
+public class AsyncClientContext extends AsyncContext {
+
+	public AsyncClientContext() throws IOException { this(null); }
+
+	/**
+	 * A client only drives one connection, so a single completion thread is enough
+	 */
+	public AsyncClientContext(ThreadGroup clientThreadGroup) throws IOException { super(Side.Client, clientThreadGroup, 1); }
+
+	@Override
+	public void accept(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		throw new UnsupportedOperationException("accept can only be called from an ServerContext");
+	}
+
+	@Override
+	public void async_accept(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		throw new UnsupportedOperationException("async_accept can only be called from an ServerContext");
+	}
+
+	/**
+	 * Connects on the calling thread, giving up after 5 seconds
+	 */
+	@Override
+	public void connect(SocketAddress serverEndpoint,
+			Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		AsynchronousSocketChannel channel = null;
+		try {
+			// Create Channel
+			channel = AsynchronousSocketChannel.open(group);
+			// And try to connect to Server
+			channel.connect(serverEndpoint).get(5, TimeUnit.SECONDS);
+		} catch (IOException e) {
+			closeQuietly(channel);
+			errorConsumer.accept(e);
+			return;
+		} catch (ExecutionException | InterruptedException | TimeoutException e) {
+			closeQuietly(channel);
+			Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+			errorConsumer.accept(cause instanceof IOException ? (IOException) cause : new IOException(cause));
+			return;
+		}
+		socketConsumer.accept(wrap(channel));
+	}
+
+	@Override
+	public void async_connect(SocketAddress serverEndpoint,
+			Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		AsynchronousSocketChannel channel;
+		try {
+			channel = AsynchronousSocketChannel.open(group);
+		} catch (IOException e) {
+			errorConsumer.accept(e);
+			return;
+		}
+		channel.connect(serverEndpoint, null, new CompletionHandler<Void, Void>() {
+			@Override
+			public void completed(Void result, Void attachment) {
+				socketConsumer.accept(wrap(channel));
+			}
+
+			@Override
+			public void failed(Throwable error, Void attachment) {
+				closeQuietly(channel);
+				errorConsumer.accept(error instanceof IOException ? (IOException) error : new IOException(error));
+			}
+		});
+	}
+
+	private void closeQuietly(AsynchronousSocketChannel channel) {
+		if (channel == null) return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			Logger.error("AsyncClientContext", "Failed to close " + channel, e);
+		}
+	}
+
+	@Override
+	public void close() {
+		Logger.debug("AsyncClientContext", "close()");
+		super.close();
+	}
+}
@@ -1,18 +1,27 @@
 package com.sunflow.client;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 
 import com.sunflow.common.Connection;
+import com.sunflow.common.ContextType;
+import com.sunflow.common.HandshakeExtensions;
 import com.sunflow.common.Interface;
+import com.sunflow.common.LoopbackAddress;
+import com.sunflow.common.Transport;
+import com.sunflow.common.UnreliableChannel;
 import com.sunflow.error.ConnectingException;
 import com.sunflow.message.MessageBuffer;
 import com.sunflow.message.PacketBuffer;
+import com.sunflow.message.StreamChunk;
 import com.sunflow.util.Logger;
 import com.sunflow.util.Side;
-import com.sunflow.util.TSQueue;
+import com.sunflow.util.MPSCQueue;
 
 /**
  * @param <T>
@@ -35,12 +44,17 @@ public class Client<T> extends Interface<T> {
 	 */
 	protected Connection<T> m_connection;
 
+	/**
+	 * The datagram side channel, only open while the server accepted it
+	 */
+	protected UnreliableChannel m_unreliable;
+
 	public Client() { this(MessageBuffer::new); }
 
 	public Client(Supplier<MessageBuffer<T>> messageFactory) {
 		super(messageFactory);
 
-		this.m_qMessagesIn = new TSQueue<>();
+		this.m_qMessagesIn = new MPSCQueue<>();
 	}
 
 	/**
@@ -54,10 +68,25 @@ public class Client<T> extends Interface<T> {
 
 	public boolean connect(String host, int port) {
 		// Resolve hostname/ip-address into tangible physical address
-		InetSocketAddress serverEndpoint = new InetSocketAddress(host, port);
+		SocketAddress serverEndpoint = new InetSocketAddress(host, port);
 		return connect(serverEndpoint);
 	}
 
+	/**
+	 * Connect to server with the specified context type
+	 * 
+	 * @param host
+	 *            The hostname/ip-address of the server
+	 * @param port
+	 *            The port number of the server, between 0 and 65535
+	 * @param contextType
+	 *            the I/O model of the client
+	 */
+	public boolean connect(String host, int port, ContextType contextType) {
+		setContextType(contextType);
+		return connect(host, port);
+	}
+
 	/**
 	 * Connect to server
 	 * 
@@ -69,7 +98,7 @@ public class Client<T> extends Interface<T> {
 
 	public boolean connect(InetAddress host, int port) {
 		// Resolve hostname/ip-address into tangible physical address
-		InetSocketAddress serverEndpoint = new InetSocketAddress(host, port);
+		SocketAddress serverEndpoint = new InetSocketAddress(host, port);
 		return connect(serverEndpoint);
 	}
 
@@ -77,15 +106,39 @@ public class Client<T> extends Interface<T> {
 	 * Connect to server
 	 * 
 	 * @param endpoint
-	 *            InetSocketAddress of the server, between 0 and 65535
+	 *            InetSocketAddress of the server, between 0 and 65535, a unix domain socket
+	 *            address or the address of another {@link Transport}, like a {@link LoopbackAddress}
 	 */
-	public boolean connect(InetSocketAddress endpoint) {
+	public boolean connect(SocketAddress endpoint) {
 		Logger.info("CLIENT", "Connecting...");
 
 		threadGroup = new ThreadGroup(endpoint + "/Client-Thread-Group");
 
 		// Create the context
-		m_context = new ClientContext(threadGroup);
+		Transport transport = transportFor(endpoint);
+		try {
+			if (transport != null) m_context = transport.createClientContext(threadGroup);
+			else switch (contextTypeFor(endpoint)) {
+				case Selector:
+					m_context = new NioClientContext(threadGroup);
+					break;
+				case Asynchronous:
+					m_context = new AsyncClientContext(threadGroup);
+					break;
+				case VirtualThread:
+					m_context = new ClientContext(threadGroup);
+					m_context.setVirtualThreads(true);
+					break;
+				default:
+					m_context = new ClientContext(threadGroup);
+					break;
+			}
+		} catch (IOException e) {
+			Logger.error("CLIENT", new ConnectingException("", e));
+			return false;
+		}
+		m_context.setPoolSettings(poolSettings);
+		m_context.setReadLoop(readLoop);
 
 		AtomicBoolean connectionSucess = new AtomicBoolean();
 		m_context.connect(endpoint, socket -> {
@@ -93,7 +146,7 @@ public class Client<T> extends Interface<T> {
 //			SocketAddress clientEndpoint = socket.getLocalSocketAddress();
 			Logger.info("CLIENT", "Succesfully conntected to (" + endpoint + ")");
 			m_connection = new Connection<>(Side.Client, m_context, socket, m_qMessagesIn, messageFactory);
-			m_connection.connectToServer();
+			m_connection.connectToServer(this);
 		}, error -> Logger.error("CLIENT", new ConnectingException("", error)));
 
 		// Start Context Thread
@@ -118,6 +171,8 @@ public class Client<T> extends Interface<T> {
 			m_connection.disconnect();
 		}
 
+		closeUnreliable();
+
 		// Either way we're also done with the thread, we stop it...
 		m_context.stop();
 
@@ -151,6 +206,88 @@ public class Client<T> extends Interface<T> {
 		if (isConnected()) m_connection.send(msg);
 	}
 
+	/**
+	 * Send a message whose data is read from the source while it's written
+	 * 
+	 * @param id
+	 *            The id every chunk carries
+	 * @param source
+	 *            Where the data is read from, closed once it's sent
+	 * @see Connection#sendStream(Object, InputStream)
+	 */
+	public void sendStream(T id, InputStream source) {
+		if (isConnected()) m_connection.sendStream(id, source);
+		else {
+			try {
+				source.close();
+			} catch (IOException e) {
+				Logger.error("CLIENT", "Failed to close the source of a stream", e);
+			}
+		}
+	}
+
+	/**
+	 * Send a message over the datagram side channel, it might get lost or overtake other messages
+	 * 
+	 * @param msg
+	 *            The message
+	 * @see Connection#sendUnreliable(PacketBuffer)
+	 */
+	public void sendUnreliable(PacketBuffer msg) {
+		if (isConnected()) m_connection.sendUnreliable(msg);
+	}
+
+	@Override
+	protected void writeExtensions(Connection<T> server, HandshakeExtensions extensions) {
+		super.writeExtensions(server, extensions);
+		// Datagrams need an ip address, other transports go without a side channel
+		if (!unreliable || !(server.getRemoteAddress() instanceof InetSocketAddress)) return;
+		try {
+			m_unreliable = UnreliableChannel.open(Side.Client, threadGroup, new InetSocketAddress(0));
+			PacketBuffer offer = new PacketBuffer();
+			offer.writeVarInt(((InetSocketAddress) m_unreliable.getLocalAddress()).getPort());
+			extensions.put(HandshakeExtensions.UNRELIABLE, offer);
+		} catch (IOException e) {
+			Logger.error("CLIENT", "Couldn't open the unreliable channel, sending everything reliable", e);
+			closeUnreliable();
+		}
+	}
+
+	@Override
+	protected void onExtensions(Connection<T> server, HandshakeExtensions remote) {
+		super.onExtensions(server, remote);
+		if (m_unreliable == null) return;
+		PacketBuffer answer = remote.get(HandshakeExtensions.UNRELIABLE);
+		// The server doesn't want it
+		if (answer == null) {
+			closeUnreliable();
+			return;
+		}
+
+		InetSocketAddress address = new InetSocketAddress(((InetSocketAddress) server.getRemoteAddress()).getAddress(), answer.readVarInt());
+		UnreliableChannel.Peer peer = m_unreliable.register(answer.readInt(), address, server::receiveUnreliable);
+		// The channel is only used by this connection, its token can't be taken
+		if (peer == null) throw new IllegalStateException("The token of the unreliable channel is taken");
+		try {
+			// Let the server know where our datagrams come from
+			peer.sendHello();
+			server.setUnreliable(peer);
+		} catch (IOException e) {
+			Logger.error("CLIENT", "Couldn't reach the unreliable channel of the server, sending everything reliable", e);
+			closeUnreliable();
+		}
+	}
+
+	private void closeUnreliable() {
+		if (m_unreliable == null) return;
+		try {
+			m_unreliable.close();
+		} catch (IOException e) {
+			Logger.error("CLIENT", "Failed to close the unreliable channel", e);
+		}
+		m_unreliable = null;
+	}
+
 	@Override
 	protected void onMessage(MessageBuffer.Owned<T> msg) {
 		onMessage(msg.getMessage());
@@ -164,4 +301,20 @@ public class Client<T> extends Interface<T> {
 	 */
 	protected void onMessage(MessageBuffer<T> msg) {}
 
+	@Override
+	protected void onChunk(MessageBuffer.Owned<T> chunk) {
+		onChunk((StreamChunk<T>) chunk.getMessage());
+	}
+
+	/**
+	 * Called when a chunk of a stream arrives, unless overridden the stream is dropped
+	 * 
+	 * @param chunk
+	 *            The chunk
+	 * @see #sendStream(Object, InputStream)
+	 */
+	protected void onChunk(StreamChunk<T> chunk) {
+		if (chunk.isFirst()) Logger.debug("CLIENT", "onChunk isn't overridden, dropped the stream of " + chunk);
+	}
+
 }
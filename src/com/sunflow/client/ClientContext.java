@@ -1,11 +1,13 @@
 package com.sunflow.client;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.util.function.Consumer;
 
+import com.sunflow.common.BlockingSocket;
 import com.sunflow.common.CommonContext;
+import com.sunflow.common.ISocket;
 import com.sunflow.util.Logger;
 import com.sunflow.util.Side;
 
@@ -18,18 +20,18 @@ public class ClientContext extends CommonContext {
 	public ClientContext(ThreadGroup clientThreadGroup) { super(Side.Client, clientThreadGroup); }
 
 	@Override
-	public void accept(Consumer<Socket> socketConsumer, Consumer<IOException> errorConsumer) {
+	public void accept(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
 		throw new UnsupportedOperationException("accept can only be called from an ServerContext");
 	}
 
 	@Override
-	public void async_accept(Consumer<Socket> socketConsumer, Consumer<IOException> errorConsumer) {
+	public void async_accept(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
 		throw new UnsupportedOperationException("async_accept can only be called from an ServerContext");
 	}
 
 	@Override
-	public void connect(InetSocketAddress serverEndpoint,
-			Consumer<Socket> socketConsumer, Consumer<IOException> errorConsumer) {
+	public void connect(SocketAddress serverEndpoint,
+			Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
 		task("clientcontext_connect", () -> {
 			// Create Socket
 			socket = new Socket();
@@ -39,19 +41,19 @@ public class ClientContext extends CommonContext {
 			socket.connect(serverEndpoint, 5000);
 //			System.out.println(socket.getReceiveBufferSize());
 //			System.out.println(socket.getSendBufferSize());
-			socketConsumer.accept(socket);
+			socketConsumer.accept(new BlockingSocket(socket));
 		}, errorConsumer);
 	}
 
 	@Override
-	public void async_connect(InetSocketAddress serverEndpoint,
-			Consumer<Socket> socketConsumer, Consumer<IOException> errorConsumer) {
+	public void async_connect(SocketAddress serverEndpoint,
+			Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
 		async_task("clientcontext_async_connect", () -> {
 			// Create Socket
 			socket = new Socket();
 			// And try to connect to Server
 			socket.connect(serverEndpoint, 5000);
-			socketConsumer.accept(socket);
+			socketConsumer.accept(new BlockingSocket(socket));
 		}, errorConsumer);
 	}
 
@@ -0,0 +1,57 @@
+package com.sunflow.client;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.function.Consumer;
+
+import com.sunflow.common.ISocket;
+import com.sunflow.common.LoopbackContext;
+import com.sunflow.common.LoopbackSocket;
+import com.sunflow.util.Logger;
+import com.sunflow.util.Side;
+
+public class LoopbackClientContext extends LoopbackContext {
+
+	public LoopbackClientContext() { this(null); }
+
+	public LoopbackClientContext(ThreadGroup clientThreadGroup) { super(Side.Client, clientThreadGroup); }
+
+	@Override
+	public void accept(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		throw new UnsupportedOperationException("accept can only be called from an ServerContext");
+	}
+
+	@Override
+	public void async_accept(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		throw new UnsupportedOperationException("async_accept can only be called from an ServerContext");
+	}
+
+	@Override
+	public void connect(SocketAddress serverEndpoint,
+			Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		LoopbackSocket socket;
+		try {
+			socket = connectTo(loopbackAddress(serverEndpoint));
+		} catch (IOException e) {
+			errorConsumer.accept(e);
+			return;
+		}
+		socketConsumer.accept(socket);
+	}
+
+	/**
+	 * Connecting never blocks, so this is the same as
+	 * {@link #connect(SocketAddress, Consumer, Consumer)}
+	 */
+	@Override
+	public void async_connect(SocketAddress serverEndpoint,
+			Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		connect(serverEndpoint, socketConsumer, errorConsumer);
+	}
+
+	@Override
+	public void close() {
+		Logger.debug("LoopbackClientContext", "close()");
+		super.close();
+	}
+}
@@ -0,0 +1,124 @@
+package com.sunflow.client;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.function.Consumer;
+
+import com.sunflow.common.ChannelSocket;
+import com.sunflow.common.ISocket;
+import com.sunflow.common.NioContext;
+import com.sunflow.util.Logger;
+import com.sunflow.util.Side;
+import com.sunflow.util.UnixDomainSockets;
+
+public class NioClientContext extends NioContext {
+
+	public NioClientContext() throws IOException { this(null); }
+
+	public NioClientContext(ThreadGroup clientThreadGroup) throws IOException { super(Side.Client, clientThreadGroup); }
+
+	@Override
+	public void accept(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		throw new UnsupportedOperationException("accept can only be called from an ServerContext");
+	}
+
+	@Override
+	public void async_accept(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		throw new UnsupportedOperationException("async_accept can only be called from an ServerContext");
+	}
+
+	/**
+	 * Connects on the calling thread, the channel is handed to the
+	 * event loop as soon as the first read or write is issued.
+	 * Unix domain endpoints connect without a timeout, as they
+	 * either exist locally or fail right away.
+	 */
+	@Override
+	public void connect(SocketAddress serverEndpoint,
+			Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		SocketChannel channel = null;
+		try {
+			// Create Channel
+			channel = open(serverEndpoint);
+			// And try to connect to Server, unix domain channels have no socket view
+			if (UnixDomainSockets.isUnixAddress(serverEndpoint)) channel.connect(serverEndpoint);
+			else channel.socket().connect(serverEndpoint, 5000);
+			channel.configureBlocking(false);
+		} catch (IOException e) {
+			closeQuietly(channel);
+			errorConsumer.accept(e);
+			return;
+		}
+		socketConsumer.accept(new ChannelSocket(channel));
+	}
+
+	@Override
+	public void async_connect(SocketAddress serverEndpoint,
+			Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		execute(() -> {
+			SocketChannel channel = null;
+			try {
+				channel = open(serverEndpoint);
+				channel.configureBlocking(false);
+				if (channel.connect(serverEndpoint)) {
+					register(channel);
+					socketConsumer.accept(new ChannelSocket(channel));
+				} else {
+					// Finish connecting once the selector tells us we can
+					channel.register(selector, SelectionKey.OP_CONNECT, new ConnectRequest(socketConsumer, errorConsumer));
+				}
+			} catch (IOException e) {
+				closeQuietly(channel);
+				errorConsumer.accept(e);
+			}
+		});
+	}
+
+	@Override
+	protected void processKey(SelectionKey key) {
+		if (!key.isConnectable()) return;
+
+		SocketChannel channel = (SocketChannel) key.channel();
+		ConnectRequest request = (ConnectRequest) key.attachment();
+		try {
+			channel.finishConnect();
+		} catch (IOException e) {
+			closeQuietly(channel);
+			request.errorConsumer.accept(e);
+			return;
+		}
+		attach(key);
+		request.socketConsumer.accept(new ChannelSocket(channel));
+	}
+
+	private static SocketChannel open(SocketAddress serverEndpoint) throws IOException {
+		return UnixDomainSockets.isUnixAddress(serverEndpoint) ? UnixDomainSockets.openSocketChannel() : SocketChannel.open();
+	}
+
+	private void closeQuietly(SocketChannel channel) {
+		if (channel == null) return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			Logger.error("NioClientContext", "Failed to close " + channel, e);
+		}
+	}
+
+	@Override
+	public void close() {
+		Logger.debug("NioClientContext", "close()");
+		super.close();
+	}
+
+	private static class ConnectRequest {
+		private final Consumer<ISocket> socketConsumer;
+		private final Consumer<IOException> errorConsumer;
+
+		private ConnectRequest(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+			this.socketConsumer = socketConsumer;
+			this.errorConsumer = errorConsumer;
+		}
+	}
+}
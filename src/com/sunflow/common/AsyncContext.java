@@ -0,0 +1,335 @@
+package com.sunflow.common;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.sunflow.message.PacketBuffer;
+import com.sunflow.util.Logger;
+import com.sunflow.util.Side;
+
+/**
+ * A context built on the NIO.2 {@link AsynchronousSocketChannel}s.
+ * <p>
+ * Reads and writes are handed to the operating system and complete on the small,
+ * fixed pool of the {@link AsynchronousChannelGroup}, which is shared by all
+ * channels of this context. No thread ever blocks on a socket.
+ */
+public abstract class AsyncContext extends CommonContext {
+
+	/**
+	 * Maximum amount of bytes pulled from a channel per read
+	 */
+	private static final int READ_CHUNK = 64 * 1024;
+
+	protected final AsynchronousChannelGroup group;
+
+	public AsyncContext(Side side, ThreadGroup threadGroup) throws IOException {
+		this(side, threadGroup, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param ioThreads
+	 *            size of the pool the completion handlers run on
+	 */
+	public AsyncContext(Side side, ThreadGroup threadGroup, int ioThreads) throws IOException {
+		super(side, threadGroup);
+		AtomicInteger threadId = new AtomicInteger();
+		this.group = AsynchronousChannelGroup.withFixedThreadPool(ioThreads,
+				task -> new Thread(threadGroup, contextThread(task), side + "_context_io::" + threadId.getAndIncrement()));
+	}
+
+	protected AsyncSocket wrap(AsynchronousSocketChannel channel) { return new AsyncSocket(channel, READ_CHUNK); }
+
+	private AsyncSocket asyncSocket(ISocket socket) {
+		if (socket instanceof AsyncSocket) return (AsyncSocket) socket;
+		throw new IllegalArgumentException(socket + " can't be used by the " + getClass().getSimpleName());
+	}
+
+	/**
+	 * Writes never block, so this is the same as
+	 * {@link #async_write(ISocket, PacketBuffer, Consumer, Consumer)}
+	 */
+	@Override
+	public void write(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> successConsumer, Consumer<Exception> errorConsumer) {
+		async_write(socket, buffer, successConsumer, errorConsumer);
+	}
+
+	@Override
+	public void async_write(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> successConsumer, Consumer<Exception> errorConsumer) {
+		AsyncSocket state;
+		WriteRequest request;
+		try {
+			state = asyncSocket(socket);
+			request = WriteRequest.encode(buffer, successConsumer, errorConsumer);
+		} catch (IOException | RuntimeException e) {
+			errorConsumer.accept(e);
+			return;
+		}
+
+		synchronized (state) {
+			state.writes.offerLast(request);
+			// The channel allows only one write at a time, the running one picks this up once it's done
+			if (state.writing) return;
+			state.writing = true;
+		}
+		startWrite(state, request);
+	}
+
+	private void startWrite(AsyncSocket state, WriteRequest request) {
+		try {
+			state.channel().write(request.data, 0, request.data.length, 0L, TimeUnit.MILLISECONDS, request, writeHandler(state));
+		} catch (RuntimeException e) {
+			failSocket(state, e);
+		}
+	}
+
+	private CompletionHandler<Long, WriteRequest> writeHandler(AsyncSocket state) {
+		return new CompletionHandler<Long, WriteRequest>() {
+			@Override
+			public void completed(Long wroteBytes, WriteRequest request) {
+				// The socket buffer was full, write the rest
+				if (request.hasRemaining()) {
+					startWrite(state, request);
+					return;
+				}
+
+				WriteRequest next;
+				synchronized (state) {
+					state.writes.pollFirst();
+					next = state.writes.peekFirst();
+					if (next == null) state.writing = false;
+				}
+				request.successConsumer.accept(request.size);
+				if (next != null) startWrite(state, next);
+			}
+
+			@Override
+			public void failed(Throwable error, WriteRequest request) {
+				failSocket(state, asException(error));
+			}
+		};
+	}
+
+	/**
+	 * Reads never block, so this is the same as
+	 * {@link #async_read(ISocket, PacketBuffer, Consumer, Consumer)}
+	 */
+	@Override
+	public void read(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> messageConsumer, Consumer<Exception> errorConsumer) {
+		async_read(socket, buffer, messageConsumer, errorConsumer);
+	}
+
+	@Override
+	public void async_read(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> messageConsumer, Consumer<Exception> errorConsumer) {
+		queueRead(socket, new ReadRequest(buffer, ReadRequest.FRAME, messageConsumer, errorConsumer));
+	}
+
+	/**
+	 * Reads never block, so this is the same as
+	 * {@link #async_read(ISocket, PacketBuffer, int, Consumer, Consumer)}
+	 */
+	@Override
+	public void read(ISocket socket, PacketBuffer buffer, int size,
+			Consumer<Integer> messageConsumer, Consumer<Exception> errorConsumer) {
+		async_read(socket, buffer, size, messageConsumer, errorConsumer);
+	}
+
+	@Override
+	public void async_read(ISocket socket, PacketBuffer buffer, int size,
+			Consumer<Integer> messageConsumer, Consumer<Exception> errorConsumer) {
+		queueRead(socket, new ReadRequest(buffer, size, messageConsumer, errorConsumer));
+	}
+
+	/**
+	 * Reads never block, so this is the same as
+	 * {@link #async_readAvailable(ISocket, PacketBuffer, Consumer, Consumer)}
+	 */
+	@Override
+	public void readAvailable(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> readConsumer, Consumer<Exception> errorConsumer) {
+		async_readAvailable(socket, buffer, readConsumer, errorConsumer);
+	}
+
+	@Override
+	public void async_readAvailable(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> readConsumer, Consumer<Exception> errorConsumer) {
+		queueRead(socket, new ReadRequest(buffer, ReadRequest.AVAILABLE, readConsumer, errorConsumer));
+	}
+
+	/**
+	 * Reads complete on the shared channel group, a read loop waiting there for a suspended
+	 * connection would take a thread the other connections need, so they issue single reads
+	 */
+	@Override
+	public boolean usesReadLoop() { return false; }
+
+	/**
+	 * Every read completes on the channel group anyway, so this simply
+	 * issues the next read once something arrived
+	 */
+	@Override
+	public void async_readLoop(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> readConsumer, Consumer<Exception> errorConsumer) {
+		async_readAvailable(socket, buffer, readBytes -> {
+			readConsumer.accept(readBytes);
+			async_readLoop(socket, buffer, readConsumer, errorConsumer);
+		}, errorConsumer);
+	}
+
+	private void queueRead(ISocket socket, ReadRequest request) {
+		AsyncSocket state;
+		try {
+			state = asyncSocket(socket);
+		} catch (RuntimeException e) {
+			request.errorConsumer.accept(e);
+			return;
+		}
+		synchronized (state) {
+			state.reads.offerLast(request);
+		}
+		// There might be enough data buffered already
+		processReads(state);
+	}
+
+	/**
+	 * Serves the queued reads from the inbound bytes and
+	 * starts reading from the channel once they run out
+	 */
+	private void processReads(AsyncSocket state) {
+		while (true) {
+			ReadRequest request;
+			int readBytes;
+			Exception error = null;
+			boolean startRead = false;
+			synchronized (state) {
+				request = state.reads.peekFirst();
+				if (request == null) return;
+				try {
+					readBytes = request.tryRead(state.inbound);
+				} catch (IOException | RuntimeException e) {
+					readBytes = -1;
+					error = e;
+				}
+				if (error == null) {
+					if (readBytes >= 0) {
+						state.reads.pollFirst();
+						state.inbound.discardSomeReadBytes();
+					} else if (!state.reading) {
+						// Not enough data yet and no read in flight, so start one
+						state.reading = startRead = true;
+					} else return;
+				}
+			}
+
+			// Outside of the lock, the consumers usually queue the next read right away
+			if (error != null) {
+				failSocket(state, error);
+				return;
+			}
+			if (startRead) {
+				startRead(state, request);
+				return;
+			}
+			request.messageConsumer.accept(readBytes);
+		}
+	}
+
+	private void startRead(AsyncSocket state, ReadRequest request) {
+		ByteBuffer target = null;
+		// Nothing is buffered when a read taking whatever arrived has to wait, so it's filled straight away
+		if (request.size == ReadRequest.AVAILABLE) {
+			PacketBuffer buffer = request.buffer;
+			buffer.ensureWritable(state.readBuffer.capacity());
+			// Only a view on a single piece of memory writes through to the buffer
+			if (buffer.nioBufferCount() == 1) target = buffer.nioBuffer(buffer.writerIndex(), state.readBuffer.capacity());
+		}
+		state.directRead = target != null ? request : null;
+		if (target == null) {
+			state.readBuffer.clear();
+			target = state.readBuffer;
+		}
+		try {
+			state.channel().read(target, state, readHandler);
+		} catch (RuntimeException e) {
+			failSocket(state, e);
+		}
+	}
+
+	private final CompletionHandler<Integer, AsyncSocket> readHandler = new CompletionHandler<Integer, AsyncSocket>() {
+		@Override
+		public void completed(Integer readBytes, AsyncSocket state) {
+			if (readBytes < 0) {
+				failSocket(state, new SocketException("Connection closed"));
+				return;
+			}
+			ReadRequest direct;
+			synchronized (state) {
+				state.reading = false;
+				direct = state.directRead;
+				state.directRead = null;
+				if (direct == null) {
+					state.readBuffer.flip();
+					state.inbound.writeBytes(state.readBuffer);
+				} else if (readBytes > 0 && state.reads.peekFirst() == direct) {
+					direct.buffer.writerIndex(direct.buffer.writerIndex() + readBytes);
+					state.reads.pollFirst();
+				} else direct = null;
+			}
+			if (direct != null) direct.messageConsumer.accept(readBytes);
+			processReads(state);
+		}
+
+		@Override
+		public void failed(Throwable error, AsyncSocket state) {
+			failSocket(state, asException(error));
+		}
+	};
+
+	private void failSocket(AsyncSocket state, Exception error) {
+		try {
+			state.close();
+		} catch (IOException e) {
+			Logger.error("AsyncContext", "Failed to close " + state, e);
+		}
+		ReadRequest read;
+		WriteRequest write;
+		while (true) {
+			synchronized (state) {
+				read = state.reads.pollFirst();
+				write = state.writes.pollFirst();
+			}
+			if (read == null && write == null) break;
+			if (read != null) read.errorConsumer.accept(error);
+			if (write != null) write.errorConsumer.accept(error);
+		}
+	}
+
+	protected static Exception asException(Throwable error) {
+		return error instanceof Exception ? (Exception) error : new IOException(error);
+	}
+
+	@Override
+	public void run() {
+		super.run();
+
+		// Closes every channel of the group as well
+		try {
+			group.shutdownNow();
+			group.awaitTermination(300, TimeUnit.MILLISECONDS);
+		} catch (IOException | InterruptedException e) {
+			Logger.error(Thread.currentThread() + "AsyncContext", "Failed to shut down the channel group", e);
+		}
+		Logger.debug(Thread.currentThread() + "AsyncContext", "EXIT");
+	}
+}
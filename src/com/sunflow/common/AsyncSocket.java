@@ -0,0 +1,89 @@
+package com.sunflow.common;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import com.sunflow.message.PacketBuffer;
+
+/**
+ * An {@link AsynchronousSocketChannel}, driven by the completion handlers of an {@link AsyncContext}.
+ * <p>
+ * A channel only allows one outstanding read and one outstanding write,
+ * so the requests of the connection queue up here until it's their turn.
+ */
+public class AsyncSocket implements ISocket {
+
+	private final AsynchronousSocketChannel channel;
+
+	/**
+	 * Bytes that have been read from the channel but weren't requested yet
+	 */
+	final PacketBuffer inbound;
+
+	/**
+	 * Target of the read that is in flight
+	 */
+	final ByteBuffer readBuffer;
+
+	/**
+	 * The request the read in flight fills directly instead of the {@link #readBuffer},
+	 * {@code null} if there is none
+	 */
+	ReadRequest directRead;
+
+	final Deque<ReadRequest> reads;
+	final Deque<WriteRequest> writes;
+
+	boolean reading;
+	boolean writing;
+
+	public AsyncSocket(AsynchronousSocketChannel channel, int readBufferSize) {
+		this.channel = channel;
+		this.inbound = new PacketBuffer();
+		this.readBuffer = ByteBuffer.allocateDirect(readBufferSize);
+		this.reads = new ArrayDeque<>();
+		this.writes = new ArrayDeque<>();
+	}
+
+	public AsynchronousSocketChannel channel() { return channel; }
+
+	@Override
+	public boolean isConnected() {
+		try {
+			return channel.getRemoteAddress() != null;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public boolean isClosed() { return !channel.isOpen(); }
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		try {
+			return channel.getRemoteAddress();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		try {
+			return channel.getLocalAddress();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void close() throws IOException { channel.close(); }
+
+	@Override
+	public String toString() { return channel.toString(); }
+}
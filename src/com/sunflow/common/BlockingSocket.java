@@ -0,0 +1,41 @@
+package com.sunflow.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+
+/**
+ * A blocking {@link Socket}, read and written through its streams
+ */
+public class BlockingSocket implements ISocket {
+
+	private final Socket socket;
+
+	public BlockingSocket(Socket socket) { this.socket = socket; }
+
+	public Socket socket() { return socket; }
+
+	public InputStream getInputStream() throws IOException { return socket.getInputStream(); }
+
+	public OutputStream getOutputStream() throws IOException { return socket.getOutputStream(); }
+
+	@Override
+	public boolean isConnected() { return socket.isConnected(); }
+
+	@Override
+	public boolean isClosed() { return socket.isClosed(); }
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() { return socket.getRemoteSocketAddress(); }
+
+	@Override
+	public SocketAddress getLocalSocketAddress() { return socket.getLocalSocketAddress(); }
+
+	@Override
+	public void close() throws IOException { socket.close(); }
+
+	@Override
+	public String toString() { return socket.toString(); }
+}
@@ -0,0 +1,47 @@
+package com.sunflow.common;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A {@link SocketChannel}, driven by the selector of a {@link NioContext}
+ */
+public class ChannelSocket implements ISocket {
+
+	private final SocketChannel channel;
+
+	public ChannelSocket(SocketChannel channel) { this.channel = channel; }
+
+	public SocketChannel channel() { return channel; }
+
+	@Override
+	public boolean isConnected() { return channel.isConnected(); }
+
+	@Override
+	public boolean isClosed() { return !channel.isOpen(); }
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		try {
+			return channel.getRemoteAddress();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		try {
+			return channel.getLocalAddress();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void close() throws IOException { channel.close(); }
+
+	@Override
+	public String toString() { return channel.toString(); }
+}
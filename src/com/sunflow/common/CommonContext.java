@@ -4,69 +4,184 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
-import java.util.function.Predicate;
 
 import com.sunflow.message.PacketBuffer;
 import com.sunflow.util.Logger;
+import com.sunflow.util.PoolSettings;
 import com.sunflow.util.Side;
-import com.sunflow.util.TSQueue;
 import com.sunflow.util.Task;
+import com.sunflow.util.VirtualThreads;
 
 public abstract class CommonContext implements Runnable, Closeable {
 	private static int id = 0;
 
+	/**
+	 * Amount of bytes a read asks the stream for at least
+	 */
+	private static final int READ_CHUNK = 64 * 1024;
+
 	protected final Side side;
 	private final ThreadGroup threadGroup;
 
-	private boolean running = false;
+	/**
+	 * Set on every thread doing the work of a context, see {@link #inContextThread()}
+	 */
+	private static final ThreadLocal<Boolean> contextThread = new ThreadLocal<>();
+
+	protected volatile boolean running = false;
+
+	private PoolSettings poolSettings = PoolSettings.DEFAULT;
+
+	/**
+	 * Run every async task on its own virtual thread instead of the pool
+	 */
+	private boolean virtualThreads = false;
+
+	/**
+	 * Give every connection one long running task, that reads message after message,
+	 * instead of issuing a new async read for each message
+	 */
+	private boolean readLoop = false;
 
-	private TSQueue<Thread> taskThread_queue;
-	private TSQueueImpl<Thread> taskThreads;
+	/**
+	 * Worker pool all async tasks run on, created with the first task
+	 */
+	private ExecutorService taskPool;
 
 //	private InputStream input;
 //	private OutputStream output;
 //	private HashMap<Socket, InputStream> inputs = new HashMap<>();
 //	private HashMap<Socket, OutputStream> outputs = new HashMap<>();
 
-	private InputStream getInputStream(Socket socket) throws IOException {
-		return socket.getInputStream();
+	private InputStream getInputStream(ISocket socket) throws IOException {
+		return blocking(socket).getInputStream();
 //		if (!inputs.containsKey(socket)) {
 //			inputs.put(socket, socket.getInputStream());
 //		}
 //		return inputs.get(socket);
 	}
 
-	private OutputStream getOutputStream(Socket socket) throws IOException {
-		return socket.getOutputStream();
+	private OutputStream getOutputStream(ISocket socket) throws IOException {
+		return blocking(socket).getOutputStream();
 //		if (!outputs.containsKey(socket)) {
 //			outputs.put(socket, socket.getOutputStream());
 //		}
 //		return outputs.get(socket);
 	}
 
+	private BlockingSocket blocking(ISocket socket) {
+		if (socket instanceof BlockingSocket) return (BlockingSocket) socket;
+		throw new IllegalArgumentException(socket + " can't be used by the blocking " + getClass().getSimpleName());
+	}
+
 	public CommonContext(Side side) { this(side, null); }
 
 	public CommonContext(Side side, ThreadGroup threadGroup) {
 		this.side = side;
 		this.threadGroup = threadGroup;
-		this.taskThread_queue = new TSQueue<>();
-		this.taskThreads = new TSQueueImpl<>();
 	}
 
+	/**
+	 * Sets the limits of the worker pool, has to be called before the first async task
+	 */
+	public synchronized void setPoolSettings(PoolSettings poolSettings) {
+		if (taskPool != null) throw new IllegalStateException("The task pool of " + this + " is already running");
+		this.poolSettings = poolSettings;
+	}
+
+	/**
+	 * Runs every async task on its own virtual thread, which makes blocking I/O cheap
+	 * enough for one reading thread per connection even with lots of connections.
+	 * Falls back to the worker pool if the runtime doesn't support virtual threads.
+	 * Has to be called before the first async task.
+	 */
+	public synchronized void setVirtualThreads(boolean virtualThreads) {
+		if (taskPool != null) throw new IllegalStateException("The task pool of " + this + " is already running");
+		if (virtualThreads && !VirtualThreads.isSupported()) {
+			Logger.warn("CommonContext", "Virtual threads aren't supported by Java " + System.getProperty("java.version") + ", using the worker pool instead");
+			virtualThreads = false;
+		}
+		this.virtualThreads = virtualThreads;
+	}
+
+	public boolean usesVirtualThreads() { return virtualThreads; }
+
+	/**
+	 * @param readLoop
+	 *            if every connection should read all of its messages on one long running task
+	 */
+	public void setReadLoop(boolean readLoop) { this.readLoop = readLoop; }
+
+	public boolean usesReadLoop() { return readLoop; }
+
+	private synchronized ExecutorService taskPool() {
+		if (taskPool == null) {
+			if (virtualThreads) {
+				ThreadFactory factory = VirtualThreads.factory(side + "_context_vtask::");
+				taskPool = VirtualThreads.newExecutor(task -> factory.newThread(contextThread(task)));
+			} else {
+				AtomicInteger threadId = new AtomicInteger();
+				taskPool = poolSettings.createExecutor(task -> new Thread(threadGroup, contextThread(task), side + "_context_task::" + threadId.getAndIncrement()));
+			}
+		}
+		return taskPool;
+	}
+
+	public ThreadGroup getThreadGroup() { return threadGroup; }
+
+	/**
+	 * @return if the current thread is one of a context, those must never wait for
+	 *         what the context does, they are the ones doing it
+	 */
+	public boolean inContextThread() { return contextThread.get() != null; }
+
+	/**
+	 * Marks the current thread as one of a context for as long as it lives, whatever
+	 * its thread group is. Virtual threads all belong to the same group of the JDK.
+	 */
+	protected static void markContextThread() { contextThread.set(Boolean.TRUE); }
+
+	/**
+	 * @return the runnable of a new context thread, it marks the thread before it runs
+	 * @see #markContextThread()
+	 */
+	protected static Runnable contextThread(Runnable task) {
+		return () -> {
+			markContextThread();
+			task.run();
+		};
+	}
+
+	/**
+	 * @return the context driving the I/O of the specified socket, contexts spreading
+	 *         their connections over several loops return the one owning it
+	 */
+	public CommonContext contextOf(ISocket socket) { return this; }
+
 	public void post(String description, Runnable post) {
 		Logger.debug("CommonContext", "Run Task[" + description + "::" + id++ + "," + threadGroup.getName() + "]");
 		post.run();
 	}
 
+	/**
+	 * Runs the task on the worker pool
+	 * 
+	 * @throws RejectedExecutionException
+	 *             if the pool is saturated and rejects tasks with {@link PoolSettings.Rejection#Abort}
+	 */
 	public void async_post(String description, Runnable post) {
-		synchronized (this) {
-			Thread postThread = new Thread(threadGroup, post, description + "::" + id++);
-			taskThread_queue.push_back(postThread);
-			notify();
-		}
+		Logger.debug("CommonContext", "Queue Task[" + description + "::" + id++ + "]");
+		taskPool().execute(post);
 	}
 
 	public <T extends Exception> void task(String description, Task<T> task, Consumer<T> errorConsumer) {
@@ -82,101 +197,165 @@ public abstract class CommonContext implements Runnable, Closeable {
 	}
 
 	public <T extends Exception> void async_task(String description, Task<T> task, Consumer<T> errorConsumer) {
-		async_post(description, () -> {
-			try {
-				task.execute();
-			} catch (Exception e) {
-				@SuppressWarnings("unchecked")
-				T error = (T) e;
-				errorConsumer.accept(error);
-			}
-		});
+		try {
+			async_post(description, () -> {
+				try {
+					task.execute();
+				} catch (Exception e) {
+					@SuppressWarnings("unchecked")
+					T error = (T) e;
+					errorConsumer.accept(error);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			@SuppressWarnings("unchecked")
+			T error = (T) e;
+			errorConsumer.accept(error);
+		}
 	}
 
-	public abstract void accept(Consumer<Socket> socketConsumer, Consumer<IOException> errorConsumer);
-
-	public abstract void async_accept(Consumer<Socket> socketConsumer, Consumer<IOException> errorConsumer);
+	public abstract void accept(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer);
+
+	public abstract void async_accept(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer);
+
+	/**
+	 * Accepts connection after connection until accepting fails,
+	 * by default the next accept is issued once the consumer returned
+	 * 
+	 * @param socketConsumer
+	 *            called with every accepted socket, it doesn't have to ask for the next one
+	 * @param errorConsumer
+	 *            called once accepting failed, which ends the loop
+	 */
+	public void async_acceptLoop(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		async_accept(socket -> {
+			socketConsumer.accept(socket);
+			async_acceptLoop(socketConsumer, errorConsumer);
+		}, errorConsumer);
+	}
 
-	public abstract void connect(InetSocketAddress serverEndpoint, Consumer<Socket> socketConsumer, Consumer<IOException> errorConsumer);
+	public abstract void connect(SocketAddress serverEndpoint, Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer);
 
-	public abstract void async_connect(InetSocketAddress serverEndpoint, Consumer<Socket> socketConsumer, Consumer<IOException> errorConsumer);
+	public abstract void async_connect(SocketAddress serverEndpoint, Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer);
 
-	public void write(Socket socket, PacketBuffer buffer,
+	public void write(ISocket socket, PacketBuffer buffer,
 			Consumer<Integer> successConsumer, Consumer<Exception> errorConsumer) {
 		task(side + "_context_write", () -> {
-//			OutputStream out = getOutputStream(socket);
-			OutputStream out = socket.getOutputStream();
+			OutputStream out = getOutputStream(socket);
 			int wroteBytes = buffer.write(out);
 			successConsumer.accept(wroteBytes);
 		}, errorConsumer);
 	}
 
-	public void async_write(Socket socket, PacketBuffer buffer,
+	public void async_write(ISocket socket, PacketBuffer buffer,
 			Consumer<Integer> successConsumer, Consumer<Exception> errorConsumer) {
 		async_task(side + "_context_async_write", () -> {
-//			OutputStream out = getOutputStream(socket);
-			OutputStream out = socket.getOutputStream();
+			OutputStream out = getOutputStream(socket);
 			int wroteBytes = buffer.write(out);
 			successConsumer.accept(wroteBytes);
 		}, errorConsumer);
 	}
 
-	public void read(Socket socket, PacketBuffer buffer,
+	public void read(ISocket socket, PacketBuffer buffer,
 			Consumer<Integer> messageConsumer, Consumer<Exception> errorConsumer) {
 		task(side + "_context_read", () -> {
-//			InputStream in = getInputStream(socket);
-			InputStream in = socket.getInputStream();
+			InputStream in = getInputStream(socket);
 			int readBytes = buffer.read(in);
 			messageConsumer.accept(readBytes);
 		}, errorConsumer);
 	}
 
-	public void async_read(Socket socket, PacketBuffer buffer,
+	public void async_read(ISocket socket, PacketBuffer buffer,
 			Consumer<Integer> messageConsumer, Consumer<Exception> errorConsumer) {
 		async_task(side + "_context_async_read", () -> {
-//			InputStream in = getInputStream(socket);
-			InputStream in = socket.getInputStream();
+			InputStream in = getInputStream(socket);
 			int readBytes = buffer.read(in);
 			messageConsumer.accept(readBytes);
 		}, errorConsumer);
 	}
 
-	public void read(Socket socket, PacketBuffer buffer, int size,
+	public void read(ISocket socket, PacketBuffer buffer, int size,
 			Consumer<Integer> messageConsumer, Consumer<Exception> errorConsumer) {
 		task(side + "_context_read", () -> {
-//			InputStream in = getInputStream(socket);
-			InputStream in = socket.getInputStream();
+			InputStream in = getInputStream(socket);
 			int readBytes = buffer.read(in, size);
 			messageConsumer.accept(readBytes);
 		}, errorConsumer);
 	}
 
-	public void async_read(Socket socket, PacketBuffer buffer, int size,
+	public void async_read(ISocket socket, PacketBuffer buffer, int size,
 			Consumer<Integer> messageConsumer, Consumer<Exception> errorConsumer) {
 		async_task(side + "_context_async_read", () -> {
-//			InputStream in = getInputStream(socket);
-			InputStream in = socket.getInputStream();
+			InputStream in = getInputStream(socket);
 			int readBytes = buffer.read(in, size);
 			messageConsumer.accept(readBytes);
 		}, errorConsumer);
 	}
 
+	/**
+	 * Reads whatever arrived, blocking until at least one byte did
+	 * 
+	 * @param readConsumer
+	 *            called with the amount of bytes appended to the buffer
+	 */
+	public void readAvailable(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> readConsumer, Consumer<Exception> errorConsumer) {
+		task(side + "_context_read", () -> {
+			InputStream in = getInputStream(socket);
+			int readBytes = readAvailable(in, buffer);
+			readConsumer.accept(readBytes);
+		}, errorConsumer);
+	}
+
+	public void async_readAvailable(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> readConsumer, Consumer<Exception> errorConsumer) {
+		async_task(side + "_context_async_read", () -> {
+			InputStream in = getInputStream(socket);
+			int readBytes = readAvailable(in, buffer);
+			readConsumer.accept(readBytes);
+		}, errorConsumer);
+	}
+
+	/**
+	 * Reads again and again on one async task, appending whatever arrived
+	 * to the same buffer, until reading fails
+	 * 
+	 * @param buffer
+	 *            the buffer every read appends to, the consumer is expected to take the bytes out
+	 * @param readConsumer
+	 *            called with the amount of bytes appended by every read
+	 * @param errorConsumer
+	 *            called once reading failed, which ends the loop
+	 */
+	public void async_readLoop(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> readConsumer, Consumer<Exception> errorConsumer) {
+		async_task(side + "_context_async_readloop", () -> {
+			InputStream in = getInputStream(socket);
+			while (true) {
+				int readBytes = readAvailable(in, buffer);
+				readConsumer.accept(readBytes);
+			}
+		}, errorConsumer);
+	}
+
+	/**
+	 * One read call for as much as the stream has, so a single call
+	 * usually takes in several messages at once
+	 */
+	private static int readAvailable(InputStream in, PacketBuffer buffer) throws IOException {
+		int readBytes = buffer.writeBytes(in, Math.max(READ_CHUNK, in.available()));
+		if (readBytes < 0) throw new SocketException("Connection closed");
+		return readBytes;
+	}
+
 	@Override
 	public void run() {
+		markContextThread();
 		running = true;
-		Thread taskThread = null;
-		while (running) {
-			try {
-				synchronized (this) {
-					while ((taskThread = taskThread_queue.pop_front()) == null && running)
-						wait();
-					if (taskThread != null) {
-						taskThreads.tsremoveUnless(Thread::isAlive);
-						Logger.debug("CommonContext", "Start " + taskThread);
-						taskThread.start();
-						taskThreads.push_back(taskThread);
-					}
-				}
+		// All the work happens on the task pool, so just keep the context alive until it gets closed
+		synchronized (this) {
+			while (running) try {
+				wait();
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
@@ -188,21 +367,31 @@ public abstract class CommonContext implements Runnable, Closeable {
 	}
 
 	private void finishTasks() {
-		Logger.debug(Thread.currentThread() + "CommonContext", "Running TaskThreads: " + taskThreads.count());
-		taskThreads.tsforeach(Logger::info);
+		ExecutorService pool;
+		synchronized (this) {
+			pool = taskPool;
+		}
+		if (pool == null) return;
 
-		// The Context should close, so finish all running tasks
-		Logger.debug(Thread.currentThread() + "CommonContext", "Stop all running TaskThreads");
-		taskThreads.tsforeach(t -> {
-			try {
-				t.join(300);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+		if (pool instanceof ThreadPoolExecutor) {
+			ThreadPoolExecutor threadPool = (ThreadPoolExecutor) pool;
+			Logger.debug(Thread.currentThread() + "CommonContext", "Running Tasks: " + threadPool.getActiveCount() + ", Queued Tasks: " + threadPool.getQueue().size());
+		}
+
+		// The Context should close, so let the running tasks finish and accept no new ones
+		Logger.debug(Thread.currentThread() + "CommonContext", "Drain the task pool");
+		pool.shutdown();
+		try {
+			if (!pool.awaitTermination(300, TimeUnit.MILLISECONDS)) {
+				// Tasks blocked on a socket only return once it gets closed, so interrupt and leave them
+				List<Runnable> dropped = pool.shutdownNow();
+				Logger.debug(Thread.currentThread() + "CommonContext", "Dropped " + dropped.size() + " queued Tasks, the running ones got interrupted");
 			}
-		});
-		taskThreads.tsremoveUnless(Thread::isAlive);
-		Logger.debug(Thread.currentThread() + "CommonContext", "Stopped all running TaskThreads");
-		taskThreads.tsforeach(Logger::info);
+		} catch (InterruptedException e) {
+			Logger.error(Thread.currentThread() + "CommonContext", "Got interrupted while draining the task pool", e);
+			pool.shutdownNow();
+		}
+		Logger.debug(Thread.currentThread() + "CommonContext", "Drained the task pool");
 	}
 
 	public void stop() { close(); }
@@ -217,12 +406,4 @@ public abstract class CommonContext implements Runnable, Closeable {
 	}
 
 	public boolean isRunning() { return running; }
-
-	private class TSQueueImpl<T> extends TSQueue<T> {
-		protected void tsforeach(Consumer<T> action) { tsrunnable(() -> deqQueue.forEach(action)); }
-
-		protected void tsremoveIf(Predicate<T> filter) { tsrunnable(() -> deqQueue.removeIf(filter)); }
-
-		protected void tsremoveUnless(Predicate<T> filter) { tsremoveIf(filter.negate()); }
-	}
 }
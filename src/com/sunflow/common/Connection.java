@@ -1,26 +1,51 @@
 package com.sunflow.common;
 
-import java.net.Socket;
-import java.util.HashSet;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketAddress;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 
 import com.sunflow.error.DisconnectException;
 import com.sunflow.error.ReadMessageException;
+import com.sunflow.error.UnkownIdentifierException;
 import com.sunflow.error.ValidationException;
 import com.sunflow.error.WriteMessageException;
+import com.sunflow.message.BroadcastFrame;
+import com.sunflow.message.Codec;
+import com.sunflow.message.Codecs;
+import com.sunflow.message.FrameCompression;
+import com.sunflow.message.FrameFormat;
+import com.sunflow.message.IdentifierDictionary;
 import com.sunflow.message.MessageBuffer;
+import com.sunflow.message.MessageDecoder;
+import com.sunflow.message.MessageStream;
 import com.sunflow.message.PacketBuffer;
+import com.sunflow.message.StreamChunk;
 import com.sunflow.server.Server;
 import com.sunflow.util.Logger;
+import com.sunflow.util.IQueue;
+import com.sunflow.util.InboundLimits;
+import com.sunflow.util.MPSCQueue;
+import com.sunflow.util.OutboundLimits;
 import com.sunflow.util.Side;
-import com.sunflow.util.TSQueue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
 
 public class Connection<T> {
 
 	/**
 	 * Each connection has a unique socket to a remote
 	 */
-	protected Socket m_socket;
+	protected ISocket m_socket;
 
 	/**
 	 * This context is shared with the whole instance
@@ -29,19 +54,54 @@ public class Connection<T> {
 
 	/**
 	 * This queue holds all mesages to be sent to the remote side
-	 * of this connection
+	 * of this connection. Senders add without a lock, whatever takes
+	 * messages out (the writer, dropping the oldest, releasing on
+	 * disconnect) does so holding its monitor.
 	 */
-	protected TSQueue<PacketBuffer> m_qMessagesOut;
+	protected IQueue<PacketBuffer> m_qMessagesOut;
 
 	/**
 	 * This queue holds all messages that have been recieved from
 	 * the remote side of this connection. Note it is a reference
 	 * as the "owner" of this connection is expected to provide a queue
 	 */
-	protected TSQueue<MessageBuffer.Owned<T>> m_qMessagesIn;
+	protected IQueue<MessageBuffer.Owned<T>> m_qMessagesIn;
 
 	private Supplier<MessageBuffer<T>> messageFactory;
 
+	/**
+	 * Keeps the bytes that have been read, until they make up whole messages
+	 */
+	private final MessageDecoder<T> m_decoder;
+
+	/**
+	 * The layout messages are written in, both sides agree on it during the handshake
+	 */
+	private FrameFormat m_frameFormat = FrameFormat.V1;
+
+	/**
+	 * The id classes sent so far, for {@link FrameFormat#V2}
+	 */
+	private final IdentifierDictionary m_outboundIds = new IdentifierDictionary();
+
+	/**
+	 * If the other side takes {@link MessageStream}s in chunks, both sides agree on it during the handshake
+	 */
+	private boolean m_bStreams = false;
+
+	/**
+	 * The number the next stream written gets
+	 */
+	private int m_nNextStream = 0;
+
+	/**
+	 * Compresses frames of at least {@link #m_nCompressionThreshold} bytes,
+	 * if both sides agreed on a codec during the handshake
+	 */
+	private Codec m_compressor;
+	private int m_nCompressionThreshold = -1;
+	private int m_nCodec = -1;
+
 	/**
 	 * A connection is "owned" by either a server or a client, and its
 	 * behaviour is slightly different bewteen the two.
@@ -53,9 +113,109 @@ public class Connection<T> {
 	 */
 	protected int id = -1;
 
+	/**
+	 * Top byte of the challenge of servers that understand {@link HandshakeExtensions}.
+	 * Old clients simply scramble it like any other challenge.
+	 */
+	private static final long HANDSHAKE_MAGIC = 0x5AL << 56;
+	private static final long HANDSHAKE_MAGIC_MASK = 0xFFL << 56;
+
+	/**
+	 * Mixed into the answer of clients that send extensions,
+	 * so the server can tell them apart from old ones
+	 */
+	private static final long HANDSHAKE_EXTENDED = 0x0E0E0E0E5EC0DE00L;
+
 	private long m_nHandshakeOut = 0;
 	private long m_nHandshakeIn = 0;
 	private long m_nHandshakeCheck = 0;
+	private long m_nHandshakeCheckExtended = 0;
+
+	/**
+	 * The server or client owning this connection, it negotiates the handshake extensions
+	 */
+	private Interface<T> m_owner;
+
+	/**
+	 * The datagram side channel of this connection, if both sides agreed on one
+	 */
+	private volatile UnreliableChannel.Peer m_unreliable;
+
+	/**
+	 * If the handshake is done and messages may be written
+	 */
+	private volatile boolean m_bValidated = false;
+
+	/**
+	 * If a write is running, it takes care of the messages queued in the meantime.
+	 * Whoever sets it starts the next write.
+	 */
+	private final AtomicBoolean m_bWriting = new AtomicBoolean();
+
+	/**
+	 * The thread running {@link #writeMessages()} right now. Handlers it calls may send,
+	 * but it must never wait for room, it's the one that would make it.
+	 */
+	private volatile Thread m_writer;
+
+	/**
+	 * How many messages may wait to be written, and what happens to those that don't fit
+	 */
+	private volatile OutboundLimits m_limits = OutboundLimits.UNBOUNDED;
+
+	/**
+	 * Data and count of the messages sent but not taken for writing yet. Senders only
+	 * meet on the monitor of {@link #m_qMessagesOut} once they don't fit anymore.
+	 */
+	private final AtomicLong m_nQueuedBytes = new AtomicLong();
+	private final AtomicInteger m_nQueuedMessages = new AtomicInteger();
+
+	/**
+	 * Senders waiting for room with {@link OutboundLimits.Overflow#Block}
+	 */
+	private final AtomicInteger m_nBlockedSenders = new AtomicInteger();
+
+	/**
+	 * Cleared once the queued bytes exceed the high watermark, set again once they fell to the low one
+	 */
+	private final AtomicBoolean m_bWritable = new AtomicBoolean(true);
+
+	/**
+	 * How many received messages may wait to be handled before reading stops
+	 */
+	private InboundLimits m_inboundLimits = InboundLimits.UNBOUNDED;
+
+	/**
+	 * Data and count of the received messages that weren't handled yet
+	 */
+	private final AtomicLong m_nInboundBytes = new AtomicLong();
+	private final AtomicInteger m_nInboundMessages = new AtomicInteger();
+
+	/**
+	 * Set while the connection doesn't read, whoever clears it resumes reading
+	 */
+	private final AtomicBoolean m_bReadSuspended = new AtomicBoolean();
+
+	/**
+	 * If the last decode stopped at the limits with bytes left in the buffer,
+	 * only used by the task reading
+	 */
+	private boolean m_bDecodeStopped = false;
+
+	/**
+	 * Bytes of messages combined into one write, unless a single message is larger
+	 */
+	private static final int WRITE_BUDGET = 256 * 1024;
+
+	/**
+	 * Frames up to this size are copied together, larger ones are written from where they are
+	 */
+	private static final int COALESCE_THRESHOLD = 8 * 1024;
+
+	/**
+	 * Usual size of a header, to size the buffer small frames are copied into
+	 */
+	private static final int HEADER_ESTIMATE = 8;
 
 	/**
 	 * Specify Owner, connect to context, transfer the socket
@@ -67,24 +227,27 @@ public class Connection<T> {
 	 * @param socket
 	 * @param qIn
 	 */
-	public Connection(Side parent, CommonContext m_context, Socket socket, TSQueue<MessageBuffer.Owned<T>> qIn, Supplier<MessageBuffer<T>> messageFactory) {
+	public Connection(Side parent, CommonContext m_context, ISocket socket, IQueue<MessageBuffer.Owned<T>> qIn, Supplier<MessageBuffer<T>> messageFactory) {
 		this.m_context = m_context;
 		this.m_socket = socket;
 		this.m_qMessagesIn = qIn;
 
 		this.m_nOwnerType = parent;
 
-		this.m_qMessagesOut = new TSQueue<>();
+		this.m_qMessagesOut = new MPSCQueue<>();
 		this.messageFactory = messageFactory;
+		this.m_decoder = new MessageDecoder<>(messageFactory);
 
 		// Construct validation check data
 		if (m_nOwnerType == Side.Server) {
 			// Connection is Server -> Client, construct random data for the client
 			// to transform and send back for validation
-			m_nHandshakeOut = System.currentTimeMillis();
+			m_nHandshakeOut = System.currentTimeMillis() & ~HANDSHAKE_MAGIC_MASK | HANDSHAKE_MAGIC;
 
-			// Pre-calculate the result for checking when the client responds
+			// Pre-calculate the result for checking when the client responds,
+			// with and without extensions
 			m_nHandshakeCheck = scramble(m_nHandshakeOut);
+			m_nHandshakeCheckExtended = scramble(m_nHandshakeOut ^ HANDSHAKE_EXTENDED);
 		} else {
 			// Connection is Client -> Server, so we have nothing to define
 
@@ -105,6 +268,10 @@ public class Connection<T> {
 	public void connectToClient(Server<T> server, int uid) {
 		if (m_nOwnerType == Side.Server && isConnected()) {
 			id = uid;
+			m_owner = server;
+			m_limits = server.getOutboundLimits();
+			m_inboundLimits = server.getInboundLimits();
+			m_decoder.setMaxFrameSize(server.getMaxFrameSize());
 //			Was: readMessage();
 
 //			// A client has attempted to connect to the server, but we wish
@@ -121,12 +288,25 @@ public class Connection<T> {
 		}
 	}
 
+	/**
+	 * Connect to a server, without negotiating any handshake extensions
+	 */
+	public void connectToServer() { connectToServer(null); }
+
 	/**
 	 * Connect to a server
 	 * 
+	 * @param client
+	 *            the client negotiating the handshake extensions
 	 */
-	public void connectToServer() {
+	public void connectToServer(Interface<T> client) {
 		if (m_nOwnerType == Side.Client && isConnected()) {
+			m_owner = client;
+			if (client != null) {
+				m_limits = client.getOutboundLimits();
+				m_inboundLimits = client.getInboundLimits();
+				m_decoder.setMaxFrameSize(client.getMaxFrameSize());
+			}
 //			Was: readMessage();
 
 			// First thing server will do is send packet to be validated
@@ -142,93 +322,593 @@ public class Connection<T> {
 ////			m_context.stop();
 //		}, error -> Logger.error(m_nOwnerType + "-Connection", "(" + id + "): ", new DisconnectException("", error)));
 
-		if (!isConnected()) return;
+		UnreliableChannel.Peer unreliable = m_unreliable;
+		if (unreliable != null) unreliable.close();
+		// Nothing resumes reading anymore
+		if (m_owner != null) m_owner.readResumed(this);
+
+		if (!isConnected()) {
+			releaseMessagesOut();
+			closeCodecs();
+			return;
+		}
 		m_context.task(m_nOwnerType + "_connection_disconnect", () -> {
 			m_socket.close();
 //				m_context.stop();
+			releaseMessagesOut();
+			closeCodecs();
 		}, error -> Logger.error(m_nOwnerType + "-Connection", "(" + id + "): ", new DisconnectException("", error)));
 
 	}
 
+	/**
+	 * Gives up the messages that will never be written
+	 */
+	private void releaseMessagesOut() {
+		synchronized (m_qMessagesOut) {
+			PacketBuffer msg;
+			while ((msg = m_qMessagesOut.pop_front()) != null) {
+				dequeued(msg);
+				msg.release();
+			}
+			// Blocked senders give up once they see the connection closed
+			m_qMessagesOut.notifyAll();
+		}
+	}
+
+	/**
+	 * Frees the native state of the codecs, frames still being read or written fail
+	 */
+	private void closeCodecs() {
+		if (m_compressor != null) m_compressor.close();
+		if (m_decoder.getCodec() != null) m_decoder.getCodec().close();
+	}
+
 	public boolean isConnected() { return !m_socket.isClosed() && m_socket.isConnected(); }
 
+	/**
+	 * @return if this connection is owned by a server or a client
+	 */
+	public Side getSide() { return m_nOwnerType; }
+
+	/**
+	 * @return the context driving the I/O of this connection
+	 */
+	public CommonContext getContext() { return m_context; }
+
+	/**
+	 * Switches the layout of the messages in both directions, only
+	 * during the handshake, before the first message is sent or read
+	 */
+	public void setFrameFormat(FrameFormat frameFormat) {
+		this.m_frameFormat = frameFormat;
+		m_decoder.setFormat(frameFormat);
+	}
+
+	public FrameFormat getFrameFormat() { return m_frameFormat; }
+
+	/**
+	 * Lets {@link MessageStream}s go out in chunks, only during the handshake
+	 * once the other side agreed on it
+	 */
+	public void setStreams(boolean streams) { this.m_bStreams = streams; }
+
+	/**
+	 * @return if {@link MessageStream}s go out in chunks, otherwise as one message
+	 */
+	public boolean usesStreams() { return m_bStreams && m_frameFormat == FrameFormat.V2; }
+
+	/**
+	 * Compresses the frames in both directions, only during the handshake once
+	 * the other side agreed on the codec. Needs {@link FrameFormat#V2}.
+	 * 
+	 * @param codec
+	 *            the id of the {@link Codec} in {@link Codecs}
+	 * @param threshold
+	 *            the size from which on frames are sent compressed
+	 * @throws UnkownIdentifierException
+	 *             if the codec isn't known
+	 */
+	public void setCompression(int codec, int threshold) throws UnkownIdentifierException {
+		if (m_frameFormat != FrameFormat.V2) throw new IllegalStateException("Compression needs " + FrameFormat.V2 + ", not " + m_frameFormat);
+		// One instance per direction, reading and writing run on different threads
+		this.m_compressor = Codecs.create(codec);
+		m_decoder.setCodec(Codecs.create(codec));
+		this.m_nCompressionThreshold = threshold;
+		this.m_nCodec = codec;
+	}
+
+	/**
+	 * @return the id of the {@link Codec} frames are compressed with, -1 if they aren't
+	 */
+	public int getCodec() { return m_nCodec; }
+
+	public SocketAddress getRemoteAddress() { return m_socket.getRemoteSocketAddress(); }
+
+	/**
+	 * Attaches the datagram side channel both sides agreed on during the handshake
+	 */
+	public void setUnreliable(UnreliableChannel.Peer unreliable) { this.m_unreliable = unreliable; }
+
+	public UnreliableChannel.Peer getUnreliable() { return m_unreliable; }
+
+	/**
+	 * Limits the messages waiting to be written, replacing the limits of the server or client
+	 */
+	public void setOutboundLimits(OutboundLimits limits) {
+		synchronized (m_qMessagesOut) {
+			this.m_limits = limits;
+			m_qMessagesOut.notifyAll();
+		}
+	}
+
+	public OutboundLimits getOutboundLimits() { return m_limits; }
+
+	/**
+	 * @return if the queued bytes are below the high watermark, or fell to the low one since
+	 * @see Interface#onWritabilityChanged(Connection, boolean)
+	 */
+	public boolean isWritable() { return m_bWritable.get(); }
+
+	/**
+	 * Limits the received messages waiting to be handled, replacing the limits of the server or client
+	 */
+	public void setInboundLimits(InboundLimits limits) {
+		this.m_inboundLimits = limits;
+		tryResumeReading();
+	}
+
+	public InboundLimits getInboundLimits() { return m_inboundLimits; }
+
+	/**
+	 * @return if the connection stopped reading, because too many received messages wait to be handled
+	 */
+	public boolean isReadSuspended() { return m_bReadSuspended.get(); }
+
+	/**
+	 * @return the bytes of data sent but not written yet
+	 */
+	public long getQueuedBytes() { return m_nQueuedBytes.get(); }
+
+	/**
+	 * @return if messages sent with {@link #sendUnreliable(PacketBuffer)} go over the datagram side channel
+	 */
+	public boolean hasUnreliable() { return m_unreliable != null; }
+
+	/**
+	 * Send a message over the datagram side channel, it might get lost or overtake
+	 * other messages. Without a side channel, or if the message is too large for it,
+	 * the message is sent over the connection like any other.
+	 */
+	public void sendUnreliable(PacketBuffer msg) {
+		UnreliableChannel.Peer unreliable = m_unreliable;
+		if (unreliable == null || msg instanceof MessageStream) {
+			send(msg);
+			return;
+		}
+		try {
+			PacketBuffer frame = new PacketBuffer(msg.retainedFrame());
+			try {
+				if (frame.readableBytes() > UnreliableChannel.MAX_MESSAGE) send(msg);
+				else unreliable.send(frame);
+			} finally {
+				frame.release();
+			}
+		} catch (IOException e) {
+			// Lost like any other datagram, the connection itself is still fine
+			Logger.error(m_nOwnerType + "-Connection", "(" + id + "): Failed to send unreliable", e);
+		}
+	}
+
+	/**
+	 * Decodes a message that arrived over the datagram side channel
+	 */
+	public void receiveUnreliable(PacketBuffer frame) {
+		MessageBuffer<T> msg = messageFactory.get();
+		try {
+			msg.readFrame(new ByteBufInputStream(frame));
+		} catch (IOException e) {
+			Logger.error(m_nOwnerType + "-Connection", "(" + id + "): Dropped a broken unreliable message", e);
+			return;
+		}
+		// Datagrams can't be held back, so they are lost while the handlers are behind
+		if (m_bReadSuspended.get()) {
+			Logger.debug(m_nOwnerType + "-Connection", "(" + id + "): Reading is suspended, dropped unreliable " + msg);
+			return;
+		}
+		addToIncomingMessageQueue(msg);
+	}
+
 	/**
 	 * @ASYNC Send a message, connections are one-to-one so no need to specifiy
-	 *        the target, for a client, the target is the server and vice versa
+	 *        the target, for a client, the target is the server and vice versa.
+	 *        The connection holds a reference of its own until the message is
+	 *        written, so a {@link PacketBuffer#pooled() pooled} message can be
+	 *        released by the caller right away.
 	 */
 	public void send(PacketBuffer msg) {
 //		Logger.help("send:" + msg);
+		// Counted as queued from here on, the limits decide if it's sent at all
+		if (!admit(msg)) return;
+		msg.retain();
 		m_context.post(m_nOwnerType + "_connection_send", () -> {
 			/*
-			 * If the queue has a message in it, then we must
-			 * assume that it is in the process of asynchronously being written.
-			 * Either way add the message to the queue to be output. If no messages
-			 * were available to be written, then start the process of writing the
-			 * message at the front of the queue.
+			 * If a write is running, it picks up the message once it's done.
+			 * Otherwise start writing everything that's in the queue.
 			 */
-			boolean bWritingMessage = !m_qMessagesOut.empty();
-			m_qMessagesOut.push_back(msg);
-			if (!bWritingMessage) writeMessage();
+			enqueue(msg);
+			startWriting();
 		});
 	}
 
 	/**
-	 * @ASYNC Prime context ready to write a message
-	 */
-	private int writing = 0;
-	private HashSet<Long> ids = new HashSet<>();
-
-	private void writeMessage() {
-		writing++;
-//		System.out.println("msgs_out: " + m_qMessagesOut.count());
-//		PacketBuffer msg = m_qMessagesOut.pop_front();
-		PacketBuffer msg = m_qMessagesOut.front();
-		if (ids.contains(msg.id())) System.out.println("Already Sent(" + msg.id() + ")");
-		else ids.add(msg.id());
-//		if (msg == null) {
-//			System.out.println("UOPPSI");
-//			return;
-//		}
-//		m_context.async_write(m_socket, msg, (wroteBytes) -> {
-		m_context.async_write(m_socket, msg, (wroteBytes) -> {
-//		m_context.write(m_socket, msg, (wroteBytes) -> {
-			Logger.net(Thread.currentThread(), "Wrote Message of length " + wroteBytes + ": " + msg);
-			// A complete message has been written
-			PacketBuffer pb = m_qMessagesOut.pop_front();
-			if (msg != pb) {
-				System.out.println("FLASE(" + writing + "): " + (msg != null ? msg.id() : "NULL") + " / " + (pb != null ? pb.id() : "NULL"));
+	 * Adds the message to the queue. A disconnect may have released the queue just before,
+	 * then nothing would ever write the message, so the queue is released again.
+	 */
+	private void enqueue(PacketBuffer msg) {
+		m_qMessagesOut.push_back(msg);
+		if (!isConnected()) releaseMessagesOut();
+	}
+
+	/**
+	 * Starts writing the queued messages, unless a write is running already
+	 */
+	private void startWriting() {
+		// Messages wait in the queue until the handshake is done
+		if (m_bValidated && !m_qMessagesOut.empty() && m_bWriting.compareAndSet(false, true)) writeMessages();
+	}
+
+	/**
+	 * Counts the message as queued, if the {@link OutboundLimits} let it in. While it fits no
+	 * lock is taken, so concurrent senders may each overshoot the limits by one message.
+	 * 
+	 * @return if the message is to be sent, otherwise it was dropped
+	 */
+	private boolean admit(PacketBuffer msg) {
+		long size = queuedSize(msg);
+		if (!fits(size) && !overflow(msg, size)) return false;
+		m_nQueuedBytes.addAndGet(size);
+		m_nQueuedMessages.incrementAndGet();
+		updateWritability();
+		return true;
+	}
+
+	/**
+	 * Applies {@link OutboundLimits#overflow} to a message that doesn't fit
+	 * 
+	 * @return if the message is to be sent after all
+	 */
+	private boolean overflow(PacketBuffer msg, long size) {
+		switch (m_limits.overflow) {
+			case Block:
+				// The threads of the context and the writer make the room, they can't wait for it
+				return m_context.inContextThread() || m_writer == Thread.currentThread() || awaitRoom(size);
+			case DropOldest:
+				dropOldest(size);
+				updateWritability();
+				// Everything queued might be written already, then there's nothing old to drop
+				if (fits(size)) return true;
+				break;
+			case DropNewest:
+				break;
+			case Disconnect:
+				Logger.error(m_nOwnerType + "-Connection", "(" + id + "): Queue full, disconnecting the slow " + (m_nOwnerType == Side.Server ? "client" : "server"));
+				disconnect();
+				return false;
+		}
+		Logger.debug(m_nOwnerType + "-Connection", "(" + id + "): Queue full, dropped " + msg);
+		return false;
+	}
+
+	/**
+	 * @return if a message of the size stays within the limits, a single message always does
+	 */
+	private boolean fits(long size) {
+		OutboundLimits limits = m_limits;
+		int messages = m_nQueuedMessages.get();
+		return messages == 0 || m_nQueuedBytes.get() + size <= limits.maxBytes && messages < limits.maxMessages;
+	}
+
+	/**
+	 * Waits until a message of the size fits. Once the connection is closed it goes on,
+	 * the message is released like any sent then.
+	 * 
+	 * @return if the message can be queued, not if the thread was interrupted
+	 */
+	private boolean awaitRoom(long size) {
+		synchronized (m_qMessagesOut) {
+			// Counted before looking, a message taken out meanwhile either is seen or notifies
+			m_nBlockedSenders.incrementAndGet();
+			try {
+				// Woken up by every message taken out, the timeout only catches connections closed by the other side
+				while (!fits(size) && isConnected()) m_qMessagesOut.wait(100);
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} finally {
+				m_nBlockedSenders.decrementAndGet();
 			}
-//			System.out.println(msg == m_qMessagesOut.pop_front());
-			writing--;
-			if (!m_qMessagesOut.empty()) {
-				writeMessage();
+		}
+	}
+
+	/**
+	 * Drops queued messages from the front until one of the size fits. Streams that started
+	 * can't be dropped anymore, they go back behind the others like after every chunk.
+	 */
+	private void dropOldest(long size) {
+		synchronized (m_qMessagesOut) {
+			// Each message is looked at once at most, started streams go round to the back.
+			// Messages are counted before they are added, so the queue may run out first.
+			for (int queued = m_nQueuedMessages.get(); queued > 0 && !fits(size); queued--) {
+				PacketBuffer oldest = m_qMessagesOut.pop_front();
+				if (oldest == null) break;
+				if (oldest instanceof MessageStream && ((MessageStream) oldest).isStarted()) {
+					m_qMessagesOut.push_back(oldest);
+					continue;
+				}
+				Logger.debug(m_nOwnerType + "-Connection", "(" + id + "): Queue full, dropped " + oldest);
+				dequeued(oldest);
+				oldest.release();
 			}
+		}
+	}
+
+	/**
+	 * Takes the message out of the count of queued ones, {@link #updateWritability()} has to be
+	 * called afterwards, outside of any lock
+	 */
+	private void dequeued(PacketBuffer msg) {
+		m_nQueuedBytes.addAndGet(-queuedSize(msg));
+		m_nQueuedMessages.decrementAndGet();
+		if (m_nBlockedSenders.get() == 0) return;
+		synchronized (m_qMessagesOut) {
+			m_qMessagesOut.notifyAll();
+		}
+	}
+
+	/**
+	 * Flips {@link #isWritable()} once the queued bytes crossed a watermark and tells the owner.
+	 * Looks again after every flip, the bytes may have crossed the other watermark meanwhile.
+	 */
+	private void updateWritability() {
+		while (true) {
+			OutboundLimits limits = m_limits;
+			long bytes = m_nQueuedBytes.get();
+			if (m_bWritable.get()) {
+				if (bytes <= limits.highWatermark || !m_bWritable.compareAndSet(true, false)) return;
+				writabilityChanged(false);
+			} else {
+				// A closed connection stays unwritable, the messages are only dropped
+				if (bytes > limits.lowWatermark || !isConnected() || !m_bWritable.compareAndSet(false, true)) return;
+				writabilityChanged(true);
+			}
+		}
+	}
+
+	/**
+	 * @return what the message counts against {@link OutboundLimits#maxBytes}, a stream
+	 *         only a chunk, it's only read while written
+	 */
+	private static long queuedSize(PacketBuffer msg) {
+		return msg instanceof MessageStream ? ((MessageStream) msg).getChunkSize() : msg.writerIndex();
+	}
+
+	private void writabilityChanged(boolean writable) {
+		if (m_owner == null) return;
+		try {
+			m_owner.onWritabilityChanged(this, writable);
+		} catch (RuntimeException e) {
+			Logger.error(m_nOwnerType + "-Connection", "(" + id + "): onWritabilityChanged failed", e);
+		}
+	}
+
+	/**
+	 * Send a message whose data is read from the source while it's written, without
+	 * putting it into memory as a whole. The other side gets it as {@link StreamChunk}s.
+	 * 
+	 * @param id
+	 *            The id every chunk carries
+	 * @param source
+	 *            Where the data is read from, closed once it's sent
+	 * @see MessageStream
+	 */
+	public void sendStream(T id, InputStream source) { sendStream(MessageStream.of(id, source)); }
+
+	/**
+	 * @param source
+	 *            Where the data is read from, in blocking mode, closed once it's sent
+	 * @see #sendStream(Object, InputStream)
+	 */
+	public void sendStream(T id, ReadableByteChannel source) { sendStream(MessageStream.of(id, source)); }
+
+	private void sendStream(MessageStream stream) {
+		send(stream);
+		// The connection holds on to it until it's sent
+		stream.release();
+	}
+
+	/**
+	 * The handshake is done, so start writing the messages that were sent in the meantime
+	 */
+	private void onValidated() {
+		m_bValidated = true;
+		startWriting();
+	}
+
+	/**
+	 * @ASYNC Write everything in the queue, up to {@link #WRITE_BUDGET} bytes,
+	 *        with one write. Only one write runs at a time, started by whoever
+	 *        set {@link #m_bWriting}, it goes on until the queue is empty.
+	 */
+	private void writeMessages() {
+		// Writes completing right away call this again on the same thread
+		Thread previous = m_writer;
+		m_writer = Thread.currentThread();
+		try {
+			writeBatch();
+		} finally {
+			m_writer = previous;
+		}
+	}
+
+	private void writeBatch() {
+		List<PacketBuffer> batch = new ArrayList<>();
+		synchronized (m_qMessagesOut) {
+			int bytes = 0;
+			PacketBuffer msg;
+			while (bytes < WRITE_BUDGET && (msg = m_qMessagesOut.pop_front()) != null) {
+				batch.add(msg);
+				bytes += queuedSize(msg);
+				dequeued(msg);
+			}
+		}
+		if (batch.isEmpty()) {
+			m_bWriting.set(false);
+			// A message added after the queue looked empty, but before the flag was cleared, would be left behind
+			startWriting();
+			return;
+		}
+		updateWritability();
+
+		PacketBuffer frames;
+		try {
+			frames = encode(batch);
+		} catch (IOException | RuntimeException e) {
+			release(batch);
+			// The message can't be written, so the other side would never see a consistent stream...
+			Logger.error(m_nOwnerType + "-Connection", "(" + id + "): ", new WriteMessageException("", e));
+			// ... so disconnect it
+			disconnect();
+			return;
+		}
+		boolean streaming = requeueStreams(batch);
+		m_context.async_write(m_socket, frames, (wroteBytes) -> {
+			Logger.net(Thread.currentThread(), "Wrote " + batch.size() + " Messages of length " + wroteBytes);
+			// The messages have been written
+			frames.release();
+			release(batch);
+			// Writes may complete right away, a stream would never unwind the stack then
+			if (streaming) m_context.async_post(m_nOwnerType + "_connection_write", this::writeMessages);
+			else writeMessages();
 		}, (error) -> {
+			frames.release();
+			release(batch);
 			// Something is wrong with this connection...
 			Logger.error(m_nOwnerType + "-Connection", "(" + id + "): ", new WriteMessageException("", error));
-			// ... so disconnect it
+			// ... so disconnect it, which releases the messages still queued
 			disconnect();
 		});
-//		try {
-//			Thread.sleep(1);
-//		} catch (InterruptedException e) {
-//			e.printStackTrace();
-//		}
 	}
 
 	/**
-	 * @ASYNC Prime context ready to read a message
+	 * Puts the streams that have more chunks to go back behind the messages sent meanwhile,
+	 * so a large stream doesn't hold up the others
+	 * 
+	 * @return if a stream was put back
+	 */
+	private boolean requeueStreams(List<PacketBuffer> batch) {
+		boolean requeued = false;
+		for (PacketBuffer msg : batch) {
+			if (!(msg instanceof MessageStream) || ((MessageStream) msg).isFinished()) continue;
+			// Nothing will ever write it
+			if (!isConnected()) continue;
+			msg.retain();
+			// Counted again, but never held back by the limits, the stream has to go on
+			m_nQueuedBytes.addAndGet(queuedSize(msg));
+			m_nQueuedMessages.incrementAndGet();
+			enqueue(msg);
+			requeued = true;
+		}
+		return requeued;
+	}
+
+	private static void release(List<PacketBuffer> msgs) {
+		for (PacketBuffer msg : msgs) msg.release();
+	}
+
+	/**
+	 * @return what goes over the wire for the messages, in the agreed {@link FrameFormat}.
+	 *         Small frames are copied together, so the blocking contexts write them at
+	 *         once, large ones are added as they are.
+	 */
+	private PacketBuffer encode(List<PacketBuffer> msgs) throws IOException {
+		CompositeByteBuf frames = PacketBuffer.getPooledAllocator().compositeBuffer(msgs.size());
+		int smallBytes = 0;
+		for (PacketBuffer msg : msgs) if (msg.writerIndex() <= COALESCE_THRESHOLD) smallBytes += msg.writerIndex() + HEADER_ESTIMATE;
+		ByteBuf small = null;
+		try {
+			for (PacketBuffer msg : msgs) {
+				ByteBuf frame = encode(msg);
+				if (frame.readableBytes() > COALESCE_THRESHOLD) {
+					if (small != null) frames.addComponent(true, small);
+					small = null;
+					frames.addComponent(true, frame);
+					continue;
+				}
+				if (small == null) small = PacketBuffer.getPooledAllocator().heapBuffer(smallBytes);
+				small.writeBytes(frame);
+				frame.release();
+			}
+			if (small != null) frames.addComponent(true, small);
+		} catch (IOException | RuntimeException e) {
+			if (small != null) small.release();
+			frames.release();
+			throw e;
+		}
+		return new PacketBuffer(frames);
+	}
+
+	/**
+	 * @return the frame of the message, compressed if that was agreed on and it's large enough,
+	 *         holding a reference of its own
+	 */
+	private ByteBuf encode(PacketBuffer msg) throws IOException {
+		ByteBuf frame = encodeFrame(msg);
+		if (m_compressor == null || frame.readableBytes() < m_nCompressionThreshold) return frame;
+		// Plain buffers go out as they are, the other side doesn't read them as a frame
+		if (!(msg instanceof MessageBuffer || msg instanceof MessageStream || msg instanceof BroadcastFrame)) return frame;
+		try {
+			return FrameCompression.compress(frame, m_compressor);
+		} catch (IOException | RuntimeException e) {
+			frame.release();
+			throw e;
+		}
+	}
+
+	private ByteBuf encodeFrame(PacketBuffer msg) throws IOException {
+		if (msg instanceof MessageStream) {
+			MessageStream stream = (MessageStream) msg;
+			if (usesStreams()) return stream.nextChunk(m_outboundIds, () -> m_nNextStream++);
+			// The other side can't take chunks, so it gets the whole data at once, as far as a frame can hold it
+			MessageBuffer<?> whole;
+			try {
+				whole = stream.readFully(m_decoder.getMaxFrameSize());
+			} catch (IOException e) {
+				// Only the stream is lost, the connection goes on
+				Logger.error(m_nOwnerType + "-Connection", "(" + id + "): Dropped " + stream + ", the other side can't take it in chunks", e);
+				return Unpooled.EMPTY_BUFFER;
+			}
+			return m_frameFormat == FrameFormat.V1 ? whole.retainedFrame() : whole.encodeFrame(m_outboundIds);
+		}
+		// A broadcast shares the frame with every connection speaking the same
+		if (msg instanceof BroadcastFrame) return ((BroadcastFrame) msg).retainedFrame(m_frameFormat, m_outboundIds);
+		// V1 messages write themselves, as do plain buffers in every format
+		if (m_frameFormat == FrameFormat.V1 || !(msg instanceof MessageBuffer)) return msg.retainedFrame();
+		return ((MessageBuffer<?>) msg).encodeFrame(m_outboundIds);
+	}
+
+	/**
+	 * @ASYNC Prime context ready to read messages
 	 */
 	private void readMessage() {
-//		System.out.println("msgs_in: " + m_qMessagesIn.count());
-		MessageBuffer<T> msg = messageFactory.get();
-//		MessageBuffer<T> msg = new MessageBuffer<>();
-		m_context.async_read(m_socket, msg, (readBytes) -> {
-//		m_context.read(m_socket, msg, (readBytes) -> {
-			// A complete message has been read
-			Logger.net(Thread.currentThread(), "Read Message of length " + readBytes + ": " + msg);
-			addToIncomingMessageQueue(msg);
-			readMessage();
+		if (m_context.usesReadLoop()) {
+			readMessages();
+			return;
+		}
+		m_context.async_readAvailable(m_socket, m_decoder.buffer(), (readBytes) -> {
+			// Whatever arrived might hold any number of messages
+			resumeReading();
 		}, (error) -> {
 			// Something is wrong with this connection...
 			Logger.error(m_nOwnerType + "-Connection", "(" + id + "): " + new ReadMessageException(error));
@@ -237,8 +917,131 @@ public class Connection<T> {
 		});
 	}
 
+	/**
+	 * @ASYNC Read all messages on one long running task
+	 */
+	private void readMessages() {
+		m_context.async_readLoop(m_socket, m_decoder.buffer(), (readBytes) -> {
+			// The loop can't stop reading, it waits on its own task instead, then decodes what was left
+			while (decodeMessages() && isConnected()) {
+				if (!continueReading()) awaitResume();
+				else if (!m_bDecodeStopped) break;
+			}
+		}, (error) -> {
+			// Something is wrong with this connection...
+			Logger.error(m_nOwnerType + "-Connection", "(" + id + "): " + new ReadMessageException(error));
+			// ... so disconnect it
+			disconnect();
+		});
+	}
+
+	/**
+	 * Hands every complete message that has been read so far to the owner
+	 * 
+	 * @return if the connection is still fine
+	 */
+	private boolean decodeMessages() {
+		try {
+			m_decoder.decode((msg) -> {
+				// A complete message has been read
+				Logger.net(Thread.currentThread(), "Read Message: " + msg);
+				addToIncomingMessageQueue(msg);
+			}, () -> m_bDecodeStopped = inboundExceeded());
+			return true;
+		} catch (IOException | RuntimeException e) {
+			// The stream is broken from here on...
+			Logger.error(m_nOwnerType + "-Connection", "(" + id + "): " + new ReadMessageException(e));
+			// ... so disconnect it
+			disconnect();
+			return false;
+		}
+	}
+
 	private void addToIncomingMessageQueue(MessageBuffer<T> msg) {
-		m_qMessagesIn.push_back(new MessageBuffer.Owned<T>(m_nOwnerType == Side.Server ? this : null, msg));
+		MessageBuffer.Owned<T> owned = new MessageBuffer.Owned<T>(m_nOwnerType == Side.Server ? this : null, msg, this);
+		m_nInboundBytes.addAndGet(owned.getSize());
+		m_nInboundMessages.incrementAndGet();
+		if (m_owner != null) m_owner.inboundQueued(owned.getSize());
+		m_qMessagesIn.push_back(owned);
+	}
+
+	/**
+	 * Takes a message handled by the owner out of the count of waiting ones,
+	 * resumes reading once enough of them are handled
+	 */
+	void inboundHandled(MessageBuffer.Owned<T> msg) {
+		m_nInboundBytes.addAndGet(-msg.getSize());
+		m_nInboundMessages.decrementAndGet();
+		if (m_owner != null) m_owner.inboundHandled(msg.getSize());
+		if (m_bReadSuspended.get()) tryResumeReading();
+	}
+
+	/**
+	 * @return if too many received messages wait to be handled, here or in total
+	 */
+	private boolean inboundExceeded() {
+		return m_inboundLimits.exceeded(m_nInboundBytes.get(), m_nInboundMessages.get()) || m_owner != null && m_owner.inboundExceeded();
+	}
+
+	/**
+	 * Suspends reading if too many received messages wait to be handled
+	 * 
+	 * @return if reading goes on
+	 */
+	private boolean continueReading() {
+		if (!inboundExceeded()) return true;
+		// Registered first, so handling the messages of other connections can resume it
+		if (m_owner != null) m_owner.readSuspended(this);
+		m_bReadSuspended.set(true);
+		Logger.debug(m_nOwnerType + "-Connection", "(" + id + "): Suspended reading, " + m_nInboundMessages.get() + " messages wait to be handled");
+		// They might have been handled meanwhile, then nobody else resumes it
+		if (!inboundDrained() || !m_bReadSuspended.compareAndSet(true, false)) return false;
+		if (m_owner != null) m_owner.readResumed(this);
+		return true;
+	}
+
+	private boolean inboundDrained() {
+		return m_inboundLimits.drained(m_nInboundBytes.get(), m_nInboundMessages.get()) && (m_owner == null || m_owner.inboundDrained());
+	}
+
+	/**
+	 * Resumes reading if it's suspended and enough messages were handled
+	 */
+	void tryResumeReading() {
+		if (!inboundDrained() || !m_bReadSuspended.compareAndSet(true, false)) return;
+		if (m_owner != null) m_owner.readResumed(this);
+		Logger.debug(m_nOwnerType + "-Connection", "(" + id + "): Resumed reading");
+		if (m_context.usesReadLoop()) {
+			synchronized (m_bReadSuspended) {
+				m_bReadSuspended.notifyAll();
+			}
+		} else if (isConnected()) m_context.post(m_nOwnerType + "_connection_resume", this::resumeReading);
+	}
+
+	/**
+	 * Decodes what was read, or was left over when reading was suspended, then reads on
+	 */
+	private void resumeReading() {
+		while (decodeMessages() && continueReading()) {
+			// Complete messages might still be left, the peer may send nothing more that would get them decoded
+			if (m_bDecodeStopped) continue;
+			readMessage();
+			return;
+		}
+	}
+
+	/**
+	 * Blocks the read loop while reading is suspended
+	 */
+	private void awaitResume() {
+		synchronized (m_bReadSuspended) {
+			try {
+				// The timeout only catches connections closed meanwhile
+				while (m_bReadSuspended.get() && isConnected()) m_bReadSuspended.wait(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 
 	// "Encrypt" data (8 bytes)
@@ -249,15 +1052,30 @@ public class Connection<T> {
 	}
 
 	// ASYNC - Used by both client and server to write validation packet
-	private void writeValidation() {
+	private void writeValidation() { writeValidation(null); }
+
+	/**
+	 * @param extensions
+	 *            sent right after the validation data, if the server offered them
+	 */
+	private void writeValidation(HandshakeExtensions extensions) {
 		PacketBuffer val_msg = new PacketBuffer();
 		val_msg.writeLong(m_nHandshakeOut);
+		if (extensions != null) extensions.write(val_msg);
 		m_context.async_write(m_socket, val_msg, (wroteBytes) -> {
 //		m_context.write(m_socket, val_msg, (wroteBytes) -> {
 			Logger.help("wrote val msg: " + val_msg);
 			// Validation data sent, clients should sit and wait
 			// for a response (or a closure)
-			if (m_nOwnerType == Side.Client) readMessage();
+			if (m_nOwnerType == Side.Client) {
+				if (extensions != null) {
+					// The server answers with its extensions
+					readExtensions(null);
+				} else {
+					onValidated();
+					readMessage();
+				}
+			}
 		}, (error) -> {
 			// Something went wrong while validating...
 			Logger.error(m_nOwnerType + "-Connection", "(" + id + "): " + new ValidationException(error));
@@ -280,9 +1098,14 @@ public class Connection<T> {
 					// Client has provided valid solution, so allow it to connect properly
 					Logger.help("Client Validated");
 					server.onClientValidated(this);
+					onValidated();
 
 					// Sit waiting to receive data now
 					readMessage();
+				} else if (m_nHandshakeIn == m_nHandshakeCheckExtended) {
+					// Client has provided valid solution and wants to negotiate extensions
+					Logger.help("Client Validated (Extended)");
+					readExtensions(server);
 				} else {
 					// Client gave incorrect data, so disconnect
 					Logger.help("Client Disconnected (Fail Validation)");
@@ -291,11 +1114,22 @@ public class Connection<T> {
 				}
 			} else {
 				Logger.help("solving puzzle");
-				// Connection is a client, so solve puzzle
-				m_nHandshakeOut = scramble(m_nHandshakeIn);
+				// Connection is a client, so solve puzzle, servers
+				// understanding extensions mark their challenge
+				boolean extended = m_owner != null && (m_nHandshakeIn & HANDSHAKE_MAGIC_MASK) == HANDSHAKE_MAGIC;
+				if (extended) {
+					m_nHandshakeOut = scramble(m_nHandshakeIn ^ HANDSHAKE_EXTENDED);
+					HandshakeExtensions extensions = new HandshakeExtensions();
+					m_owner.writeExtensions(this, extensions);
 
-				// Write the result
-				writeValidation();
+					// Write the result followed by our extensions
+					writeValidation(extensions);
+				} else {
+					m_nHandshakeOut = scramble(m_nHandshakeIn);
+
+					// Write the result
+					writeValidation();
+				}
 			}
 		}, (error) -> {
 			// Something went wrong while validating...
@@ -304,4 +1138,62 @@ public class Connection<T> {
 			disconnect();
 		});
 	}
+
+	// ASYNC - Used by both client and server to read the extensions of the other side
+	private void readExtensions(Server<T> server) {
+		PacketBuffer ext_size = new PacketBuffer();
+		m_context.async_read(m_socket, ext_size, Integer.BYTES, (readBytes) -> {
+			int size = ext_size.readInt();
+			if (size < 0 || size > HandshakeExtensions.MAX_SIZE) {
+				Logger.error(m_nOwnerType + "-Connection", "(" + id + "): " + new ValidationException("Handshake extensions of " + size + " bytes"));
+				disconnect();
+				return;
+			}
+			PacketBuffer ext_msg = new PacketBuffer();
+			m_context.async_read(m_socket, ext_msg, size, (readBytes2) -> {
+				HandshakeExtensions remote;
+				try {
+					remote = HandshakeExtensions.read(ext_msg);
+					Logger.help("recieved extensions: " + remote);
+					// Capabilities this side can't take fail the handshake as well
+					m_owner.onExtensions(this, remote);
+				} catch (RuntimeException e) {
+					Logger.error(m_nOwnerType + "-Connection", "(" + id + "): " + new ValidationException(e));
+					disconnect();
+					return;
+				}
+
+				if (m_nOwnerType == Side.Server) {
+					// Answer with what we agreed on
+					HandshakeExtensions extensions = new HandshakeExtensions();
+					m_owner.writeExtensions(this, extensions);
+					writeExtensions(server, extensions);
+				} else {
+					onValidated();
+					readMessage();
+				}
+			}, this::failValidation);
+		}, this::failValidation);
+	}
+
+	// ASYNC - Used by the server to answer the extensions of the client
+	private void writeExtensions(Server<T> server, HandshakeExtensions extensions) {
+		PacketBuffer ext_msg = new PacketBuffer();
+		extensions.write(ext_msg);
+		m_context.async_write(m_socket, ext_msg, (wroteBytes) -> {
+			// Extensions are sent, so allow the client to connect properly
+			server.onClientValidated(this);
+			onValidated();
+
+			// Sit waiting to receive data now
+			readMessage();
+		}, this::failValidation);
+	}
+
+	private void failValidation(Exception error) {
+		// Something went wrong while validating...
+		Logger.error(m_nOwnerType + "-Connection", "(" + id + "): " + new ValidationException(error));
+		// ... so disconnect it
+		disconnect();
+	}
 }
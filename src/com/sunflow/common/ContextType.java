@@ -0,0 +1,26 @@
+package com.sunflow.common;
+
+/**
+ * The I/O model a {@link CommonContext} uses to drive its connections
+ */
+public enum ContextType {
+	/**
+	 * Blocking {@link java.net.Socket}s, every async operation runs on its own thread
+	 */
+	Blocking,
+	/**
+	 * Blocking {@link java.net.Socket}s, every async operation runs on its own virtual
+	 * thread (Java 21+), falls back to {@link #Blocking} on older runtimes
+	 */
+	VirtualThread,
+	/**
+	 * Non-blocking {@link java.nio.channels.SocketChannel}s, multiplexed by one
+	 * {@link java.nio.channels.Selector} on the context thread
+	 */
+	Selector,
+	/**
+	 * NIO.2 {@link java.nio.channels.AsynchronousSocketChannel}s, every read and write
+	 * completes on the fixed pool of one shared {@link java.nio.channels.AsynchronousChannelGroup}
+	 */
+	Asynchronous
+}
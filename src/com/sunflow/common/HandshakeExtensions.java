@@ -0,0 +1,104 @@
+package com.sunflow.common;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.sunflow.error.netty.DecoderException;
+import com.sunflow.message.FrameFormat;
+import com.sunflow.message.PacketBuffer;
+
+import io.netty.buffer.Unpooled;
+
+/**
+ * Capabilities both sides exchange during the handshake, once the server offered
+ * them and the client answered the challenge accordingly.
+ * <p>
+ * Every capability is a key with an opaque value. Keys the other side doesn't know
+ * are skipped, so newer versions can add more without breaking older ones.
+ * <p>
+ * Wire format: int length of the block, varint count, then per entry
+ * varint key, varint value length and the value bytes.
+ */
+public class HandshakeExtensions {
+
+	/**
+	 * Datagram side channel, the client offers its udp port,
+	 * the server answers with its udp port and the token of the connection
+	 */
+	public static final int UNRELIABLE = 1;
+
+	/**
+	 * Layout of the messages, the client offers the newest {@link FrameFormat} version
+	 * it wants to use, the server answers with the one both use
+	 */
+	public static final int FRAME_FORMAT = 2;
+
+	/**
+	 * Chunked {@link com.sunflow.message.MessageStream streams}, offered by the client
+	 * and repeated by the server if it takes them as well. Needs {@link FrameFormat#V2}.
+	 */
+	public static final int STREAMS = 3;
+
+	/**
+	 * Compressed frames, the client offers the ids of its {@link com.sunflow.message.Codecs codecs},
+	 * the preferred first, the server answers with the one both use. Needs {@link FrameFormat#V2}.
+	 */
+	public static final int COMPRESSION = 4;
+
+	/**
+	 * Upper bound of a block, to not allocate whatever length a broken peer sends
+	 */
+	public static final int MAX_SIZE = 64 * 1024;
+
+	private final Map<Integer, byte[]> values = new TreeMap<>();
+
+	public void put(int key, PacketBuffer value) {
+		byte[] bytes = new byte[value.readableBytes()];
+		value.getBytes(value.readerIndex(), bytes);
+		values.put(key, bytes);
+	}
+
+	public boolean has(int key) { return values.containsKey(key); }
+
+	/**
+	 * @return the value of the key, or {@code null} if the other side didn't send it
+	 */
+	public PacketBuffer get(int key) {
+		byte[] bytes = values.get(key);
+		return bytes == null ? null : new PacketBuffer(Unpooled.wrappedBuffer(bytes));
+	}
+
+	public boolean isEmpty() { return values.isEmpty(); }
+
+	/**
+	 * Writes the length prefixed block
+	 */
+	public void write(PacketBuffer out) {
+		PacketBuffer body = new PacketBuffer();
+		body.writeVarInt(values.size());
+		for (Map.Entry<Integer, byte[]> entry : values.entrySet()) {
+			body.writeVarInt(entry.getKey());
+			body.writeByteArray(entry.getValue());
+		}
+		out.writeInt(body.readableBytes());
+		out.writeBytes(body);
+	}
+
+	/**
+	 * @param body
+	 *            the block without its length prefix
+	 */
+	public static HandshakeExtensions read(PacketBuffer body) {
+		HandshakeExtensions extensions = new HandshakeExtensions();
+		int count = body.readVarInt();
+		if (count < 0) throw new DecoderException("Negative amount of handshake extensions: " + count);
+		for (int i = 0; i < count; i++) {
+			int key = body.readVarInt();
+			extensions.values.put(key, body.readByteArray(MAX_SIZE));
+		}
+		return extensions;
+	}
+
+	@Override
+	public String toString() { return "HandshakeExtensions" + values.keySet(); }
+}
@@ -0,0 +1,23 @@
+package com.sunflow.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+
+/**
+ * One end of a connection to a remote, how its bytes are moved
+ * is up to the context that created it
+ */
+public interface ISocket extends Closeable {
+
+	boolean isConnected();
+
+	boolean isClosed();
+
+	SocketAddress getRemoteSocketAddress();
+
+	SocketAddress getLocalSocketAddress();
+
+	@Override
+	void close() throws IOException;
+}
@@ -1,10 +1,33 @@
 package com.sunflow.common;
 
 import java.io.Closeable;
+import java.net.SocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 
+import com.sunflow.error.UnkownIdentifierException;
+import com.sunflow.message.Codecs;
+import com.sunflow.message.FrameFormat;
 import com.sunflow.message.MessageBuffer;
-import com.sunflow.util.TSQueue;
+import com.sunflow.message.MessageDecoder;
+import com.sunflow.message.PacketBuffer;
+import com.sunflow.message.StreamChunk;
+import com.sunflow.util.Logger;
+import com.sunflow.util.PoolSettings;
+import com.sunflow.util.IQueue;
+import com.sunflow.util.InboundLimits;
+import com.sunflow.util.MPSCQueue;
+import com.sunflow.util.OutboundLimits;
+import com.sunflow.util.Side;
+import com.sunflow.util.UnixDomainSockets;
+import com.sunflow.util.WaitStrategy;
 
 public abstract class Interface<T> implements Closeable {
 
@@ -19,15 +42,108 @@ public abstract class Interface<T> implements Closeable {
 	 */
 	protected CommonContext m_context;
 
+	/**
+	 * The I/O model the context gets created with
+	 */
+	protected ContextType contextType = ContextType.Blocking;
+
+	/**
+	 * Creates the context instead of the {@link #contextType}, if set
+	 */
+	protected Transport transport;
+
+	/**
+	 * Limits of the worker pool the context runs its async tasks on
+	 */
+	protected PoolSettings poolSettings = PoolSettings.DEFAULT;
+
+	/**
+	 * If every connection reads all of its messages on one long running task
+	 */
+	protected boolean readLoop = false;
+
+	/**
+	 * If a datagram side channel should be negotiated for every connection
+	 */
+	protected boolean unreliable = false;
+
+	/**
+	 * The newest layout of the messages this side wants to use, the connections
+	 * settle on what both sides speak
+	 */
+	protected FrameFormat frameFormat = FrameFormat.V2;
+
+	/**
+	 * The size from which on frames are sent compressed, -1 to neither offer nor agree on compression
+	 */
+	protected int compressionThreshold = -1;
+
+	/**
+	 * The most data a single received frame may claim
+	 */
+	protected int maxFrameSize = MessageDecoder.DEFAULT_MAX_FRAME_SIZE;
+
+	/**
+	 * Limits of the messages every connection holds on to until they are written
+	 */
+	protected OutboundLimits outboundLimits = OutboundLimits.UNBOUNDED;
+
+	/**
+	 * Limits of the received messages every connection may have waiting to be handled
+	 */
+	protected InboundLimits inboundLimits = InboundLimits.UNBOUNDED;
+
+	/**
+	 * Limits of the received messages all connections together may have waiting to be handled
+	 */
+	protected InboundLimits globalInboundLimits = InboundLimits.UNBOUNDED;
+
+	/**
+	 * Data and count of the received messages of all connections that weren't handled yet
+	 */
+	private final AtomicLong inboundBytes = new AtomicLong();
+	private final AtomicInteger inboundMessages = new AtomicInteger();
+
+	/**
+	 * Connections that stopped reading, those waiting for the total to fall are
+	 * resumed once it does
+	 */
+	private final Set<Connection<T>> suspendedReads = ConcurrentHashMap.newKeySet();
+
 	/**
 	 * Thread to execute all work on
 	 */
 	protected Thread m_threadContext;
 
 	/**
-	 * Thread Safe Queue for incoming messages
+	 * Thread Safe Queue for incoming messages, every connection adds to it,
+	 * only the thread calling {@link #update()} takes them out
+	 */
+	protected IQueue<MessageBuffer.Owned<T>> m_qMessagesIn;
+
+	/**
+	 * The most messages {@link #update()} takes out of the queue at once and hands
+	 * to {@link #onMessages(List)} together
+	 */
+	protected int batchSize = 256;
+
+	/**
+	 * The messages taken out of the queue, but not handled yet, only used by the thread
+	 * calling {@link #update()}. A handler that throws leaves the messages it wasn't handed
+	 * here for the next call.
+	 */
+	private final List<MessageBuffer.Owned<T>> m_batch = new ArrayList<>();
+
+	/**
+	 * If a subclass overrides {@link #onMessages(List)}, otherwise the messages are handed
+	 * to {@link #onMessage(MessageBuffer.Owned)} one by one right away
+	 */
+	private final boolean m_bBatchHandler = overridesOnMessages(getClass());
+
+	/**
+	 * How {@link #update()} waits while no messages are there
 	 */
-	protected TSQueue<MessageBuffer.Owned<T>> m_qMessagesIn;
+	protected WaitStrategy waitStrategy = WaitStrategy.BLOCKING;
 
 	/**
 	 * Factory Method giving back a blank messages
@@ -37,7 +153,265 @@ public abstract class Interface<T> implements Closeable {
 	public Interface(Supplier<MessageBuffer<T>> messageFactory) {
 		this.messageFactory = messageFactory;
 
-		this.m_qMessagesIn = new TSQueue<>();
+		this.m_qMessagesIn = new MPSCQueue<>();
+	}
+
+	/**
+	 * Sets the I/O model of the context, only affects contexts created afterwards
+	 * 
+	 * @param contextType
+	 *            The I/O model to use
+	 */
+	public void setContextType(ContextType contextType) { this.contextType = contextType; }
+
+	public ContextType getContextType() { return contextType; }
+
+	/**
+	 * Replaces TCP with another byte pipe, only affects contexts created afterwards
+	 * 
+	 * @param transport
+	 *            creates the contexts, {@code null} to use TCP with the {@link #contextType}
+	 */
+	public void setTransport(Transport transport) { this.transport = transport; }
+
+	public Transport getTransport() { return transport; }
+
+	/**
+	 * @return the transport set explicitly, or the one the endpoint belongs to,
+	 *         {@code null} for plain TCP
+	 */
+	protected Transport transportFor(SocketAddress endpoint) {
+		if (transport != null) return transport;
+		if (endpoint instanceof LoopbackAddress) return LoopbackTransport.INSTANCE;
+		return null;
+	}
+
+	/**
+	 * @return the context type to use for the endpoint, unix domain sockets
+	 *         are only supported by {@link ContextType#Selector} contexts
+	 */
+	protected ContextType contextTypeFor(SocketAddress endpoint) {
+		if (contextType != ContextType.Selector && UnixDomainSockets.isUnixAddress(endpoint)) {
+			Logger.debug("Interface", contextType + " contexts can't use unix domain sockets, using " + ContextType.Selector + " instead");
+			return ContextType.Selector;
+		}
+		return contextType;
+	}
+
+	/**
+	 * Sets the limits of the worker pool async tasks run on, only affects
+	 * contexts created afterwards
+	 * 
+	 * @param poolSettings
+	 *            core size, max size, queue bound and rejection policy of the pool
+	 */
+	public void setPoolSettings(PoolSettings poolSettings) { this.poolSettings = poolSettings; }
+
+	public PoolSettings getPoolSettings() { return poolSettings; }
+
+	/**
+	 * Lets every connection read all of its messages on one long running task, instead
+	 * of issuing a new async read per message. Meant for {@link ContextType#VirtualThread},
+	 * where a blocked thread per connection is cheap. Only affects contexts created afterwards.
+	 */
+	public void setReadLoop(boolean readLoop) { this.readLoop = readLoop; }
+
+	public boolean usesReadLoop() { return readLoop; }
+
+	/**
+	 * Offers a datagram side channel next to every TCP connection, messages sent
+	 * unreliable use it once both sides agreed on it during the handshake. Only
+	 * affects connections made afterwards.
+	 */
+	public void setUnreliable(boolean unreliable) { this.unreliable = unreliable; }
+
+	public boolean usesUnreliable() { return unreliable; }
+
+	/**
+	 * Sets the newest layout of the messages to offer, the connections fall back
+	 * to what the other side speaks. Only affects connections made afterwards.
+	 */
+	public void setFrameFormat(FrameFormat frameFormat) { this.frameFormat = frameFormat; }
+
+	public FrameFormat getFrameFormat() { return frameFormat; }
+
+	/**
+	 * Compresses frames from the size on, with the {@link Codecs codec} both sides prefer.
+	 * Small frames don't get smaller by much, while compressing them costs as much as for
+	 * any other frame, a few KB is a sensible threshold. Needs {@link FrameFormat#V2} and
+	 * only affects connections made afterwards.
+	 * 
+	 * @param threshold
+	 *            the size in bytes, -1 to turn compression off, which is the default
+	 */
+	public void setCompression(int threshold) { this.compressionThreshold = threshold; }
+
+	public int getCompressionThreshold() { return compressionThreshold; }
+
+	public boolean usesCompression() { return compressionThreshold >= 0; }
+
+	/**
+	 * Limits the data a single received frame may claim, so a peer can't make this side
+	 * allocate more than that for one message. A connection receiving a larger frame is
+	 * closed. Only affects connections made afterwards.
+	 * 
+	 * @param maxFrameSize
+	 *            the size in bytes, {@link MessageDecoder#DEFAULT_MAX_FRAME_SIZE} by default
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		if (maxFrameSize <= 0) throw new IllegalArgumentException("Invalid maximum frame size: " + maxFrameSize);
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	public int getMaxFrameSize() { return maxFrameSize; }
+
+	/**
+	 * Limits the messages every connection holds on to until they are written, so a
+	 * peer that doesn't keep up can't make its queue grow without end. Only affects
+	 * connections made afterwards, {@link Connection#setOutboundLimits(OutboundLimits)}
+	 * changes them for a single connection.
+	 * 
+	 * @param outboundLimits
+	 *            the limits, what happens to messages beyond them and the watermarks
+	 *            {@link #onWritabilityChanged(Connection, boolean)} is called at
+	 */
+	public void setOutboundLimits(OutboundLimits outboundLimits) { this.outboundLimits = outboundLimits; }
+
+	public OutboundLimits getOutboundLimits() { return outboundLimits; }
+
+	/**
+	 * Limits the received messages every connection may have waiting for {@link #update()}.
+	 * Beyond them the connection stops reading from its socket, so TCP makes the peer wait,
+	 * until enough of them are handled. Only affects connections made afterwards,
+	 * {@link Connection#setInboundLimits(InboundLimits)} changes them for a single connection.
+	 */
+	public void setInboundLimits(InboundLimits inboundLimits) { this.inboundLimits = inboundLimits; }
+
+	public InboundLimits getInboundLimits() { return inboundLimits; }
+
+	/**
+	 * Limits the received messages all connections together may have waiting for {@link #update()},
+	 * beyond them every connection stops reading after its next read
+	 */
+	public void setGlobalInboundLimits(InboundLimits globalInboundLimits) { this.globalInboundLimits = globalInboundLimits; }
+
+	public InboundLimits getGlobalInboundLimits() { return globalInboundLimits; }
+
+	/**
+	 * @param batchSize
+	 *            the most messages handed to {@link #onMessages(List)} at once
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize <= 0) throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+		this.batchSize = batchSize;
+	}
+
+	public int getBatchSize() { return batchSize; }
+
+	/**
+	 * @param waitStrategy
+	 *            how {@link #update(boolean)} and {@link #update(Duration)} wait while
+	 *            no messages are there, {@link WaitStrategy#BLOCKING} by default
+	 */
+	public void setWaitStrategy(WaitStrategy waitStrategy) { this.waitStrategy = waitStrategy; }
+
+	public WaitStrategy getWaitStrategy() { return waitStrategy; }
+
+	/**
+	 * @return the received messages of all connections waiting to be handled
+	 */
+	public int getInboundMessages() { return inboundMessages.get(); }
+
+	/**
+	 * @return the bytes of data of the received messages waiting to be handled
+	 */
+	public long getInboundBytes() { return inboundBytes.get(); }
+
+	void inboundQueued(int size) {
+		inboundBytes.addAndGet(size);
+		inboundMessages.incrementAndGet();
+	}
+
+	void inboundHandled(int size) {
+		long bytes = inboundBytes.addAndGet(-size);
+		int messages = inboundMessages.decrementAndGet();
+		// Fell to the low watermarks with this message, the connections only held back by the total may go on
+		if (globalInboundLimits.drained(bytes, messages) && !globalInboundLimits.drained(bytes + size, messages + 1)) {
+			for (Connection<T> connection : suspendedReads) connection.tryResumeReading();
+		}
+	}
+
+	boolean inboundExceeded() { return globalInboundLimits.exceeded(inboundBytes.get(), inboundMessages.get()); }
+
+	boolean inboundDrained() { return globalInboundLimits.drained(inboundBytes.get(), inboundMessages.get()); }
+
+	void readSuspended(Connection<T> connection) { suspendedReads.add(connection); }
+
+	void readResumed(Connection<T> connection) { suspendedReads.remove(connection); }
+
+	/**
+	 * Adds the capabilities this side offers during the handshake. The client calls it
+	 * before sending its offer, the server once it knows the offer of the client.
+	 * Overrides have to call super, to keep the built-in capabilities.
+	 * 
+	 * @param connection
+	 *            the connection doing the handshake
+	 * @param extensions
+	 *            to add the capabilities to
+	 */
+	protected void writeExtensions(Connection<T> connection, HandshakeExtensions extensions) {
+		// The client offers its newest format, the server answers with the one it picked
+		PacketBuffer format = new PacketBuffer();
+		format.writeVarInt(connection.getSide() == Side.Client ? frameFormat.version : connection.getFrameFormat().version);
+		extensions.put(HandshakeExtensions.FRAME_FORMAT, format);
+		// The client offers streams, the server agrees if it was offered them
+		if (connection.getSide() == Side.Client || connection.usesStreams()) extensions.put(HandshakeExtensions.STREAMS, new PacketBuffer());
+		// The client offers its codecs, the server answers with the one it picked
+		if (connection.getSide() == Side.Client && usesCompression() && frameFormat == FrameFormat.V2) {
+			PacketBuffer codecs = new PacketBuffer();
+			List<Integer> ids = Codecs.ids();
+			codecs.writeVarInt(ids.size());
+			for (int id : ids) codecs.writeVarInt(id);
+			extensions.put(HandshakeExtensions.COMPRESSION, codecs);
+		} else if (connection.getSide() == Side.Server && connection.getCodec() >= 0) {
+			PacketBuffer codec = new PacketBuffer();
+			codec.writeVarInt(connection.getCodec());
+			extensions.put(HandshakeExtensions.COMPRESSION, codec);
+		}
+	}
+
+	/**
+	 * Called with the capabilities the other side sent during the handshake.
+	 * Overrides have to call super, to keep the built-in capabilities.
+	 * 
+	 * @param connection
+	 *            the connection doing the handshake
+	 * @param remote
+	 *            what the other side offered, or agreed on
+	 */
+	protected void onExtensions(Connection<T> connection, HandshakeExtensions remote) {
+		PacketBuffer format = remote.get(HandshakeExtensions.FRAME_FORMAT);
+		if (format == null) return;
+		int version = format.readVarInt();
+		if (connection.getSide() == Side.Server) version = Math.min(version, frameFormat.version);
+		connection.setFrameFormat(FrameFormat.of(version));
+		connection.setStreams(remote.has(HandshakeExtensions.STREAMS));
+
+		PacketBuffer codecs = remote.get(HandshakeExtensions.COMPRESSION);
+		if (codecs == null || !usesCompression() || connection.getFrameFormat() != FrameFormat.V2) return;
+		try {
+			if (connection.getSide() == Side.Server) {
+				// The first codec of the client that is known here
+				for (int count = codecs.readVarInt(); count > 0; count--) {
+					int codec = codecs.readVarInt();
+					if (!Codecs.has(codec)) continue;
+					connection.setCompression(codec, compressionThreshold);
+					break;
+				}
+			} else connection.setCompression(codecs.readVarInt(), compressionThreshold);
+		} catch (UnkownIdentifierException e) {
+			throw new IllegalStateException("The server picked a codec the client doesn't know", e);
+		}
 	}
 
 	public void update() { update(Integer.MAX_VALUE); }
@@ -47,28 +421,178 @@ public abstract class Interface<T> implements Closeable {
 	public void update(int maxMessages) { update(maxMessages, false); }
 
 	/**
+	 * Hands the received messages to {@link #onMessages(List)}, the
+	 * chunks of streams to {@link #onChunk(MessageBuffer.Owned)}.
+	 * The messages are taken out of the queue in batches of up to {@link #getBatchSize()},
+	 * a chunk splits a batch so everything is handled in the order it arrived.
+	 * {@link PacketBuffer#isPooled() Pooled} messages are released once their handler returned,
+	 * a handler keeping one beyond that has to {@link PacketBuffer#retain() retain} it.
 	 * 
 	 * @param maxMessages
 	 *            Maximum number of messages to process
 	 * @param bWait
-	 *            (sleep) until a message arrived
+	 *            wait with the {@link #getWaitStrategy() wait strategy} until a message arrived
 	 * @throws InterruptedException
 	 */
 	public void update(int maxMessages, boolean bWait) {
 		// We don't need the server to accupy 100% of a CPU core
-		if (bWait) m_qMessagesIn.sleep();
+		if (bWait && m_batch.isEmpty()) waitStrategy.await(m_qMessagesIn, Long.MAX_VALUE);
 
 		int messageCount = 0;
-		while (messageCount < maxMessages && !m_qMessagesIn.empty()) {
-			// Grab the front message
-			MessageBuffer.Owned<T> msg = m_qMessagesIn.pop_front();
+		while (messageCount < maxMessages) {
+			// What a throwing handler left over comes first
+			if (m_batch.isEmpty() && m_qMessagesIn.drainTo(m_batch, Math.min(maxMessages - messageCount, batchSize)) == 0) break;
+			messageCount += dispatch(maxMessages - messageCount);
+		}
+	}
+
+	/**
+	 * Handles messages until the time is up, waiting with the {@link #getWaitStrategy() wait strategy}
+	 * whenever none are there. A batch that was started is finished, so handlers taking long
+	 * can overrun it by up to {@link #getBatchSize()} messages.
+	 * 
+	 * @param budget
+	 *            how long to handle and wait for messages
+	 * @return the number of messages handled
+	 */
+	public int update(Duration budget) {
+		long nanos = budget.toNanos();
+		long start = System.nanoTime();
+		int messageCount = 0;
+		long left;
+		while ((left = nanos - (System.nanoTime() - start)) > 0) {
+			if (m_batch.isEmpty() && m_qMessagesIn.drainTo(m_batch, batchSize) == 0) {
+				if (!waitStrategy.await(m_qMessagesIn, left)) break;
+				continue;
+			}
+			messageCount += dispatch(m_batch.size());
+		}
+		return messageCount;
+	}
+
+	/**
+	 * Hands up to {@code max} messages of the batch to the handlers, a chunk or a run of
+	 * messages at a time, and releases each of them once its handler returned
+	 * 
+	 * @return the number of messages handled
+	 */
+	private int dispatch(int max) {
+		int end = Math.min(max, m_batch.size());
+		// Everything before it was handed to a handler, even if that one threw
+		int handed = 0;
+		try {
+			while (handed < end) {
+				int start = handed;
+				MessageBuffer.Owned<T> first = m_batch.get(start);
+				if (first.getMessage() instanceof StreamChunk) {
+					handed = start + 1;
+					try {
+						onChunk(first);
+					} finally {
+						handled(start, handed);
+					}
+					continue;
+				}
+				if (!m_bBatchHandler) {
+					handed = start + 1;
+					try {
+						onMessage(first);
+					} finally {
+						handled(start, handed);
+					}
+					continue;
+				}
+				int run = start + 1;
+				while (run < end && !(m_batch.get(run).getMessage() instanceof StreamChunk)) run++;
+				// The handler got all of them, even if it threw
+				handed = run;
+				try {
+					onMessages(Collections.unmodifiableList(m_batch.subList(start, run)));
+				} finally {
+					handled(start, run);
+				}
+			}
+		} finally {
+			m_batch.subList(0, handed).clear();
+		}
+		return end;
+	}
 
-			// Pass to message handler
-			onMessage(msg);
+	/**
+	 * Releases the handled messages of the batch and takes them out of the inbound counts
+	 */
+	private void handled(int from, int to) {
+		for (int i = from; i < to; i++) {
+			MessageBuffer.Owned<T> msg = m_batch.get(i);
+			// Pooled messages go back once handled, handlers keeping one have to retain it
+			MessageBuffer<T> message = msg.getMessage();
+			if (message.isPooled()) message.release();
+			// Might resume reading
+			if (msg.getOrigin() != null) msg.getOrigin().inboundHandled(msg);
+		}
+	}
 
-			messageCount++;
+	/**
+	 * @return if the class or one of its superclasses below this one declares {@link #onMessages(List)}
+	 */
+	private static boolean overridesOnMessages(Class<?> type) {
+		for (; type != Interface.class; type = type.getSuperclass()) {
+			try {
+				type.getDeclaredMethod("onMessages", List.class);
+				return true;
+			} catch (NoSuchMethodException e) {}
 		}
+		return false;
+	}
+
+	/**
+	 * Called with the received messages in the order they arrived, at most
+	 * {@link #getBatchSize()} at once, so a handler can deal with all of them in one go,
+	 * e.g. store them with a single call. Unless it's overridden, {@link #update()} hands
+	 * every message to {@link #onMessage(MessageBuffer.Owned)} directly instead.
+	 * <p>
+	 * The list is only valid until it returns and can't be changed. The messages are
+	 * released afterwards, a handler keeping one has to {@link PacketBuffer#retain() retain} it.
+	 * If it throws, all of them count as handled.
+	 * 
+	 * @param msgs
+	 *            the messages with the connections they arrived on
+	 */
+	protected void onMessages(List<MessageBuffer.Owned<T>> msgs) {
+		for (int i = 0; i < msgs.size(); i++) onMessage(msgs.get(i));
 	}
 
 	protected abstract void onMessage(MessageBuffer.Owned<T> msg);
+
+	/**
+	 * Called once the bytes queued on a connection exceed the high watermark of its
+	 * {@link OutboundLimits}, and once they fell to the low watermark again. Producers
+	 * can hold back meanwhile, before the limits drop messages or block them.
+	 * <p>
+	 * Runs on the thread that crossed the watermark, a sender or one of the context.
+	 * Calls from different threads may overtake each other, {@link Connection#isWritable()}
+	 * is the current state.
+	 * 
+	 * @param connection
+	 *            the connection whose queue crossed a watermark
+	 * @param writable
+	 *            {@code false} above the high watermark, {@code true} back at the low one
+	 */
+	protected void onWritabilityChanged(Connection<T> connection, boolean writable) {}
+
+	/**
+	 * Called with every chunk of a {@link com.sunflow.message.MessageStream stream} the
+	 * other side sent, the chunks of one stream in order. Chunks are released once it
+	 * returns, a handler keeping one beyond that has to {@link PacketBuffer#retain() retain} it.
+	 * Unless overridden the chunks are dropped.
+	 * 
+	 * @param chunk
+	 *            the {@link StreamChunk} with the connection it arrived on
+	 */
+	protected void onChunk(MessageBuffer.Owned<T> chunk) {
+		MessageBuffer<T> message = chunk.getMessage();
+		// Once per stream, not for every chunk
+		if (!(message instanceof StreamChunk) || ((StreamChunk<T>) message).isFirst())
+			Logger.debug("Interface", "onChunk isn't overridden, dropped the stream of " + message);
+	}
 }
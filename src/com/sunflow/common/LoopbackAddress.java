@@ -0,0 +1,29 @@
+package com.sunflow.common;
+
+import java.net.SocketAddress;
+
+/**
+ * The name a server of the {@link LoopbackTransport} is reachable at
+ * from inside the same JVM
+ */
+public class LoopbackAddress extends SocketAddress {
+	private static final long serialVersionUID = 1L;
+
+	private final String name;
+
+	public LoopbackAddress(String name) {
+		if (name == null) throw new IllegalArgumentException("The name of a loopback address can't be null");
+		this.name = name;
+	}
+
+	public String getName() { return name; }
+
+	@Override
+	public boolean equals(Object obj) { return obj instanceof LoopbackAddress && ((LoopbackAddress) obj).name.equals(name); }
+
+	@Override
+	public int hashCode() { return name.hashCode(); }
+
+	@Override
+	public String toString() { return "loopback:" + name; }
+}
@@ -0,0 +1,251 @@
+package com.sunflow.common;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import com.sunflow.message.PacketBuffer;
+import com.sunflow.util.Logger;
+import com.sunflow.util.Side;
+
+/**
+ * A context connecting both ends in memory, without any socket or kernel involved.
+ * <p>
+ * Writes hand the encoded frame straight to the other end and complete on the
+ * writing thread, the reads it satisfies complete there as well.
+ */
+public abstract class LoopbackContext extends CommonContext {
+
+	/**
+	 * Servers of this JVM by the address they are bound to
+	 */
+	private static final Map<LoopbackAddress, LoopbackContext> servers = new ConcurrentHashMap<>();
+
+	public LoopbackContext(Side side, ThreadGroup threadGroup) { super(side, threadGroup); }
+
+	protected static LoopbackAddress loopbackAddress(SocketAddress endpoint) {
+		if (endpoint instanceof LoopbackAddress) return (LoopbackAddress) endpoint;
+		throw new IllegalArgumentException(endpoint + " isn't a " + LoopbackAddress.class.getSimpleName());
+	}
+
+	/**
+	 * Makes the server reachable at the address
+	 * 
+	 * @throws BindException
+	 *             if another server is bound to it already
+	 */
+	protected static void bind(LoopbackAddress address, LoopbackContext server) throws BindException {
+		if (servers.putIfAbsent(address, server) != null) throw new BindException(address + " is already in use");
+	}
+
+	protected static void unbind(LoopbackAddress address, LoopbackContext server) { servers.remove(address, server); }
+
+	/**
+	 * Connects to the server bound to the address, the server end gets handed to {@link #incoming(LoopbackSocket)}
+	 * 
+	 * @return the client end of the connection
+	 * @throws ConnectException
+	 *             if no server is bound to the address
+	 */
+	protected static LoopbackSocket connectTo(LoopbackAddress address) throws ConnectException {
+		LoopbackContext server = servers.get(address);
+		if (server == null || !server.acceptsConnections()) throw new ConnectException("Connection refused: " + address);
+		LoopbackSocket[] pair = LoopbackSocket.pair(address);
+		server.incoming(pair[1]);
+		return pair[0];
+	}
+
+	/**
+	 * @return if {@link #incoming(LoopbackSocket)} may be called
+	 */
+	protected boolean acceptsConnections() { return false; }
+
+	/**
+	 * Called with the server end of every new connection to this context
+	 */
+	protected void incoming(LoopbackSocket socket) {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " doesn't accept connections");
+	}
+
+	private LoopbackSocket loopbackSocket(ISocket socket) {
+		if (socket instanceof LoopbackSocket) return (LoopbackSocket) socket;
+		throw new IllegalArgumentException(socket + " can't be used by the " + getClass().getSimpleName());
+	}
+
+	/**
+	 * Writes never block, so this is the same as
+	 * {@link #async_write(ISocket, PacketBuffer, Consumer, Consumer)}
+	 */
+	@Override
+	public void write(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> successConsumer, Consumer<Exception> errorConsumer) {
+		async_write(socket, buffer, successConsumer, errorConsumer);
+	}
+
+	@Override
+	public void async_write(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> successConsumer, Consumer<Exception> errorConsumer) {
+		WriteRequest request;
+		LoopbackSocket peer;
+		try {
+			LoopbackSocket local = loopbackSocket(socket);
+			if (local.isClosed()) throw new SocketException("Socket is closed");
+			request = WriteRequest.encode(buffer, successConsumer, errorConsumer);
+			peer = local.peer();
+		} catch (IOException | RuntimeException e) {
+			errorConsumer.accept(e);
+			return;
+		}
+
+		synchronized (peer) {
+			for (ByteBuffer part : request.data) peer.inbound.writeBytes(part);
+		}
+		request.successConsumer.accept(request.size);
+		processReads(peer);
+	}
+
+	/**
+	 * Reads never block, so this is the same as
+	 * {@link #async_read(ISocket, PacketBuffer, Consumer, Consumer)}
+	 */
+	@Override
+	public void read(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> messageConsumer, Consumer<Exception> errorConsumer) {
+		async_read(socket, buffer, messageConsumer, errorConsumer);
+	}
+
+	@Override
+	public void async_read(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> messageConsumer, Consumer<Exception> errorConsumer) {
+		queueRead(socket, new ReadRequest(buffer, ReadRequest.FRAME, messageConsumer, errorConsumer));
+	}
+
+	/**
+	 * Reads never block, so this is the same as
+	 * {@link #async_read(ISocket, PacketBuffer, int, Consumer, Consumer)}
+	 */
+	@Override
+	public void read(ISocket socket, PacketBuffer buffer, int size,
+			Consumer<Integer> messageConsumer, Consumer<Exception> errorConsumer) {
+		async_read(socket, buffer, size, messageConsumer, errorConsumer);
+	}
+
+	@Override
+	public void async_read(ISocket socket, PacketBuffer buffer, int size,
+			Consumer<Integer> messageConsumer, Consumer<Exception> errorConsumer) {
+		queueRead(socket, new ReadRequest(buffer, size, messageConsumer, errorConsumer));
+	}
+
+	/**
+	 * Reads never block, so this is the same as
+	 * {@link #async_readAvailable(ISocket, PacketBuffer, Consumer, Consumer)}
+	 */
+	@Override
+	public void readAvailable(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> readConsumer, Consumer<Exception> errorConsumer) {
+		async_readAvailable(socket, buffer, readConsumer, errorConsumer);
+	}
+
+	@Override
+	public void async_readAvailable(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> readConsumer, Consumer<Exception> errorConsumer) {
+		queueRead(socket, new ReadRequest(buffer, ReadRequest.AVAILABLE, readConsumer, errorConsumer));
+	}
+
+	/**
+	 * Reads complete on the writing thread, a read loop waiting for a suspended
+	 * connection would stall the sender, so connections issue single reads here
+	 */
+	@Override
+	public boolean usesReadLoop() { return false; }
+
+	/**
+	 * Reads complete on the writing thread anyway, so this simply
+	 * issues the next read once something arrived
+	 */
+	@Override
+	public void async_readLoop(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> readConsumer, Consumer<Exception> errorConsumer) {
+		async_readAvailable(socket, buffer, readBytes -> {
+			readConsumer.accept(readBytes);
+			async_readLoop(socket, buffer, readConsumer, errorConsumer);
+		}, errorConsumer);
+	}
+
+	private void queueRead(ISocket socket, ReadRequest request) {
+		LoopbackSocket local;
+		try {
+			local = loopbackSocket(socket);
+			if (local.isClosed()) throw new SocketException("Connection closed");
+		} catch (IOException | RuntimeException e) {
+			request.errorConsumer.accept(e);
+			return;
+		}
+		synchronized (local) {
+			local.reads.offerLast(request);
+		}
+		// There might be enough data buffered already
+		processReads(local);
+	}
+
+	/**
+	 * Serves the queued reads from the inbound frames. Only one thread at a time drains
+	 * a socket, reads queued by the consumers are picked up by the running loop instead
+	 * of recursing into a new one.
+	 */
+	private void processReads(LoopbackSocket socket) {
+		synchronized (socket) {
+			if (socket.draining) return;
+			socket.draining = true;
+		}
+		boolean drained = false;
+		try {
+			while (true) {
+				ReadRequest request;
+				int readBytes;
+				Exception error = null;
+				synchronized (socket) {
+					request = socket.reads.peekFirst();
+					try {
+						readBytes = request == null ? -1 : request.tryRead(socket.inbound);
+					} catch (IOException | RuntimeException e) {
+						readBytes = -1;
+						error = e;
+						socket.reads.pollFirst();
+					}
+					// Nothing to read or not enough data yet, the next read or write continues
+					if (readBytes < 0) {
+						socket.draining = false;
+						drained = true;
+					} else {
+						socket.reads.pollFirst();
+						socket.inbound.discardSomeReadBytes();
+					}
+				}
+				if (error != null) fail(socket, request, error);
+				if (drained) return;
+				request.messageConsumer.accept(readBytes);
+			}
+		} finally {
+			// A consumer threw, so let the next caller take over
+			if (!drained) synchronized (socket) {
+				socket.draining = false;
+			}
+		}
+	}
+
+	private void fail(LoopbackSocket socket, ReadRequest request, Exception error) {
+		request.errorConsumer.accept(error);
+		try {
+			socket.close();
+		} catch (IOException e) {
+			Logger.error("LoopbackContext", "Failed to close " + socket, e);
+		}
+	}
+}
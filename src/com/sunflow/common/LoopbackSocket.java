@@ -0,0 +1,92 @@
+package com.sunflow.common;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import com.sunflow.message.PacketBuffer;
+
+/**
+ * One end of an in-memory connection of the {@link LoopbackTransport}.
+ * <p>
+ * Writing to one end appends the frame to the inbound buffer of the other end,
+ * which then serves its pending reads from it. Closing either end closes both.
+ */
+public class LoopbackSocket implements ISocket {
+
+	private final LoopbackAddress address;
+	private LoopbackSocket peer;
+
+	/**
+	 * Frames the peer wrote, but that weren't requested yet
+	 */
+	final PacketBuffer inbound;
+
+	final Deque<ReadRequest> reads;
+
+	/**
+	 * If a thread is currently serving the reads, requests queued meanwhile are picked up by it
+	 */
+	boolean draining;
+
+	private volatile boolean closed;
+
+	private LoopbackSocket(LoopbackAddress address) {
+		this.address = address;
+		this.inbound = new PacketBuffer();
+		this.reads = new ArrayDeque<>();
+	}
+
+	/**
+	 * @return the connected client and server end
+	 */
+	static LoopbackSocket[] pair(LoopbackAddress address) {
+		LoopbackSocket client = new LoopbackSocket(address);
+		LoopbackSocket server = new LoopbackSocket(address);
+		client.peer = server;
+		server.peer = client;
+		return new LoopbackSocket[] { client, server };
+	}
+
+	LoopbackSocket peer() { return peer; }
+
+	@Override
+	public boolean isConnected() { return !closed; }
+
+	@Override
+	public boolean isClosed() { return closed; }
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() { return address; }
+
+	@Override
+	public SocketAddress getLocalSocketAddress() { return address; }
+
+	/**
+	 * Closes both ends and fails the reads still waiting on them
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed = peer.closed = true;
+		SocketException error = new SocketException("Connection closed");
+		failReads(error);
+		peer.failReads(error);
+	}
+
+	private void failReads(Exception error) {
+		ReadRequest read;
+		while (true) {
+			synchronized (this) {
+				read = reads.pollFirst();
+			}
+			if (read == null) break;
+			read.errorConsumer.accept(error);
+		}
+	}
+
+	@Override
+	public String toString() { return "LoopbackSocket[" + address + "]"; }
+}
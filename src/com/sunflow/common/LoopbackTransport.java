@@ -0,0 +1,25 @@
+package com.sunflow.common;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+
+import com.sunflow.client.LoopbackClientContext;
+import com.sunflow.server.LoopbackServerContext;
+
+/**
+ * Connects clients and servers of the same JVM in memory, they reach each
+ * other by {@link LoopbackAddress}. Meant for embedding a server in the client
+ * and for measuring the message pipeline without any network in between.
+ */
+public class LoopbackTransport implements Transport {
+
+	public static final LoopbackTransport INSTANCE = new LoopbackTransport();
+
+	@Override
+	public CommonContext createServerContext(ThreadGroup threadGroup, SocketAddress endpoint) throws IOException {
+		return new LoopbackServerContext(threadGroup, endpoint);
+	}
+
+	@Override
+	public CommonContext createClientContext(ThreadGroup threadGroup) { return new LoopbackClientContext(threadGroup); }
+}
@@ -0,0 +1,421 @@
+package com.sunflow.common;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+import com.sunflow.message.PacketBuffer;
+import com.sunflow.util.Logger;
+import com.sunflow.util.MPSCQueue;
+import com.sunflow.util.Side;
+
+/**
+ * A context that multiplexes all of its connections with a single {@link Selector}.
+ * <p>
+ * The thread running this context is the event loop. Every read, write and callback
+ * of the connections registered here happens on it, so no threads are spawned per
+ * operation. Work coming from other threads is queued and handed to the loop.
+ */
+public abstract class NioContext extends CommonContext {
+
+	/**
+	 * Maximum amount of bytes pulled from a channel per read
+	 */
+	private static final int READ_CHUNK = 64 * 1024;
+
+	protected final Selector selector;
+
+	/**
+	 * Tasks that have been handed to the event loop from other threads, only it takes them out
+	 */
+	private final MPSCQueue<Runnable> pendingTasks;
+
+	private volatile Thread eventLoop;
+
+	public NioContext(Side side, ThreadGroup threadGroup) throws IOException {
+		super(side, threadGroup);
+		this.selector = Selector.open();
+		this.pendingTasks = new MPSCQueue<>();
+	}
+
+	/**
+	 * @return if the current thread is the one running this context
+	 */
+	public boolean inEventLoop() { return Thread.currentThread() == eventLoop; }
+
+	/**
+	 * Runs the task on the event loop, immediately if we already are on it
+	 */
+	public void execute(Runnable task) {
+		if (inEventLoop()) task.run();
+		else {
+			pendingTasks.push_back(task);
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Tasks are always run on the event loop, this keeps every callback
+	 * of a connection on the same thread
+	 */
+	@Override
+	public void post(String description, Runnable post) {
+		Logger.debug("NioContext", "Run Task[" + description + "]");
+		execute(post);
+	}
+
+	@Override
+	public void async_post(String description, Runnable post) {
+		Logger.debug("NioContext", "Queue Task[" + description + "]");
+		pendingTasks.push_back(post);
+		selector.wakeup();
+	}
+
+	/**
+	 * The event loop can't block, so this is the same as
+	 * {@link #async_write(ISocket, PacketBuffer, Consumer, Consumer)}
+	 */
+	@Override
+	public void write(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> successConsumer, Consumer<Exception> errorConsumer) {
+		async_write(socket, buffer, successConsumer, errorConsumer);
+	}
+
+	@Override
+	public void async_write(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> successConsumer, Consumer<Exception> errorConsumer) {
+		WriteRequest request;
+		try {
+			request = WriteRequest.encode(buffer, successConsumer, errorConsumer);
+		} catch (IOException e) {
+			errorConsumer.accept(e);
+			return;
+		}
+
+		execute(() -> {
+			ChannelState state;
+			try {
+				state = stateOf(socket);
+			} catch (IOException e) {
+				errorConsumer.accept(e);
+				return;
+			}
+			state.writes.offerLast(request);
+			processWrites(state);
+			updateInterest(state);
+		});
+	}
+
+	/**
+	 * The event loop can't block, so this is the same as
+	 * {@link #async_read(ISocket, PacketBuffer, Consumer, Consumer)}
+	 */
+	@Override
+	public void read(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> messageConsumer, Consumer<Exception> errorConsumer) {
+		async_read(socket, buffer, messageConsumer, errorConsumer);
+	}
+
+	@Override
+	public void async_read(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> messageConsumer, Consumer<Exception> errorConsumer) {
+		queueRead(socket, new ReadRequest(buffer, ReadRequest.FRAME, messageConsumer, errorConsumer));
+	}
+
+	/**
+	 * The event loop can't block, so this is the same as
+	 * {@link #async_read(ISocket, PacketBuffer, int, Consumer, Consumer)}
+	 */
+	@Override
+	public void read(ISocket socket, PacketBuffer buffer, int size,
+			Consumer<Integer> messageConsumer, Consumer<Exception> errorConsumer) {
+		async_read(socket, buffer, size, messageConsumer, errorConsumer);
+	}
+
+	@Override
+	public void async_read(ISocket socket, PacketBuffer buffer, int size,
+			Consumer<Integer> messageConsumer, Consumer<Exception> errorConsumer) {
+		queueRead(socket, new ReadRequest(buffer, size, messageConsumer, errorConsumer));
+	}
+
+	/**
+	 * The event loop can't block, so this is the same as
+	 * {@link #async_readAvailable(ISocket, PacketBuffer, Consumer, Consumer)}
+	 */
+	@Override
+	public void readAvailable(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> readConsumer, Consumer<Exception> errorConsumer) {
+		async_readAvailable(socket, buffer, readConsumer, errorConsumer);
+	}
+
+	@Override
+	public void async_readAvailable(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> readConsumer, Consumer<Exception> errorConsumer) {
+		queueRead(socket, new ReadRequest(buffer, ReadRequest.AVAILABLE, readConsumer, errorConsumer));
+	}
+
+	/**
+	 * Every connection is read on the event loop, a read loop waiting for a suspended
+	 * connection would hold up all the others, so connections issue single reads here
+	 */
+	@Override
+	public boolean usesReadLoop() { return false; }
+
+	/**
+	 * The event loop reads from every socket anyway, so this simply
+	 * issues the next read once something arrived
+	 */
+	@Override
+	public void async_readLoop(ISocket socket, PacketBuffer buffer,
+			Consumer<Integer> readConsumer, Consumer<Exception> errorConsumer) {
+		async_readAvailable(socket, buffer, readBytes -> {
+			readConsumer.accept(readBytes);
+			async_readLoop(socket, buffer, readConsumer, errorConsumer);
+		}, errorConsumer);
+	}
+
+	private void queueRead(ISocket socket, ReadRequest request) {
+		execute(() -> {
+			ChannelState state;
+			try {
+				state = stateOf(socket);
+			} catch (IOException e) {
+				request.errorConsumer.accept(e);
+				return;
+			}
+			state.reads.offerLast(request);
+			// There might be enough data buffered already
+			processReads(state);
+			updateInterest(state);
+		});
+	}
+
+	/**
+	 * Registers a connected channel with the selector of this context,
+	 * must be called on the event loop
+	 */
+	protected void register(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		channel.register(selector, 0, new ChannelState(channel));
+	}
+
+	/**
+	 * Called on the event loop once a channel failed and this context closed it
+	 */
+	protected void channelClosed(SocketChannel channel) {}
+
+	/**
+	 * Turns a key that was used to establish a connection into
+	 * one that handles its reads and writes
+	 */
+	protected void attach(SelectionKey key) {
+		key.attach(new ChannelState((SocketChannel) key.channel()));
+		key.interestOps(0);
+	}
+
+	private ChannelState stateOf(ISocket socket) throws IOException {
+		if (!(socket instanceof ChannelSocket)) throw new IllegalArgumentException(socket + " can't be used by the " + getClass().getSimpleName());
+		SocketChannel channel = ((ChannelSocket) socket).channel();
+		SelectionKey key = channel.keyFor(selector);
+		if (key == null) {
+			register(channel);
+			key = channel.keyFor(selector);
+		}
+		if (!key.isValid() || !(key.attachment() instanceof ChannelState)) throw new ClosedChannelException();
+		return (ChannelState) key.attachment();
+	}
+
+	@Override
+	public void run() {
+		markContextThread();
+		eventLoop = Thread.currentThread();
+		running = true;
+		while (running) {
+			runPendingTasks();
+			try {
+				selector.select();
+			} catch (IOException e) {
+				Logger.error("NioContext", "Selector failed", e);
+				break;
+			}
+			processSelectedKeys();
+		}
+
+		// Finish everything that was handed to us before closing
+		runPendingTasks();
+		closeChannels();
+
+		Logger.debug(Thread.currentThread() + "NioContext", "EXIT");
+	}
+
+	private void runPendingTasks() {
+		Runnable task;
+		while ((task = pendingTasks.pop_front()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				Logger.error("NioContext", "Task failed", e);
+			}
+		}
+	}
+
+	private void processSelectedKeys() {
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			try {
+				if (!key.isValid()) continue;
+				if (key.attachment() instanceof ChannelState) {
+					ChannelState state = (ChannelState) key.attachment();
+					if (key.isReadable()) onReadable(state);
+					if (key.isValid() && key.isWritable()) processWrites(state);
+					updateInterest(state);
+				} else processKey(key);
+			} catch (CancelledKeyException e) {
+				// The channel got closed while we were working on it
+			}
+		}
+	}
+
+	/**
+	 * Handles keys that don't belong to a connection yet, like accepting and connecting ones
+	 */
+	protected void processKey(SelectionKey key) {}
+
+	private void onReadable(ChannelState state) {
+		// A read taking whatever arrived gets it straight into its buffer, unless older bytes have to go first
+		ReadRequest direct = state.reads.peekFirst();
+		if (direct != null && (direct.size != ReadRequest.AVAILABLE || state.inbound.isReadable())) direct = null;
+
+		int readBytes;
+		try {
+			readBytes = (direct != null ? direct.buffer : state.inbound).writeBytes(state.channel, READ_CHUNK);
+		} catch (IOException e) {
+			failChannel(state, e);
+			return;
+		}
+		if (readBytes < 0) {
+			failChannel(state, new SocketException("Connection closed"));
+			return;
+		}
+		if (direct != null && readBytes > 0) {
+			state.reads.pollFirst();
+			direct.messageConsumer.accept(readBytes);
+		}
+		processReads(state);
+	}
+
+	private void processReads(ChannelState state) {
+		while (!state.reads.isEmpty()) {
+			ReadRequest request = state.reads.peekFirst();
+			int readBytes;
+			try {
+				readBytes = request.tryRead(state.inbound);
+			} catch (IOException | RuntimeException e) {
+				failChannel(state, e);
+				return;
+			}
+			// Not enough data yet, wait for the next read
+			if (readBytes < 0) break;
+
+			state.reads.pollFirst();
+			request.messageConsumer.accept(readBytes);
+		}
+		state.inbound.discardSomeReadBytes();
+	}
+
+	private void processWrites(ChannelState state) {
+		while (!state.writes.isEmpty()) {
+			WriteRequest request = state.writes.peekFirst();
+			try {
+				state.channel.write(request.data);
+			} catch (IOException e) {
+				failChannel(state, e);
+				return;
+			}
+			// The socket buffer is full, continue once the channel is writable again
+			if (request.hasRemaining()) break;
+
+			state.writes.pollFirst();
+			request.successConsumer.accept(request.size);
+		}
+	}
+
+	private void updateInterest(ChannelState state) {
+		SelectionKey key = state.channel.keyFor(selector);
+		if (key == null || !key.isValid()) return;
+		int ops = 0;
+		if (!state.reads.isEmpty()) ops |= SelectionKey.OP_READ;
+		if (!state.writes.isEmpty()) ops |= SelectionKey.OP_WRITE;
+		key.interestOps(ops);
+	}
+
+	private void failChannel(ChannelState state, Exception error) {
+		try {
+			state.channel.close();
+		} catch (IOException e) {
+			Logger.error("NioContext", "Failed to close " + state.channel, e);
+		}
+		channelClosed(state.channel);
+		ReadRequest read;
+		while ((read = state.reads.pollFirst()) != null) read.errorConsumer.accept(error);
+		WriteRequest write;
+		while ((write = state.writes.pollFirst()) != null) write.errorConsumer.accept(error);
+	}
+
+	/**
+	 * Closes every channel registered with this context and the selector itself
+	 */
+	protected void closeChannels() {
+		for (SelectionKey key : selector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				Logger.error("NioContext", "Failed to close " + key.channel(), e);
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			Logger.error("NioContext", "Failed to close selector", e);
+		}
+	}
+
+	@Override
+	public void close() {
+		Logger.debug("NioContext", "close()");
+		super.close();
+		selector.wakeup();
+	}
+
+	/**
+	 * Everything the event loop keeps track of for a single connection
+	 */
+	private static class ChannelState {
+		private final SocketChannel channel;
+
+		/**
+		 * Bytes that have been read from the channel but weren't requested yet
+		 */
+		private final PacketBuffer inbound;
+
+		private final Deque<ReadRequest> reads;
+		private final Deque<WriteRequest> writes;
+
+		private ChannelState(SocketChannel channel) {
+			this.channel = channel;
+			this.inbound = new PacketBuffer();
+			this.reads = new ArrayDeque<>();
+			this.writes = new ArrayDeque<>();
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.sunflow.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Consumer;
+
+import com.sunflow.message.PacketBuffer;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A pending read of a non-blocking context, served from the bytes
+ * a connection has buffered so far
+ */
+class ReadRequest {
+	final PacketBuffer buffer;
+
+	/**
+	 * Read a whole frame into the buffer
+	 */
+	static final int FRAME = -1;
+
+	/**
+	 * Move everything that arrived so far into the buffer
+	 */
+	static final int AVAILABLE = -2;
+
+	/**
+	 * The exact amount of bytes to read, {@link #FRAME} or {@link #AVAILABLE}
+	 */
+	final int size;
+
+	final Consumer<Integer> messageConsumer;
+	final Consumer<Exception> errorConsumer;
+
+	ReadRequest(PacketBuffer buffer, int size, Consumer<Integer> messageConsumer, Consumer<Exception> errorConsumer) {
+		this.buffer = buffer;
+		this.size = size;
+		this.messageConsumer = messageConsumer;
+		this.errorConsumer = errorConsumer;
+	}
+
+	/**
+	 * @return the amount of bytes read, or -1 if the inbound data isn't complete yet
+	 */
+	int tryRead(PacketBuffer inbound) throws IOException {
+		if (size >= 0) {
+			if (inbound.readableBytes() < size) return -1;
+			buffer.writeBytes(inbound, size);
+			return size;
+		}
+
+		if (size == AVAILABLE) {
+			int readBytes = inbound.readableBytes();
+			if (readBytes == 0) return -1;
+			buffer.writeBytes(inbound, readBytes);
+			return readBytes;
+		}
+
+		if (!inbound.isReadable()) return -1;
+		int start = inbound.readerIndex();
+		try {
+			return buffer.readFrame(new FrameInputStream(inbound));
+		} catch (EOFException e) {
+			// The frame is incomplete, so rewind and try again once more data arrived
+			inbound.readerIndex(start);
+			buffer.clear();
+			return -1;
+		}
+	}
+
+	/**
+	 * Reads from the bytes buffered so far, running out of them
+	 * throws an {@link EOFException} instead of blocking
+	 */
+	private static class FrameInputStream extends InputStream {
+		private final ByteBuf in;
+
+		private FrameInputStream(ByteBuf in) { this.in = in; }
+
+		@Override
+		public int read() throws IOException {
+			if (!in.isReadable()) throw new EOFException();
+			return in.readUnsignedByte();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (in.readableBytes() < len) throw new EOFException();
+			in.readBytes(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() { return in.readableBytes(); }
+	}
+}
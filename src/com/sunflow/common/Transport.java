@@ -0,0 +1,34 @@
+package com.sunflow.common;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+
+/**
+ * Creates the contexts that move the bytes of a {@link Connection}.
+ * <p>
+ * Without a transport an {@link Interface} talks TCP, with the I/O model
+ * of its {@link ContextType}. A transport replaces that byte pipe as a whole,
+ * the handshake and the framing on top of it stay the same.
+ */
+public interface Transport {
+
+	/**
+	 * @param threadGroup
+	 *            the group all threads of the context should be in
+	 * @param endpoint
+	 *            the address the server should be reachable at
+	 * @return a context accepting connections on the endpoint
+	 * @throws IOException
+	 *             if the endpoint can't be bound
+	 */
+	CommonContext createServerContext(ThreadGroup threadGroup, SocketAddress endpoint) throws IOException;
+
+	/**
+	 * @param threadGroup
+	 *            the group all threads of the context should be in
+	 * @return a context able to connect to an endpoint of this transport
+	 * @throws IOException
+	 *             if the context can't be created
+	 */
+	CommonContext createClientContext(ThreadGroup threadGroup) throws IOException;
+}
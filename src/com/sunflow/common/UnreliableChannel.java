@@ -0,0 +1,261 @@
+package com.sunflow.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.sunflow.message.PacketBuffer;
+import com.sunflow.util.Logger;
+import com.sunflow.util.Side;
+
+import io.netty.buffer.Unpooled;
+
+/**
+ * A datagram side channel next to the TCP connections, for messages that are
+ * worthless once they are late. Nothing gets resent or ordered, a message either
+ * arrives as a whole or not at all.
+ * <p>
+ * Every datagram starts with the token of the connection it belongs to, the sequence
+ * number of the message and the index and count of the fragment. Messages larger than
+ * {@link #MAX_DATAGRAM} are split into fragments and put back together by the receiver.
+ * <p>
+ * Datagrams are only taken from the host of the connection. Where they are sent to only
+ * changes with a hello from there, knowing a token doesn't let anyone else take over.
+ */
+public class UnreliableChannel implements Closeable {
+
+	/**
+	 * Size of a datagram including its header, small enough to
+	 * not be fragmented by IP on common paths
+	 */
+	public static final int MAX_DATAGRAM = 1200;
+
+	/**
+	 * Token, sequence number, fragment index and fragment count
+	 */
+	private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES + 1 + 1;
+
+	private static final int MAX_PAYLOAD = MAX_DATAGRAM - HEADER_SIZE;
+
+	private static final int MAX_FRAGMENTS = 255;
+
+	/**
+	 * Largest message that can be sent, anything above has to go over TCP
+	 */
+	public static final int MAX_MESSAGE = MAX_PAYLOAD * MAX_FRAGMENTS;
+
+	/**
+	 * Incomplete messages kept per peer, older ones are dropped
+	 */
+	private static final int MAX_PENDING = 32;
+
+	private final Side side;
+	private final DatagramChannel channel;
+	private final Map<Integer, Peer> peers;
+	private final Thread receiver;
+
+	private UnreliableChannel(Side side, ThreadGroup threadGroup, DatagramChannel channel) {
+		this.side = side;
+		this.channel = channel;
+		this.peers = new ConcurrentHashMap<>();
+		this.receiver = new Thread(threadGroup, this::receive, side + "_unreliable_receiver");
+		this.receiver.setDaemon(true);
+	}
+
+	/**
+	 * Binds a channel and starts receiving on it
+	 *
+	 * @param endpoint
+	 *            the local address to bind to, a port of {@code 0} picks an ephemeral one
+	 */
+	public static UnreliableChannel open(Side side, ThreadGroup threadGroup, SocketAddress endpoint) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.bind(endpoint);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		UnreliableChannel unreliable = new UnreliableChannel(side, threadGroup, channel);
+		unreliable.receiver.start();
+		Logger.info(side + "-Unreliable", "Bound to " + channel.getLocalAddress());
+		return unreliable;
+	}
+
+	public SocketAddress getLocalAddress() throws IOException { return channel.getLocalAddress(); }
+
+	/**
+	 * Starts accepting datagrams with the token
+	 *
+	 * @param remote
+	 *            where to send the datagrams to, its host is the only one datagrams are
+	 *            accepted from, the port is updated with the source of every hello
+	 * @param messageConsumer
+	 *            called on the receiving thread with the frame of every complete message
+	 * @return the peer, or {@code null} if another one has the token already
+	 */
+	public Peer register(int token, SocketAddress remote, Consumer<PacketBuffer> messageConsumer) {
+		Peer peer = new Peer(token, remote, messageConsumer);
+		return peers.putIfAbsent(token, peer) == null ? peer : null;
+	}
+
+	private void receive() {
+		ByteBuffer datagram = ByteBuffer.allocate(MAX_DATAGRAM);
+		while (channel.isOpen()) {
+			SocketAddress source;
+			try {
+				datagram.clear();
+				source = channel.receive(datagram);
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				Logger.error(side + "-Unreliable", "Receiving failed", e);
+				continue;
+			}
+			datagram.flip();
+			if (datagram.remaining() < HEADER_SIZE) continue;
+
+			Peer peer = peers.get(datagram.getInt());
+			// Whatever we don't know is dropped, that's the deal with datagrams
+			if (peer == null) continue;
+			try {
+				peer.receive(source, datagram);
+			} catch (RuntimeException e) {
+				Logger.error(side + "-Unreliable", "Dropped a broken message from " + source, e);
+			}
+		}
+		Logger.debug(side + "-Unreliable", "EXIT");
+	}
+
+	@Override
+	public void close() throws IOException {
+		peers.clear();
+		channel.close();
+	}
+
+	/**
+	 * The other end of the datagrams belonging to one connection
+	 */
+	public class Peer implements Closeable {
+		private final int token;
+		private volatile SocketAddress remote;
+		/**
+		 * The host of the connection, datagrams from anywhere else are dropped
+		 */
+		private final InetAddress host;
+		private final Consumer<PacketBuffer> messageConsumer;
+		private final AtomicInteger sequence = new AtomicInteger();
+
+		/**
+		 * Fragments of the messages that aren't complete yet, only touched by the receiving thread
+		 */
+		private final Map<Integer, Fragments> pending = new LinkedHashMap<Integer, Fragments>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Fragments> eldest) { return size() > MAX_PENDING; }
+		};
+
+		private Peer(int token, SocketAddress remote, Consumer<PacketBuffer> messageConsumer) {
+			this.token = token;
+			this.remote = remote;
+			this.host = remote instanceof InetSocketAddress ? ((InetSocketAddress) remote).getAddress() : null;
+			this.messageConsumer = messageConsumer;
+		}
+
+		public int getToken() { return token; }
+
+		/**
+		 * Sends the encoded message, split into as many datagrams as needed
+		 *
+		 * @throws IllegalArgumentException
+		 *             if the frame is larger than {@link UnreliableChannel#MAX_MESSAGE}
+		 */
+		public void send(PacketBuffer frame) throws IOException {
+			int size = frame.readableBytes();
+			if (size > MAX_MESSAGE) throw new IllegalArgumentException("A message of " + size + " bytes is too large to be sent unreliable, the maximum is " + MAX_MESSAGE);
+			int count = Math.max(1, (size + MAX_PAYLOAD - 1) / MAX_PAYLOAD);
+			int seq = sequence.getAndIncrement();
+
+			ByteBuffer datagram = ByteBuffer.allocate(MAX_DATAGRAM);
+			int offset = frame.readerIndex();
+			for (int index = 0; index < count; index++) {
+				int length = Math.min(MAX_PAYLOAD, size - index * MAX_PAYLOAD);
+				datagram.clear();
+				datagram.putInt(token).putInt(seq).put((byte) index).put((byte) count);
+				datagram.limit(HEADER_SIZE + length);
+				frame.getBytes(offset + index * MAX_PAYLOAD, datagram);
+				datagram.flip();
+				channel.send(datagram, remote);
+			}
+		}
+
+		/**
+		 * Sends a datagram without a message, so the other side learns
+		 * the address we are reachable at, even behind a NAT
+		 */
+		public void sendHello() throws IOException {
+			ByteBuffer datagram = ByteBuffer.allocate(HEADER_SIZE);
+			datagram.putInt(token).putInt(-1).put((byte) 0).put((byte) 0);
+			datagram.flip();
+			channel.send(datagram, remote);
+		}
+
+		private void receive(SocketAddress source, ByteBuffer datagram) {
+			if (host != null && !(source instanceof InetSocketAddress && host.equals(((InetSocketAddress) source).getAddress()))) return;
+
+			int seq = datagram.getInt();
+			int index = datagram.get() & 0xFF;
+			int count = datagram.get() & 0xFF;
+			// A hello carries no message, only where the other side is reachable at
+			if (count == 0) {
+				remote = source;
+				return;
+			}
+			if (index >= count) throw new IllegalStateException("Fragment " + index + " of " + count);
+
+			byte[] payload = new byte[datagram.remaining()];
+			datagram.get(payload);
+
+			if (count == 1) {
+				messageConsumer.accept(new PacketBuffer(Unpooled.wrappedBuffer(payload)));
+				return;
+			}
+
+			Fragments fragments = pending.get(seq);
+			if (fragments == null || fragments.parts.length != count) {
+				fragments = new Fragments(count);
+				pending.put(seq, fragments);
+			}
+			if (fragments.parts[index] != null) return;
+			fragments.parts[index] = payload;
+			if (++fragments.received < count) return;
+
+			pending.remove(seq);
+			messageConsumer.accept(new PacketBuffer(Unpooled.wrappedBuffer(fragments.parts)));
+		}
+
+		/**
+		 * Stops accepting datagrams with the token of this peer
+		 */
+		@Override
+		public void close() { peers.remove(token, this); }
+	}
+
+	private static class Fragments {
+		private final byte[][] parts;
+		private int received;
+
+		private Fragments(int count) { this.parts = new byte[count][]; }
+	}
+}
@@ -0,0 +1,45 @@
+package com.sunflow.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+import com.sunflow.message.PacketBuffer;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A pending write of a non-blocking context, holding the already encoded frame
+ */
+class WriteRequest {
+	/**
+	 * The parts of the frame, written with one gathering write
+	 */
+	final ByteBuffer[] data;
+	final int size;
+	final Consumer<Integer> successConsumer;
+	final Consumer<Exception> errorConsumer;
+
+	WriteRequest(ByteBuffer[] data, int size, Consumer<Integer> successConsumer, Consumer<Exception> errorConsumer) {
+		this.data = data;
+		this.size = size;
+		this.successConsumer = successConsumer;
+		this.errorConsumer = errorConsumer;
+	}
+
+	/**
+	 * Encodes the buffer right away, larger data isn't copied but written from
+	 * where it is, so the buffer must not be changed until the write completed
+	 */
+	static WriteRequest encode(PacketBuffer buffer, Consumer<Integer> successConsumer, Consumer<Exception> errorConsumer) throws IOException {
+		ByteBuf frame = buffer.frame();
+		return new WriteRequest(frame.nioBuffers(), frame.readableBytes(), successConsumer, errorConsumer);
+	}
+
+	/**
+	 * @return if parts of the frame haven't been written yet
+	 */
+	boolean hasRemaining() {
+		return data.length > 0 && data[data.length - 1].hasRemaining();
+	}
+}
@@ -0,0 +1,97 @@
+package com.sunflow.message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * A message sent to many connections at once. Every distinct frame is only encoded
+ * once and shared by all connections that need it, each of them gets a retained
+ * duplicate. Connections speaking {@link FrameFormat#V1} share one frame, those
+ * speaking {@link FrameFormat#V2} share one per id code, so only the few header
+ * bytes are encoded per connection.
+ * <p>
+ * The frames live until the last reference to this buffer is released.
+ * The message must not be changed while it's broadcast.
+ */
+public class BroadcastFrame extends PacketBuffer {
+
+	private final MessageBuffer<?> message;
+
+	/**
+	 * The frames encoded so far, by the format version followed by their header
+	 */
+	private final Map<ByteBuf, ByteBuf> frames = new ConcurrentHashMap<>();
+
+	/**
+	 * @param message
+	 *            what to broadcast, the broadcast holds a reference of its own to it
+	 */
+	public BroadcastFrame(MessageBuffer<?> message) {
+		// A reference count of its own, the message may have other owners
+		super(Unpooled.compositeBuffer(1).addComponent(true, message.retainedSlice(0, message.writerIndex())));
+		this.message = message;
+	}
+
+	/**
+	 * @param identifiers
+	 *            the codes of the id classes the connection sent so far, only for {@link FrameFormat#V2}
+	 * @return the frame of the message in the format, holding a reference of its own
+	 */
+	public ByteBuf retainedFrame(FrameFormat format, IdentifierDictionary identifiers) throws IOException {
+		PacketBuffer key = new PacketBuffer(Unpooled.buffer(1 + MessageBuffer.HEADER_CAPACITY));
+		key.writeByte(format.version);
+		if (format == FrameFormat.V2) message.writeHeaderV2(key, identifiers);
+		else message.writeHeader(key);
+		return frames.computeIfAbsent(key, this::encode).retainedDuplicate();
+	}
+
+	private ByteBuf encode(ByteBuf key) {
+		ByteBuf header = key.slice(1, key.readableBytes() - 1);
+		int dataSize = message.writerIndex();
+		if (dataSize <= MessageBuffer.COPY_THRESHOLD) {
+			ByteBuf frame = pooled(header.readableBytes() + dataSize);
+			frame.writeBytes(header);
+			frame.writeBytes(message, 0, dataSize);
+			return frame;
+		}
+		return Unpooled.wrappedBuffer(Unpooled.copiedBuffer(header), message.retainedSlice(0, dataSize));
+	}
+
+	@Override
+	public ByteBuf frame() throws IOException {
+		ByteBuf frame = retainedFrame(FrameFormat.V1, null);
+		// The cache holds the frame until this broadcast is released
+		frame.release();
+		return frame;
+	}
+
+	@Override
+	public ByteBuf retainedFrame() throws IOException { return retainedFrame(FrameFormat.V1, null); }
+
+	@Override
+	public int write(OutputStream out) throws IOException {
+		ByteBuf frame = frame();
+		int size = frame.readableBytes();
+		frame.getBytes(frame.readerIndex(), out, size);
+		return size;
+	}
+
+	@Override
+	public boolean release() { return releaseFrames(super.release()); }
+
+	@Override
+	public boolean release(int decrement) { return releaseFrames(super.release(decrement)); }
+
+	private boolean releaseFrames(boolean deallocated) {
+		if (deallocated) {
+			for (ByteBuf frame : frames.values()) frame.release();
+			frames.clear();
+		}
+		return deallocated;
+	}
+}
@@ -0,0 +1,46 @@
+package com.sunflow.message;
+
+import java.io.IOException;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Compresses the frames of one connection in one direction, once both sides agreed
+ * on the codec during the handshake. Every connection gets an instance per direction
+ * from {@link Codecs}, so it may keep its state, like buffers, between frames.
+ * Every frame is compressed on its own though, the other side has to be able to
+ * decompress it without knowing the frames before.
+ *
+ * @see FrameCompression
+ */
+public interface Codec {
+
+	/**
+	 * Compresses the readable bytes of the input
+	 *
+	 * @param in
+	 *            the frame, may be made of several components
+	 * @param out
+	 *            a heap buffer the compressed bytes are appended to
+	 */
+	void compress(ByteBuf in, ByteBuf out) throws IOException;
+
+	/**
+	 * Decompresses the readable bytes of the input
+	 *
+	 * @param in
+	 *            what {@link #compress(ByteBuf, ByteBuf)} made of a frame
+	 * @param out
+	 *            a heap buffer the frame is appended to, it's grown as the frame comes out
+	 * @param size
+	 *            the size of the frame the other side claims, exactly that many bytes are
+	 *            expected, any other amount fails
+	 */
+	void decompress(ByteBuf in, ByteBuf out, int size) throws IOException;
+
+	/**
+	 * Frees what the codec holds once the connection is closed,
+	 * it fails from then on
+	 */
+	void close();
+}
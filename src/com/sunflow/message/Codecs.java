@@ -0,0 +1,70 @@
+package com.sunflow.message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import com.sunflow.error.UnkownIdentifierException;
+
+/**
+ * The {@link Codec}s a connection can compress its frames with, by the id both
+ * sides know them by. The client offers all of them during the handshake, the
+ * server picks the one the client prefers among those it knows.
+ * <p>
+ * {@link #DEFLATE} is always there. A codec registered later is preferred over
+ * those registered before, registering an id again replaces its codec.
+ */
+public final class Codecs {
+
+	/**
+	 * {@link DeflateCodec} with {@link java.util.zip.Deflater#BEST_SPEED}
+	 */
+	public static final int DEFLATE = 1;
+
+	private static final Map<Integer, Supplier<Codec>> factories = new LinkedHashMap<>();
+
+	static {
+		register(DEFLATE, DeflateCodec::new);
+	}
+
+	private Codecs() {}
+
+	/**
+	 * Makes a codec available, only affects handshakes done afterwards
+	 *
+	 * @param id
+	 *            the id both sides know the codec by
+	 * @param factory
+	 *            creates an instance per connection and direction
+	 */
+	public static synchronized void register(int id, Supplier<Codec> factory) {
+		if (id <= 0) throw new IllegalArgumentException("Codec id " + id);
+		factories.remove(id);
+		factories.put(id, factory);
+	}
+
+	public static synchronized boolean has(int id) { return factories.containsKey(id); }
+
+	/**
+	 * @return the ids of all codecs, the preferred first
+	 */
+	public static synchronized List<Integer> ids() {
+		List<Integer> ids = new ArrayList<>(factories.keySet());
+		Collections.reverse(ids);
+		return ids;
+	}
+
+	/**
+	 * @return a new instance of the codec
+	 * @throws UnkownIdentifierException
+	 *             if no codec has the id
+	 */
+	public static synchronized Codec create(int id) throws UnkownIdentifierException {
+		Supplier<Codec> factory = factories.get(id);
+		if (factory == null) throw new UnkownIdentifierException("Codec " + id);
+		return factory.get();
+	}
+}
@@ -0,0 +1,125 @@
+package com.sunflow.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Raw deflate with {@link Deflater} and {@link Inflater}, reset for every frame.
+ * Both are only created when first needed, their native state takes a few hundred
+ * KB, which connections that never send anything large don't need to pay for.
+ * <p>
+ * The connection closes the codec while its frames might still be read or
+ * written, so the methods are synchronized. The lock is never contended otherwise.
+ */
+public class DeflateCodec implements Codec {
+
+	/**
+	 * How much room the output gets at least per call of the deflater
+	 */
+	private static final int OUTPUT_STEP = 4096;
+
+	private final int level;
+
+	/**
+	 * Catches output beyond the size of a frame
+	 */
+	private final byte[] probe = new byte[1];
+
+	private Deflater deflater;
+	private Inflater inflater;
+	private boolean closed;
+
+	/**
+	 * Uses {@link Deflater#BEST_SPEED}, higher levels take many times as long for
+	 * little less bytes, which a connection rarely gains anything from
+	 */
+	public DeflateCodec() { this(Deflater.BEST_SPEED); }
+
+	/**
+	 * @param level
+	 *            0-9, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+	 */
+	public DeflateCodec(int level) { this.level = level; }
+
+	@Override
+	public synchronized void compress(ByteBuf in, ByteBuf out) throws IOException {
+		if (closed) throw new IOException("Codec is closed");
+		if (deflater == null) deflater = new Deflater(level, true);
+		deflater.reset();
+
+		// Large frames are a header and the data where it is, they are deflated part by part
+		for (ByteBuffer part : in.nioBuffers()) {
+			setInput(deflater, part);
+			while (!deflater.needsInput()) deflate(out);
+		}
+		in.skipBytes(in.readableBytes());
+		deflater.finish();
+		while (!deflater.finished()) deflate(out);
+	}
+
+	private void deflate(ByteBuf out) {
+		out.ensureWritable(OUTPUT_STEP);
+		int written = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes());
+		out.writerIndex(out.writerIndex() + written);
+	}
+
+	@Override
+	public synchronized void decompress(ByteBuf in, ByteBuf out, int size) throws IOException {
+		if (closed) throw new IOException("Codec is closed");
+		if (inflater == null) inflater = new Inflater(true);
+		inflater.reset();
+
+		int end = out.writerIndex() + size;
+		try {
+			for (ByteBuffer part : in.nioBuffers()) {
+				setInput(inflater, part);
+				while (out.writerIndex() < end) {
+					// Room is only made for what actually comes out, whatever size the other side claims
+					out.ensureWritable(Math.min(OUTPUT_STEP, end - out.writerIndex()));
+					int read = inflater.inflate(out.array(), out.arrayOffset() + out.writerIndex(), Math.min(out.writableBytes(), end - out.writerIndex()));
+					out.writerIndex(out.writerIndex() + read);
+					if (read == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary())) break;
+				}
+			}
+			if (out.writerIndex() != end) throw new IOException("Compressed frame holds " + (size - end + out.writerIndex()) + " of " + size + " bytes");
+			// The data has to end right there, not be cut off
+			if (inflater.inflate(probe) > 0 || !inflater.finished()) throw new IOException("Compressed frame holds more than " + size + " bytes");
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed frame", e);
+		}
+		in.skipBytes(in.readableBytes());
+	}
+
+	private static void setInput(Deflater deflater, ByteBuffer part) {
+		if (part.hasArray()) deflater.setInput(part.array(), part.arrayOffset() + part.position(), part.remaining());
+		else deflater.setInput(copy(part));
+	}
+
+	private static void setInput(Inflater inflater, ByteBuffer part) {
+		if (part.hasArray()) inflater.setInput(part.array(), part.arrayOffset() + part.position(), part.remaining());
+		else inflater.setInput(copy(part));
+	}
+
+	/**
+	 * Java 8 can't deflate direct buffers, their bytes are copied
+	 */
+	private static byte[] copy(ByteBuffer part) {
+		byte[] bytes = new byte[part.remaining()];
+		part.get(bytes);
+		return bytes;
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+		if (deflater != null) deflater.end();
+		if (inflater != null) inflater.end();
+		deflater = null;
+		inflater = null;
+	}
+}
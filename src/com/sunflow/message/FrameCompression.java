@@ -0,0 +1,106 @@
+package com.sunflow.message;
+
+import java.io.IOException;
+
+import com.sunflow.error.netty.DecoderException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Compressed {@link FrameFormat#V2} frames, for connections that agreed on a {@link Codec}
+ * during the handshake. A frame that is large enough is sent compressed in place of itself,
+ * if that makes it smaller at all:
+ * <p>
+ * the byte {@link MessageBuffer#V2_COMPRESSED}, varint size of the compressed frame,
+ * varint size of the frame, then the compressed frame, header included.
+ * <p>
+ * The first byte is a {@link FrameFormat#V2} header with a type no id has, peers that
+ * didn't agree on compression fail on it instead of misreading it.
+ */
+public final class FrameCompression {
+
+	/**
+	 * The most the byte and both sizes take
+	 */
+	private static final int HEADER_SIZE = 1 + 5 + 5;
+
+	/**
+	 * The most room a frame gets before it's decompressed, it grows with what comes out
+	 */
+	private static final int PRESIZE = 64 * 1024;
+
+	private FrameCompression() {}
+
+	/**
+	 * @param frame
+	 *            the frame to send, released if it's replaced
+	 * @return the compressed frame, or the frame if compressing doesn't make it smaller.
+	 *         It has to be released once written.
+	 */
+	public static ByteBuf compress(ByteBuf frame, Codec codec) throws IOException {
+		int size = frame.readableBytes();
+		ByteBuf compressed = PacketBuffer.getPooledAllocator().heapBuffer(size);
+		try {
+			codec.compress(frame.duplicate(), compressed);
+		} catch (IOException | RuntimeException e) {
+			compressed.release();
+			throw e;
+		}
+		// Data that doesn't compress goes as it is, rather than growing
+		if (compressed.readableBytes() + HEADER_SIZE >= size) {
+			compressed.release();
+			return frame;
+		}
+
+		PacketBuffer header = PacketBuffer.pooled(HEADER_SIZE);
+		header.writeByte(MessageBuffer.V2_COMPRESSED);
+		header.writeVarInt(compressed.readableBytes());
+		header.writeVarInt(size);
+		frame.release();
+		return Unpooled.wrappedBuffer(header, compressed);
+	}
+
+	/**
+	 * @return if a compressed frame starts at the reader index of the buffer
+	 */
+	public static boolean isCompressed(ByteBuf in) { return in.isReadable() && in.getUnsignedByte(in.readerIndex()) == MessageBuffer.V2_COMPRESSED; }
+
+	/**
+	 * Takes the compressed frame at the reader index out of the buffer, once it arrived as a whole
+	 *
+	 * @param maxFrameSize
+	 *            the most either size may claim, checked as soon as they arrived,
+	 *            before the frame is waited for
+	 * @return the frame, from the pool, or {@code null} if the buffer doesn't hold all of it yet
+	 * @throws IOException
+	 *             if the frame can't be decompressed or is too large, the connection
+	 *             can't be recovered then
+	 */
+	public static PacketBuffer decompress(PacketBuffer in, Codec codec, int maxFrameSize) throws IOException {
+		int start = in.readerIndex();
+		int index = MessageBuffer.skipVarInt(in, start + 1);
+		if (index >= 0) index = MessageBuffer.skipVarInt(in, index);
+		if (index < 0) return null;
+
+		in.skipBytes(1);
+		int compressedSize = in.readVarInt();
+		int size = in.readVarInt();
+		if (compressedSize < 0 || size < 0) throw new DecoderException("Negative size of compressed frame " + compressedSize + "/" + size);
+		if (compressedSize > maxFrameSize || size > maxFrameSize)
+			throw new DecoderException("Compressed frame of " + compressedSize + "/" + size + " bytes exceeds the maximum frame size " + maxFrameSize);
+		if (in.readableBytes() < compressedSize) {
+			in.readerIndex(start);
+			return null;
+		}
+
+		PacketBuffer frame = PacketBuffer.pooled(Math.min(size, PRESIZE));
+		try {
+			codec.decompress(in.readSlice(compressedSize), frame, size);
+		} catch (IOException | RuntimeException e) {
+			frame.release();
+			throw e;
+		}
+		return frame;
+	}
+}
@@ -0,0 +1,32 @@
+package com.sunflow.message;
+
+/**
+ * The layouts a message can be framed with on the wire, both sides
+ * agree on one during the handshake
+ */
+public enum FrameFormat {
+	/**
+	 * A type tag, the id (enums and {@link IIdentifier}s with the name of their class)
+	 * and the data size as int. Spoken by every version.
+	 */
+	V1(1),
+	/**
+	 * One byte of type and flags, compact ids and the data size as varint. Enums and
+	 * {@link IIdentifier}s are sent as a small code, the name of their class only
+	 * goes over the connection the first time it's used.
+	 */
+	V2(2);
+
+	public final int version;
+
+	private FrameFormat(int version) { this.version = version; }
+
+	/**
+	 * @return the newest format not newer than the specified version
+	 */
+	public static FrameFormat of(int version) {
+		FrameFormat format = V1;
+		for (FrameFormat f : values()) if (f.version <= version) format = f;
+		return format;
+	}
+}
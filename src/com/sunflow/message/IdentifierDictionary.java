@@ -0,0 +1,141 @@
+package com.sunflow.message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sunflow.error.UnkownClassNameException;
+import com.sunflow.error.UnkownIdentifierException;
+
+/**
+ * The codes one direction of a connection uses instead of the names of
+ * enum and {@link IIdentifier} classes. The writing side defines a code the
+ * first time it sends a class, the reading side learns it from that message.
+ * <p>
+ * The reading side resolves every class only once, decoding an id afterwards
+ * doesn't need the class loader anymore.
+ * <p>
+ * Not thread safe, every direction is only encoded and decoded by one thread at a time.
+ */
+public class IdentifierDictionary {
+
+	/**
+	 * The codes of the classes already sent, used by the writing side
+	 */
+	private final Map<Class<?>, Integer> codes = new HashMap<>();
+
+	/**
+	 * The classes by code, used by the reading side
+	 */
+	private final List<Entry> entries = new ArrayList<>();
+
+	/**
+	 * The classes by name, so every name is only looked up once
+	 */
+	private final Map<String, Entry> resolved = new HashMap<>();
+
+	/**
+	 * @return the code of the class, or -1 if it wasn't sent yet
+	 */
+	int codeOf(Class<?> clazz) {
+		Integer code = codes.get(clazz);
+		return code == null ? -1 : code;
+	}
+
+	/**
+	 * Assigns the next code to the class, the message it's sent with has to carry its name
+	 */
+	int define(Class<?> clazz) {
+		int code = codes.size();
+		codes.put(clazz, code);
+		return code;
+	}
+
+	/**
+	 * Learns a code the other side defined
+	 */
+	Entry define(int code, String name) throws IOException {
+		if (code != entries.size()) throw new UnkownIdentifierException("Code " + code + " for " + name + " is out of order, expected " + entries.size());
+		Entry entry = resolve(name);
+		entries.add(entry);
+		return entry;
+	}
+
+	/**
+	 * @return the class the other side defined the code for
+	 */
+	Entry entryOf(int code) throws UnkownIdentifierException {
+		if (code < 0 || code >= entries.size()) throw new UnkownIdentifierException("Code " + code + " wasn't defined");
+		return entries.get(code);
+	}
+
+	/**
+	 * @return the class with the name, it's only loaded the first time
+	 */
+	Entry resolve(String name) throws UnkownClassNameException {
+		Entry entry = resolved.get(name);
+		if (entry == null) {
+			try {
+				entry = new Entry(Class.forName(name));
+			} catch (ClassNotFoundException | LinkageError e) {
+				throw new UnkownClassNameException("ClassName: '" + name + "'", e);
+			}
+			resolved.put(name, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * A resolved id class
+	 */
+	static final class Entry {
+		final Class<?> clazz;
+
+		/**
+		 * The constants of an enum class, {@link Class#getEnumConstants()} copies them on every call
+		 */
+		private final Object[] constants;
+
+		/**
+		 * Creates the instances of an {@link IIdentifier} class
+		 */
+		private final IdentifierRegistry.Factory factory;
+
+		/**
+		 * The last instance handed out and an unused one the next id is read into, if the factory allows sharing
+		 */
+		private IIdentifier last, spare;
+
+		private Entry(Class<?> clazz) throws UnkownClassNameException {
+			this.clazz = clazz;
+			this.constants = clazz.getEnumConstants();
+			this.factory = IIdentifier.class.isAssignableFrom(clazz) ? IdentifierRegistry.factoryOf(clazz) : null;
+		}
+
+		/**
+		 * Reads an id of the {@link IIdentifier} class
+		 */
+		IIdentifier identifier(PacketBuffer in) throws IOException {
+			if (factory == null) throw new UnkownClassNameException(clazz.getName() + " isn't an IIdentifier");
+			IIdentifier id = spare != null ? spare : factory.create();
+			spare = null;
+			id.read(in);
+			if (!factory.shared) return id;
+			if (id.equals(last)) {
+				// The same id as before, the instance is kept for the next one
+				spare = id;
+				return last;
+			}
+			last = id;
+			return id;
+		}
+
+		Object constant(int ordinal) throws IOException {
+			if (constants == null) throw new UnkownClassNameException(clazz.getName() + " isn't an enum");
+			if (ordinal < 0 || ordinal >= constants.length) throw new UnkownIdentifierException(clazz.getName() + " has no constant " + ordinal);
+			return constants[ordinal];
+		}
+	}
+}
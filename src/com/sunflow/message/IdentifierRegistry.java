@@ -0,0 +1,127 @@
+package com.sunflow.message;
+
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import com.sunflow.error.UnkownClassNameException;
+
+/**
+ * Creates the {@link IIdentifier}s of received messages. Every class is only looked at
+ * once, afterwards a new instance costs as much as calling its constructor.
+ * <p>
+ * Classes that aren't registered are created with their constructor with the fewest
+ * parameters, which get {@code null} or zero. Registering a factory like
+ * {@code MyId::new} avoids the reflection altogether and allows sharing instances.
+ */
+public final class IdentifierRegistry {
+
+	private static final Map<Class<?>, Factory> factories = new ConcurrentHashMap<>();
+
+	private IdentifierRegistry() {}
+
+	/**
+	 * Sets how instances of the class are created, has to be called before the first message with it is received
+	 *
+	 * @param factory
+	 *            creates an instance the id is read into
+	 */
+	public static <I extends IIdentifier> void register(Class<I> idClazz, Supplier<I> factory) {
+		register(idClazz, factory, false);
+	}
+
+	/**
+	 * Sets how instances of the class are created, has to be called before the first message with it is received
+	 *
+	 * @param factory
+	 *            creates an instance the id is read into
+	 * @param shared
+	 *            if messages of the same connection may get the same instance as long as the
+	 *            ids are {@link Object#equals(Object) equal}, only if the instances aren't changed afterwards
+	 */
+	public static <I extends IIdentifier> void register(Class<I> idClazz, Supplier<I> factory, boolean shared) {
+		factories.put(idClazz, new Factory(factory, shared));
+	}
+
+	/**
+	 * @return how instances of the class are created
+	 * @throws UnkownClassNameException
+	 *             if the class has no constructor that can be called
+	 */
+	static Factory factoryOf(Class<?> idClazz) throws UnkownClassNameException {
+		Factory factory = factories.get(idClazz);
+		if (factory != null) return factory;
+		if (!IIdentifier.class.isAssignableFrom(idClazz)) throw new UnkownClassNameException(idClazz.getName() + " isn't an IIdentifier");
+		factory = new Factory(constructorOf(idClazz), false);
+		Factory previous = factories.putIfAbsent(idClazz, factory);
+		return previous != null ? previous : factory;
+	}
+
+	/**
+	 * Binds the constructor with the fewest parameters, like {@link MessageBuffer} always did
+	 */
+	private static Supplier<IIdentifier> constructorOf(Class<?> idClazz) throws UnkownClassNameException {
+		Constructor<?> ctor = null;
+		for (Constructor<?> c : idClazz.getDeclaredConstructors()) {
+			if (ctor == null || c.getParameterCount() < ctor.getParameterCount()) ctor = c;
+		}
+		if (ctor == null) throw new UnkownClassNameException(idClazz.getName() + " has no constructor");
+
+		MethodHandle handle;
+		try {
+			ctor.setAccessible(true);
+			handle = MethodHandles.lookup().unreflectConstructor(ctor);
+		} catch (IllegalAccessException | RuntimeException e) {
+			throw new UnkownClassNameException(idClazz.getName() + " can't be instantiated", e);
+		}
+		if (ctor.getParameterCount() == 0 && Modifier.isPublic(idClazz.getModifiers()) && Modifier.isPublic(ctor.getModifiers())) {
+			// Spun into a class like a constructor reference, as fast as calling the constructor directly
+			try {
+				@SuppressWarnings("unchecked")
+				Supplier<IIdentifier> supplier = (Supplier<IIdentifier>) LambdaMetafactory.metafactory(MethodHandles.lookup(), "get",
+						MethodType.methodType(Supplier.class), MethodType.methodType(Object.class), handle, MethodType.methodType(idClazz))
+						.getTarget().invokeExact();
+				return supplier;
+			} catch (Throwable t) {
+				// Not accessible from here after all, the handle works anyway
+			}
+		}
+		Class<?>[] types = ctor.getParameterTypes();
+		if (types.length > 0) {
+			Object[] defaults = new Object[types.length];
+			for (int i = 0; i < types.length; i++) {
+				if (types[i].isPrimitive()) defaults[i] = Array.get(Array.newInstance(types[i], 1), 0);
+			}
+			handle = MethodHandles.insertArguments(handle, 0, defaults);
+		}
+		MethodHandle exact = handle.asType(MethodType.methodType(IIdentifier.class));
+		return () -> {
+			try {
+				return (IIdentifier) exact.invokeExact();
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new IllegalStateException("Instantiating " + idClazz.getName() + " failed", t);
+			}
+		};
+	}
+
+	static final class Factory {
+		private final Supplier<? extends IIdentifier> supplier;
+		final boolean shared;
+
+		private Factory(Supplier<? extends IIdentifier> supplier, boolean shared) {
+			this.supplier = supplier;
+			this.shared = shared;
+		}
+
+		IIdentifier create() { return supplier.get(); }
+	}
+}
@@ -1,17 +1,13 @@
 package com.sunflow.message;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
 import java.util.Date;
 import java.util.UUID;
-import java.util.function.Supplier;
 
 import com.sunflow.common.Connection;
 import com.sunflow.error.UnkownClassNameException;
@@ -20,6 +16,7 @@ import com.sunflow.error.netty.DecoderException;
 import com.sunflow.util.Logger;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 
 public class MessageBuffer<T> extends PacketBuffer {
 	private static final byte T_BOOL = 100;
@@ -36,22 +33,79 @@ public class MessageBuffer<T> extends PacketBuffer {
 	private static final byte T_ENUM = 111;
 	private static final byte T_GEN = 112;
 
+	/**
+	 * The type of a {@link FrameFormat#V2} header, as offset from {@link #T_BOOL}
+	 */
+	private static final int V2_TYPE = 0x0F;
+
+	/**
+	 * Set in a {@link FrameFormat#V2} header if the name of the id class follows its code
+	 */
+	private static final int V2_DEFINE = 0x10;
+
+	/**
+	 * Set in a {@link FrameFormat#V2} header if the data is a chunk of a {@link MessageStream},
+	 * the number of the stream follows the id
+	 */
+	private static final int V2_STREAM = 0x20;
+
+	/**
+	 * Set in the header of the last chunk of a stream
+	 */
+	private static final int V2_LAST = 0x40;
+
+	/**
+	 * Set in the header of the last chunk of a stream the sender couldn't read to its end
+	 */
+	private static final int V2_ABORT = 0x80;
+
+	/**
+	 * The first byte of a compressed {@link FrameFormat#V2} frame, a type no id has
+	 * 
+	 * @see FrameCompression
+	 */
+	static final int V2_COMPRESSED = V2_TYPE;
+
 	public static class Owned<T> {
 
 		private Connection<T> remote;
 		private MessageBuffer<T> msg;
 
+		/**
+		 * The connection it arrived on, for clients as well
+		 */
+		private Connection<T> origin;
+
+		/**
+		 * What it counts against the {@link com.sunflow.util.InboundLimits} until handled
+		 */
+		private int size;
+
 		public Owned(Connection<T> connection, MessageBuffer<T> m_msgTemporaryIn) {
 			this.remote = connection;
 			this.msg = m_msgTemporaryIn;
 		}
 
+		/**
+		 * @param origin
+		 *            the connection it arrived on, it's told once the message is handled
+		 */
+		public Owned(Connection<T> connection, MessageBuffer<T> msg, Connection<T> origin) {
+			this(connection, msg);
+			this.origin = origin;
+			this.size = msg.writerIndex();
+		}
+
 		@Override
 		public String toString() { return getMessage().toString(); }
 
 		public Connection<T> getRemote() { return remote; }
 
 		public MessageBuffer<T> getMessage() { return msg; }
+
+		public Connection<T> getOrigin() { return origin; }
+
+		public int getSize() { return size; }
 	}
 
 	@Override
@@ -67,10 +121,34 @@ public class MessageBuffer<T> extends PacketBuffer {
 
 	public MessageBuffer(ByteBuf wrapped) { super(wrapped); }
 
+	/**
+	 * Creates a message from the pool, {@code MessageBuffer::createPooled} as message factory
+	 * makes a server or client read into pooled messages
+	 * 
+	 * @see PacketBuffer#pooled()
+	 */
+	public static <E> MessageBuffer<E> createPooled() { return new MessageBuffer<>(getPooledAllocator().heapBuffer()); }
+
+	/**
+	 * @see #createPooled()
+	 */
+	public static <E> MessageBuffer<E> createPooled(E id) { MessageBuffer<E> msg = createPooled(); msg.setID(id); return msg; }
+
 	public T getID() { return id; }
 
 	public MessageBuffer<T> setID(T id) { this.id = id; return this; }
 
+	/**
+	 * Data up to this size is copied behind the header, one write of a few KB is
+	 * cheaper than two. Larger data is written from where it is.
+	 */
+	static final int COPY_THRESHOLD = 8 * 1024;
+
+	/**
+	 * Room for the header of a {@link FrameFormat#V2} frame, long ids grow it
+	 */
+	static final int HEADER_CAPACITY = 16;
+
 	/**
 	 * Write this message out to the specified stream
 	 * 
@@ -78,43 +156,142 @@ public class MessageBuffer<T> extends PacketBuffer {
 	 */
 	@Override
 	public int write(OutputStream out) throws IOException {
-		BufferedOutputStream bout = new BufferedOutputStream(out);
-
-		Logger.net("MessageBuffer", "write header to outputstream");
-//		System.out.println("--- ---");
-		int headerSize = writeHeader(bout);
-
-		Logger.net("MessageBuffer", "write data to outputstream");
-//		System.out.println("---");
-		int dataSize = writeData(bout);
+		ByteBuf frame = frame();
+		int size = frame.readableBytes();
+		frame.getBytes(frame.readerIndex(), out, size);
+		return size;
+	}
 
-		Logger.net("MessageBuffer", "headerSize: " + headerSize + ", dataSize: " + dataSize);
+	/**
+	 * The header in a buffer of its own, small data is copied behind it.
+	 * Larger data stays where it is, the frame shares the memory of this message.
+	 */
+	@Override
+	public ByteBuf frame() throws IOException { return frame(false); }
 
-		bout.flush();
+	@Override
+	public ByteBuf retainedFrame() throws IOException { return frame(true); }
 
-		return headerSize + dataSize;
+	private ByteBuf frame(boolean retained) throws IOException {
+		int dataSize = writerIndex();
+		boolean copy = dataSize <= COPY_THRESHOLD;
+		PacketBuffer header = new PacketBuffer(Unpooled.buffer(copy ? HEADER_CAPACITY + dataSize : HEADER_CAPACITY));
+		writeHeader(header);
+		if (copy) {
+			header.writeBytes(this, 0, dataSize);
+			return header;
+		}
+		return Unpooled.wrappedBuffer(header, retained ? retainedSlice(0, dataSize) : slice(0, dataSize));
 	}
 
 	/**
 	 * @return byte size of the message header
 	 */
-	int writeHeader(OutputStream out) throws IOException {
-		PacketBuffer header = new PacketBuffer();
+	int writeHeader(PacketBuffer header) throws IOException {
+		int start = header.writerIndex();
 		writeID(header);
+		header.writeInt(writerIndex());
+		return header.writerIndex() - start;
+	}
+
+	/**
+	 * Encodes this message in the {@link FrameFormat#V2} layout, like
+	 * {@link #writeFrame(PacketBuffer, IdentifierDictionary)} but only small
+	 * data is copied, larger data is shared with this message.
+	 * 
+	 * @param identifiers
+	 *            the codes of the id classes the connection sent so far
+	 * @return a {@link PacketBuffer#pooled() pooled} frame holding its own
+	 *         reference to this message, it has to be released once written
+	 */
+	public PacketBuffer encodeFrame(IdentifierDictionary identifiers) {
 		int dataSize = writerIndex();
-		header.writeInt(dataSize);
-		int headerSize = header.write(out);
-//		out.flush();
-		return headerSize;
+		boolean copy = dataSize <= COPY_THRESHOLD;
+		PacketBuffer frame = pooled(copy ? HEADER_CAPACITY + dataSize : HEADER_CAPACITY);
+		try {
+			writeHeaderV2(frame, identifiers);
+		} catch (RuntimeException e) {
+			frame.release();
+			throw e;
+		}
+		if (copy) {
+			frame.writeBytes(this, 0, dataSize);
+			return frame;
+		}
+		return new PacketBuffer(Unpooled.wrappedBuffer(frame, retainedSlice(0, dataSize)));
 	}
 
 	/**
-	 * @return byte size of the message data
+	 * Appends this message in the {@link FrameFormat#V2} layout to the frame
+	 * 
+	 * @param identifiers
+	 *            the codes of the id classes the connection sent so far
+	 * @return the size of this message in bytes written to the frame
 	 */
-	int writeData(OutputStream out) throws IOException {
-		int dataSize = super.write(out);
-//		out.flush();
-		return dataSize;
+	public int writeFrame(PacketBuffer frame, IdentifierDictionary identifiers) {
+		int start = frame.writerIndex();
+		writeHeaderV2(frame, identifiers);
+		frame.writeBytes(this, 0, writerIndex());
+		return frame.writerIndex() - start;
+	}
+
+	/**
+	 * Appends the {@link FrameFormat#V2} header of this message, the id and the data size
+	 */
+	void writeHeaderV2(PacketBuffer header, IdentifierDictionary identifiers) {
+		writeIDV2(header, identifiers);
+		header.writeVarInt(writerIndex());
+	}
+
+	/**
+	 * Appends the {@link FrameFormat#V2} header of a chunk of a stream with this id
+	 */
+	void writeChunkHeaderV2(PacketBuffer header, IdentifierDictionary identifiers, int stream, boolean last, boolean aborted, int dataSize) {
+		int start = header.writerIndex();
+		writeIDV2(header, identifiers);
+		header.setByte(start, header.getByte(start) | V2_STREAM | (last ? V2_LAST : 0) | (aborted ? V2_ABORT : 0));
+		header.writeVarInt(stream);
+		header.writeVarInt(dataSize);
+	}
+
+	protected void writeIDV2(PacketBuffer idbuffer, IdentifierDictionary identifiers) {
+		// @formatter:off
+		if (id instanceof Boolean)  	  idbuffer.writeByte(T_BOOL   - T_BOOL).writeBoolean( (boolean) id);
+		else if (id instanceof Byte) 	  idbuffer.writeByte(T_BYTE   - T_BOOL).writeByte(	  (byte)	id);
+		else if (id instanceof Short) 	  idbuffer.writeByte(T_SHORT  - T_BOOL).writeVarInt(  (short)   id);
+		else if (id instanceof Integer)   idbuffer.writeByte(T_INT    - T_BOOL).writeVarInt(  (int) 	id);
+		else if (id instanceof Long) 	  idbuffer.writeByte(T_LONG   - T_BOOL).writeVarLong( (long)	id);
+		else if (id instanceof Float) 	  idbuffer.writeByte(T_FLOAT  - T_BOOL).writeFloat(   (float)   id);
+		else if (id instanceof Double)	  idbuffer.writeByte(T_DOUBLE - T_BOOL).writeDouble(  (double)  id);
+		else if (id instanceof Character) idbuffer.writeByte(T_CHAR   - T_BOOL).writeVarInt(  (char)	id);
+		else if (id instanceof String) 	  idbuffer.writeByte(T_STRING - T_BOOL).writeString(  (String)  id);
+		else if (id instanceof Date) 	  idbuffer.writeByte(T_TIME   - T_BOOL).writeVarLong( ((Date)   id).getTime());
+		else if (id instanceof UUID) 	  idbuffer.writeByte(T_UUID   - T_BOOL).writeUniqueId((UUID)    id);
+		// @formatter:on
+		else if (id instanceof Enum<?>) {
+			writeIDClassV2(idbuffer, T_ENUM, ((Enum<?>) id).getDeclaringClass(), identifiers);
+			idbuffer.writeVarInt(((Enum<?>) id).ordinal());
+		} else if (id instanceof IIdentifier) {
+			writeIDClassV2(idbuffer, T_GEN, id.getClass(), identifiers);
+			idbuffer.writeVarInt(((IIdentifier) id).size());
+			((IIdentifier) id).write(idbuffer);
+		} else throw new IllegalStateException("The Identifier " + id
+				+ " is of an unsupported type "
+				+ (id != null ? id.getClass() : "NULL"));
+	}
+
+	private static void writeIDClassV2(PacketBuffer idbuffer, int type, Class<?> clazz, IdentifierDictionary identifiers) {
+		int code = identifiers.codeOf(clazz);
+		if (code >= 0) {
+			idbuffer.writeByte(type - T_BOOL);
+			idbuffer.writeVarInt(code);
+		} else {
+			// First time on this connection, so tell the other side what the code stands for
+			code = identifiers.define(clazz);
+			idbuffer.writeByte(type - T_BOOL | V2_DEFINE);
+			idbuffer.writeVarInt(code);
+			idbuffer.writeString(clazz.getName());
+		}
 	}
 
 	/**
@@ -128,39 +305,38 @@ public class MessageBuffer<T> extends PacketBuffer {
 	 */
 	@Override
 	public int read(InputStream in) throws IOException {
-		BufferedInputStream bin = new BufferedInputStream(in);
+		// No buffering in between, it would swallow the bytes of the next message
+		return readFrame(in);
+	}
 
-		int av0 = in.available();
+	/**
+	 * Reads in exactly one message from the InputStream, the stream is
+	 * used as is, so no bytes past the end of this message are consumed
+	 * 
+	 * @return the data size
+	 * 
+	 * @throws IOException
+	 *             if the specified stream threw an exception during I/O
+	 */
+	@Override
+	public int readFrame(InputStream in) throws IOException {
 		mb = 0;
 
 		// Read in the message header
 //		System.out.println("### ###");
-		int dataSize = readHeader(bin);
+		int dataSize = readHeader(in);
 
 		// Read in the message data
 //		System.out.println("###");
 //		if (dataSize > 0)
-		readData(bin, dataSize);
+		readData(in, dataSize);
 
 		Logger.net("MessageBuffer", "Read Data Successfully");
 
-		int av1 = in.available();
-
-//		Logger.info(av0 + " --- " + av1 + " ( " + mb + ")");
-		if (av0 > 84) {
-			if (av0 == 168) {
-				lost++;
-			} else {
-				lost2++;
-			}
-		}
-		// Return the message data size
 		return dataSize;
 	}
 
 	int mb;
-	public static long lost = 0;
-	public static long lost2 = 0;
 
 	/**
 	 * Reads in the message header from the InputStream
@@ -170,7 +346,21 @@ public class MessageBuffer<T> extends PacketBuffer {
 	 *             if the specified stream threw an exception during I/O
 	 */
 	protected int readHeader(InputStream in) throws IOException {
-		readID(in);
+		return readHeader(in, new IdentifierDictionary());
+	}
+
+	/**
+	 * Reads in the message header from the InputStream
+	 * 
+	 * @param identifiers
+	 *            resolves the id classes, keeping it for the whole connection
+	 *            saves looking them up for every message
+	 * @return the data size
+	 * @throws IOException
+	 *             if the specified stream threw an exception during I/O
+	 */
+	int readHeader(InputStream in, IdentifierDictionary identifiers) throws IOException {
+		readID(in, identifiers);
 
 		int dataSize = readInt();
 		clear();
@@ -211,7 +401,7 @@ public class MessageBuffer<T> extends PacketBuffer {
 		else if (id instanceof Long) 	  idbuffer.writeByte(T_LONG)  .writeLong(    (long)	   id);
 		else if (id instanceof Float) 	  idbuffer.writeByte(T_FLOAT) .writeFloat(   (float)   id);
 		else if (id instanceof Double)	  idbuffer.writeByte(T_DOUBLE).writeDouble(  (double)  id);
-		else if (id instanceof Character) idbuffer.writeByte(T_CHAR)  .writeChar(    (int) 	   id);
+		else if (id instanceof Character) idbuffer.writeByte(T_CHAR)  .writeChar(    (char)	   id);
 		else if (id instanceof String) 	  idbuffer.writeByte(T_STRING).writeString(  (String)  id);
 		else if (id instanceof Date) 	  idbuffer.writeByte(T_TIME)  .writeTime(    (Date)	   id);
 		else if (id instanceof UUID) 	  idbuffer.writeByte(T_UUID)  .writeUniqueId((UUID)    id);
@@ -234,9 +424,9 @@ public class MessageBuffer<T> extends PacketBuffer {
 				+ (id != null ? id.getClass() : "NULL"));
 	}
 
-	private <E extends Enum<E>> void readID(InputStream in) throws IOException {
+	private void readID(InputStream in, IdentifierDictionary identifiers) throws IOException {
 		int idSize;
-		Supplier<Object> idSup;
+		IDReader idSup;
 		mb += 1;
 		int type = in.read();
 		switch (type) {
@@ -275,11 +465,11 @@ public class MessageBuffer<T> extends PacketBuffer {
 			case T_CHAR:
 				idSize = Character.BYTES;
 				idSup = this::readChar;
+				break;
 			case T_STRING:
-				idSize = -2;
-				@SuppressWarnings("deprecation")
-				Supplier<Object> s = this::readString;
-				idSup = s;
+				idSize = 0;
+				String idStr = readString(in);
+				idSup = () -> idStr;
 				break;
 			case T_TIME:
 				idSize = Long.BYTES;
@@ -291,32 +481,13 @@ public class MessageBuffer<T> extends PacketBuffer {
 				break;
 			case T_ENUM:
 				idSize = Integer.BYTES;
-				String enumStr = readString(in);
-
-				try {
-					@SuppressWarnings("unchecked")
-					Class<E> enumClazz = (Class<E>) Class.forName(enumStr);
-					idSup = () -> readEnumValue(enumClazz);
-				} catch (ClassNotFoundException e) {
-					throw new UnkownClassNameException("ClassName: '" + enumStr + "'", e);
-				}
+				IdentifierDictionary.Entry enumEntry = identifiers.resolve(readString(in));
+				idSup = () -> enumEntry.constant(readInt());
 				break;
 			case T_GEN:
 				idSize = readVarInt(in);
-				String genStr = readString(in);
-
-				System.out.println("NAME: " + genStr);
-				try {
-					@SuppressWarnings("unchecked")
-					Class<IIdentifier> genClazz = (Class<IIdentifier>) Class.forName(genStr);
-					idSup = () -> {
-						IIdentifier id = _getID(genClazz);
-						id.read(this);
-						return id;
-					};
-				} catch (ClassNotFoundException e) {
-					throw new UnkownClassNameException(e);
-				}
+				IdentifierDictionary.Entry genEntry = identifiers.resolve(readString(in));
+				idSup = () -> readIdentifier(genEntry, this);
 				break;
 		}
 		int headerSize = idSize + Integer.BYTES;
@@ -324,30 +495,279 @@ public class MessageBuffer<T> extends PacketBuffer {
 		read(in, headerSize);
 
 		@SuppressWarnings("unchecked")
-		T cid = (T) idSup.get();
+		T cid = (T) idSup.read();
 		id = cid;
 	}
 
-	private IIdentifier _getID(Class<IIdentifier> idClazz) {
-		if (id != null) return (IIdentifier) id;
-		try {
-			@SuppressWarnings("unchecked")
-			Constructor<IIdentifier>[] ctors = (Constructor<IIdentifier>[]) idClazz.getDeclaredConstructors();
-			Constructor<IIdentifier> ctor = null;
-			int minLen = 1000;
-			for (int i = 0; i < ctors.length; i++) {
-				Constructor<IIdentifier> cctor = ctors[i];
-				int len = ctors[i].getGenericParameterTypes().length;
-				if (len < minLen) {
-					minLen = ctors[i].getGenericParameterTypes().length;
-					ctor = cctor;
-				}
+	/**
+	 * The most characters a string in a header may have, as {@link PacketBuffer#readString()} reads them
+	 */
+	private static final int MAX_STRING_LENGTH = 32767;
+
+	/**
+	 * Measures the header at the reader index of the specified buffer, without consuming it
+	 * 
+	 * @param maxFrameSize
+	 *            the most bytes an id may claim, checked before the id is waited for
+	 * @return the byte size of the id type, the id and the data size,
+	 *         or -1 if the buffer doesn't hold the whole header yet
+	 * @throws UnkownIdentifierException
+	 *             if the id type is unknown
+	 * @throws DecoderException
+	 *             if a string or the id claims more bytes than allowed
+	 */
+	static int headerSize(ByteBuf in, int maxFrameSize) throws UnkownIdentifierException {
+		int start = in.readerIndex();
+		if (!in.isReadable()) return -1;
+		int type = in.getUnsignedByte(start);
+		long index = start + 1;
+		switch (type) {
+			default:
+				throw new UnkownIdentifierException("" + type);
+			case T_BOOL:
+			case T_BYTE:
+				index += Byte.BYTES;
+				break;
+			case T_SHORT:
+				index += Short.BYTES;
+				break;
+			case T_CHAR:
+				index += Character.BYTES;
+				break;
+			case T_INT:
+				index += Integer.BYTES;
+				break;
+			case T_FLOAT:
+				index += Float.BYTES;
+				break;
+			case T_LONG:
+			case T_TIME:
+				index += Long.BYTES;
+				break;
+			case T_DOUBLE:
+				index += Double.BYTES;
+				break;
+			case T_UUID:
+				index += Long.BYTES + Long.BYTES;
+				break;
+			case T_STRING:
+				index = skipString(in, index);
+				break;
+			case T_ENUM:
+				index = skipString(in, index);
+				if (index >= 0) index += Integer.BYTES;
+				break;
+			case T_GEN:
+				int idSize = getLength(in, index);
+				if (idSize < 0) return -1;
+				checkIdSize(idSize, maxFrameSize);
+				index = skipString(in, index + getVarIntSize(idSize));
+				if (index >= 0) index += idSize;
+				break;
+		}
+		if (index < 0) return -1;
+		index += Integer.BYTES;
+		return index <= in.writerIndex() ? (int) (index - start) : -1;
+	}
+
+	private static void checkIdSize(int idSize, int maxFrameSize) {
+		if (idSize > maxFrameSize) throw new DecoderException("Id size " + idSize + " exceeds the maximum frame size " + maxFrameSize);
+	}
+
+	/**
+	 * @return the index behind the string starting at the specified index, or -1 if its length isn't complete yet
+	 * @throws DecoderException
+	 *             if the string is longer than {@link PacketBuffer#readString()} would read
+	 */
+	private static long skipString(ByteBuf in, long index) {
+		int length = getLength(in, index);
+		if (length < 0) return -1;
+		// Checked before the string arrived, otherwise a peer could make the decoder wait for gigabytes
+		if (length > MAX_STRING_LENGTH * 4) throw new DecoderException("The received encoded string buffer length is longer than maximum allowed (" + length + " > " + MAX_STRING_LENGTH * 4 + ")");
+		return index + getVarIntSize(length) + length;
+	}
+
+	/**
+	 * @return the varint length at the specified index, or -1 if it isn't complete yet
+	 */
+	private static int getLength(ByteBuf in, long index) {
+		int i = 0;
+		for (int j = 0; j < 5; j++) {
+			if (index + j >= in.writerIndex()) return -1;
+			byte b0 = in.getByte((int) (index + j));
+			i |= (b0 & 127) << j * 7;
+			if ((b0 & 128) != 128) {
+				if (i < 0) throw new DecoderException("Negative length " + i);
+				return i;
+			}
+		}
+		throw new DecoderException("VarInt too big");
+	}
+
+	/**
+	 * Reads in a {@link FrameFormat#V2} message header, it has to be in the buffer as a whole
+	 * 
+	 * @param identifiers
+	 *            the codes of the id classes the other side sent so far
+	 * @return the data size
+	 */
+	int readHeader(PacketBuffer in, IdentifierDictionary identifiers) throws IOException {
+		int flags = in.readUnsignedByte();
+		int type = T_BOOL + (flags & V2_TYPE);
+		if ((flags & ~(V2_TYPE | V2_DEFINE | V2_STREAM | V2_LAST | V2_ABORT)) != 0) throw new UnkownIdentifierException("Flags " + flags);
+		Object cid;
+		switch (type) {
+			default:
+				throw new UnkownIdentifierException("" + type);
+			// @formatter:off
+			case T_BOOL:   cid = in.readBoolean();				break;
+			case T_BYTE:   cid = in.readByte();				break;
+			case T_SHORT:  cid = (short) in.readVarInt();		break;
+			case T_INT:    cid = in.readVarInt();				break;
+			case T_LONG:   cid = in.readVarLong();				break;
+			case T_FLOAT:  cid = in.readFloat();				break;
+			case T_DOUBLE: cid = in.readDouble();				break;
+			case T_CHAR:   cid = (char) in.readVarInt();		break;
+			case T_STRING: cid = in.readString(32767);			break;
+			case T_TIME:   cid = new Date(in.readVarLong());	break;
+			case T_UUID:   cid = in.readUniqueId();			break;
+			// @formatter:on
+			case T_ENUM:
+				cid = readIDClassV2(in, flags, identifiers).constant(in.readVarInt());
+				break;
+			case T_GEN: {
+				IdentifierDictionary.Entry genEntry = readIDClassV2(in, flags, identifiers);
+				int idSize = in.readVarInt();
+				cid = readIdentifier(genEntry, new PacketBuffer(in.readSlice(idSize)));
+				break;
 			}
-			return ctor.newInstance(new Object[minLen]);
-		} catch (IllegalArgumentException | InstantiationException | IllegalAccessException | InvocationTargetException e) {
-			e.printStackTrace();
 		}
-		return null;
+		@SuppressWarnings("unchecked")
+		T tid = (T) cid;
+		id = tid;
+		if ((flags & V2_STREAM) != 0) readChunkHeader(in.readVarInt(), (flags & V2_LAST) != 0, (flags & V2_ABORT) != 0);
+		else if ((flags & (V2_LAST | V2_ABORT)) != 0) throw new UnkownIdentifierException("Flags " + flags + " outside of a stream");
+		return in.readVarInt();
+	}
+
+	/**
+	 * Takes the part of the header only chunks of a {@link MessageStream} have
+	 * 
+	 * @throws DecoderException
+	 *             unless this is a {@link StreamChunk}
+	 */
+	void readChunkHeader(int stream, boolean last, boolean aborted) {
+		throw new DecoderException("Chunk of stream " + stream + " read into a message");
+	}
+
+	/**
+	 * @return if the {@link FrameFormat#V2} header at the reader index of the specified buffer
+	 *         is the one of a chunk of a stream, the buffer has to hold at least one byte
+	 */
+	static boolean isChunkV2(ByteBuf in) { return (in.getUnsignedByte(in.readerIndex()) & V2_STREAM) != 0; }
+
+	private static IdentifierDictionary.Entry readIDClassV2(PacketBuffer in, int flags, IdentifierDictionary identifiers) throws IOException {
+		int code = in.readVarInt();
+		if ((flags & V2_DEFINE) != 0) return identifiers.define(code, in.readString(32767));
+		return identifiers.entryOf(code);
+	}
+
+	/**
+	 * Measures the {@link FrameFormat#V2} header at the reader index of the specified buffer,
+	 * without consuming it
+	 * 
+	 * @param maxFrameSize
+	 *            the most bytes an id may claim, checked before the id is waited for
+	 * @return the byte size of the flags, the id and the data size,
+	 *         or -1 if the buffer doesn't hold the whole header yet
+	 * @throws UnkownIdentifierException
+	 *             if the id type is unknown
+	 * @throws DecoderException
+	 *             if a string or the id claims more bytes than allowed
+	 */
+	static int headerSizeV2(ByteBuf in, int maxFrameSize) throws UnkownIdentifierException {
+		int start = in.readerIndex();
+		if (!in.isReadable()) return -1;
+		int flags = in.getUnsignedByte(start);
+		int type = T_BOOL + (flags & V2_TYPE);
+		long index = start + 1;
+		switch (type) {
+			default:
+				throw new UnkownIdentifierException("" + type);
+			case T_BOOL:
+			case T_BYTE:
+				index += Byte.BYTES;
+				break;
+			case T_SHORT:
+			case T_INT:
+			case T_CHAR:
+			case T_LONG:
+			case T_TIME:
+				index = skipVarInt(in, index);
+				break;
+			case T_FLOAT:
+				index += Float.BYTES;
+				break;
+			case T_DOUBLE:
+				index += Double.BYTES;
+				break;
+			case T_UUID:
+				index += Long.BYTES + Long.BYTES;
+				break;
+			case T_STRING:
+				index = skipString(in, index);
+				break;
+			case T_ENUM:
+				index = skipIDClassV2(in, flags, index);
+				if (index >= 0) index = skipVarInt(in, index);
+				break;
+			case T_GEN:
+				index = skipIDClassV2(in, flags, index);
+				if (index < 0) return -1;
+				int idSize = getLength(in, index);
+				if (idSize < 0) return -1;
+				checkIdSize(idSize, maxFrameSize);
+				index += getVarIntSize(idSize) + (long) idSize;
+				break;
+		}
+		if (index < 0) return -1;
+		// The number of the stream
+		if ((flags & V2_STREAM) != 0) index = skipVarInt(in, index);
+		if (index < 0) return -1;
+		index = skipVarInt(in, index);
+		return index >= 0 && index <= in.writerIndex() ? (int) (index - start) : -1;
+	}
+
+	private static long skipIDClassV2(ByteBuf in, int flags, long index) {
+		index = skipVarInt(in, index);
+		if (index >= 0 && (flags & V2_DEFINE) != 0) index = skipString(in, index);
+		return index;
+	}
+
+	/**
+	 * @return the index behind the varint or varlong starting at the specified index,
+	 *         or -1 if it isn't complete yet
+	 */
+	static int skipVarInt(ByteBuf in, int index) { return (int) skipVarInt(in, (long) index); }
+
+	private static long skipVarInt(ByteBuf in, long index) {
+		for (int j = 0; j < 10; j++) {
+			if (index + j >= in.writerIndex()) return -1;
+			if ((in.getByte((int) (index + j)) & 128) != 128) return index + j + 1;
+		}
+		throw new DecoderException("VarLong too big");
+	}
+
+	/**
+	 * Reads the id into the id this message already has, otherwise into one the connection provides
+	 */
+	private IIdentifier readIdentifier(IdentifierDictionary.Entry entry, PacketBuffer in) throws IOException {
+		if (id != null) {
+			IIdentifier reused = (IIdentifier) id;
+			reused.read(in);
+			return reused;
+		}
+		return entry.identifier(in);
 	}
 
 	private String readString(InputStream in) throws IOException {
@@ -369,8 +789,7 @@ public class MessageBuffer<T> extends PacketBuffer {
 //			this.readerIndex(this.readerIndex() + i);
 
 			byte[] array = new byte[i];
-			int alength = in.read(array);
-			if (i != alength) throw new IOException("Read In Wrong String Size [" + alength + "/" + i + "]");
+			readFully(in, array, 0, i);
 			String s = new String(array, 0, i, StandardCharsets.UTF_8);
 
 			if (s.length() > maxLength) {
@@ -385,9 +804,12 @@ public class MessageBuffer<T> extends PacketBuffer {
 		int i = 0;
 		int j = 0;
 
+		// At most 5 bytes, so there is nothing to gain from reading them in bulk
 		while (true) {
 			mb += 1;
-			byte b0 = (byte) in.read();
+			int b = in.read();
+			if (b == -1) throw new EOFException();
+			byte b0 = (byte) b;
 			i |= (b0 & 127) << j++ * 7;
 			if (j > 5) {
 				throw new RuntimeException("VarInt too big");
@@ -576,4 +998,10 @@ public class MessageBuffer<T> extends PacketBuffer {
 
 //	public static <D extends IIdentifier> MessageBuffer<D> createGeneric(ByteBuf wrapper) { return new MessageBuffer<>(wrapper); }
 
+	/**
+	 * Reads the id once the header is in the buffer
+	 */
+	private interface IDReader {
+		Object read() throws IOException;
+	}
 }
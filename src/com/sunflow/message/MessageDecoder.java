@@ -0,0 +1,228 @@
+package com.sunflow.message;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import com.sunflow.error.netty.DecoderException;
+
+import io.netty.buffer.ByteBufInputStream;
+
+/**
+ * Turns the bytes of one connection into messages, no matter how they are split up
+ * by the reads. Every read appends whatever arrived to {@link #buffer()}, then
+ * {@link #decode(Consumer)} takes out every complete message. A message that isn't
+ * complete yet stays where it is and is continued with the next read.
+ * <p>
+ * The header (id type, id and data size) is only parsed once it arrived as a whole,
+ * in the {@link FrameFormat} both sides agreed on.
+ * The data is moved into the message as it comes in, so large messages aren't
+ * kept twice while they arrive. A header claiming more data than the
+ * {@link #setMaxFrameSize(int) maximum frame size} fails the decoding.
+ * <p>
+ * The chunks of a {@link MessageStream} are decoded into {@link StreamChunk}s,
+ * which know where they belong within their stream.
+ * <p>
+ * Once both sides agreed on a {@link Codec}, {@link FrameCompression compressed} frames
+ * are only decompressed once they arrived as a whole, they are decoded from there.
+ *
+ * @param <T>
+ *            The type of messages
+ */
+public class MessageDecoder<T> {
+
+	private enum State {
+		/**
+		 * Waiting for the id type, the id and the data size
+		 */
+		HEADER,
+		/**
+		 * Waiting for the rest of the data of {@link MessageDecoder#message}
+		 */
+		DATA
+	}
+
+	/**
+	 * The default {@link #setMaxFrameSize(int) maximum frame size}, larger
+	 * {@link MessageStream}s go out in chunks anyway
+	 */
+	public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * The most room a message gets for its data before it arrived, it grows with what
+	 * actually comes in, whatever size the header claims
+	 */
+	private static final int PRESIZE = 64 * 1024;
+
+	private final Supplier<MessageBuffer<T>> messageFactory;
+
+	/**
+	 * Bytes that have been read but weren't decoded yet
+	 */
+	private final PacketBuffer inbound;
+
+	private State state = State.HEADER;
+
+	private FrameFormat format = FrameFormat.V1;
+
+	/**
+	 * The id classes the other side used so far, resolved only once. For {@link FrameFormat#V2}
+	 * also the codes it defined for them.
+	 */
+	private final IdentifierDictionary identifiers = new IdentifierDictionary();
+
+	/**
+	 * The message whose data is being read
+	 */
+	private MessageBuffer<T> message;
+	private int remainingData;
+
+	/**
+	 * How much of every unfinished stream arrived so far, by the number of the stream
+	 */
+	private final Map<Integer, Long> streams = new HashMap<>();
+
+	/**
+	 * Decompresses compressed frames, {@code null} as long as there aren't any
+	 */
+	private Codec codec;
+
+	/**
+	 * The most data a single frame may claim
+	 */
+	private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+	public MessageDecoder(Supplier<MessageBuffer<T>> messageFactory) {
+		this.messageFactory = messageFactory;
+		this.inbound = new PacketBuffer();
+	}
+
+	/**
+	 * Sets the layout of the messages, both sides agree on it during the handshake
+	 * before the first message is read
+	 */
+	public void setFormat(FrameFormat format) { this.format = format; }
+
+	public FrameFormat getFormat() { return format; }
+
+	/**
+	 * Sets the codec compressed frames are read with, both sides agree on it during
+	 * the handshake before the first message is read
+	 */
+	public void setCodec(Codec codec) { this.codec = codec; }
+
+	public Codec getCodec() { return codec; }
+
+	/**
+	 * Limits the data a single frame may claim, the other side can't make this side
+	 * allocate more than that for a message, a frame beyond it fails the decoding
+	 */
+	public void setMaxFrameSize(int maxFrameSize) {
+		if (maxFrameSize <= 0) throw new IllegalArgumentException("Invalid maximum frame size: " + maxFrameSize);
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	public int getMaxFrameSize() { return maxFrameSize; }
+
+	/**
+	 * @return the buffer reads should append to
+	 */
+	public PacketBuffer buffer() { return inbound; }
+
+	/**
+	 * Decodes every complete message the buffer holds
+	 *
+	 * @param messageConsumer
+	 *            called with every decoded message, in order
+	 * @return the amount of decoded messages
+	 *
+	 * @throws IOException
+	 *             if the bytes aren't a valid message, the connection can't be recovered then
+	 */
+	public int decode(Consumer<MessageBuffer<T>> messageConsumer) throws IOException { return decode(messageConsumer, () -> false); }
+
+	/**
+	 * Decodes the complete messages the buffer holds, until told to stop. The rest stays
+	 * in the buffer as it is, the next call continues with it.
+	 *
+	 * @param messageConsumer
+	 *            called with every decoded message, in order
+	 * @param stop
+	 *            asked before every message, no more are decoded once it's {@code true}
+	 * @return the amount of decoded messages
+	 *
+	 * @throws IOException
+	 *             if the bytes aren't a valid message, the connection can't be recovered then
+	 */
+	public int decode(Consumer<MessageBuffer<T>> messageConsumer, BooleanSupplier stop) throws IOException {
+		int messages = 0;
+		while (true) {
+			if (state == State.HEADER && stop.getAsBoolean()) break;
+			if (state == State.HEADER && codec != null && FrameCompression.isCompressed(inbound)) {
+				PacketBuffer frame = FrameCompression.decompress(inbound, codec, maxFrameSize);
+				if (frame == null) break;
+				MessageBuffer<T> complete;
+				try {
+					complete = newMessage(frame);
+					int dataSize = complete.readHeader(frame, identifiers);
+					if (dataSize != frame.readableBytes()) throw new DecoderException("Data size " + dataSize + " of " + complete + " doesn't match its compressed frame");
+					complete.writeBytes(frame);
+				} finally {
+					frame.release();
+				}
+				if (complete instanceof StreamChunk) track((StreamChunk<T>) complete);
+				messages++;
+				messageConsumer.accept(complete);
+				continue;
+			}
+
+			if (state == State.HEADER) {
+				int headerSize = format == FrameFormat.V2 ? MessageBuffer.headerSizeV2(inbound, maxFrameSize) : MessageBuffer.headerSize(inbound, maxFrameSize);
+				if (headerSize < 0) break;
+
+				message = newMessage(inbound);
+				if (format == FrameFormat.V2) remainingData = message.readHeader(inbound, identifiers);
+				else remainingData = message.readHeader(new ByteBufInputStream(inbound, headerSize), identifiers);
+				if (remainingData < 0) throw new DecoderException("Negative data size " + remainingData + " of " + message);
+				if (remainingData > maxFrameSize) throw new DecoderException("Data size " + remainingData + " of " + message + " exceeds the maximum frame size " + maxFrameSize);
+				message.ensureWritable(Math.min(remainingData, PRESIZE));
+				state = State.DATA;
+			}
+
+			int available = Math.min(remainingData, inbound.readableBytes());
+			message.writeBytes(inbound, available);
+			remainingData -= available;
+			if (remainingData > 0) break;
+
+			MessageBuffer<T> complete = message;
+			message = null;
+			state = State.HEADER;
+			if (complete instanceof StreamChunk) track((StreamChunk<T>) complete);
+			messages++;
+			messageConsumer.accept(complete);
+		}
+		inbound.discardSomeReadBytes();
+		return messages;
+	}
+
+	/**
+	 * @return an empty message for the frame at the reader index of the buffer
+	 */
+	private MessageBuffer<T> newMessage(PacketBuffer in) {
+		// Chunks of streams come from the pool, they are only kept until handled
+		return format == FrameFormat.V2 && MessageBuffer.isChunkV2(in) ? new StreamChunk<>(PacketBuffer.getPooledAllocator().heapBuffer()) : messageFactory.get();
+	}
+
+	/**
+	 * Places the chunk within its stream
+	 */
+	private void track(StreamChunk<T> chunk) {
+		Long offset = streams.remove(chunk.getStream());
+		chunk.first = offset == null;
+		chunk.offset = offset == null ? 0 : offset;
+		if (!chunk.isLast()) streams.put(chunk.getStream(), chunk.offset + chunk.writerIndex());
+	}
+}
@@ -0,0 +1,204 @@
+package com.sunflow.message;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.util.function.IntSupplier;
+
+import com.sunflow.util.Logger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * A message whose data is read from a source while it's sent, instead of being
+ * put into memory as a whole first. It goes out as a sequence of chunks, the
+ * other side gets every one of them as a {@link StreamChunk}, so neither side
+ * holds more than a chunk of it at a time.
+ * <p>
+ * The connection reads the source on the thread writing it, one chunk at a time,
+ * and lets the messages sent meanwhile go in between. The source should be a
+ * blocking one that is quick to read, like a file. It's closed once the stream is
+ * done or the connection drops.
+ * <p>
+ * Chunks need {@link FrameFormat#V2} and a peer that agreed on streams during the
+ * handshake, other peers get the whole data as one message.
+ */
+public class MessageStream extends PacketBuffer {
+
+	/**
+	 * How much of the source goes into one chunk by default
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+	private interface Source extends Closeable {
+		/**
+		 * @return the amount of bytes read, -1 at the end
+		 */
+		int read(ByteBuf into, int length) throws IOException;
+	}
+
+	/**
+	 * Carries the id of the stream
+	 */
+	private final MessageBuffer<?> message;
+	private final Source source;
+	private final int chunkSize;
+
+	/**
+	 * The number of the stream on its connection, assigned with the first chunk
+	 */
+	private int stream = -1;
+	private boolean finished;
+
+	/**
+	 * @param id
+	 *            The id every chunk carries
+	 * @param source
+	 *            Where the data is read from
+	 */
+	public static <T> MessageStream of(T id, InputStream source) { return of(id, source, DEFAULT_CHUNK_SIZE); }
+
+	/**
+	 * @param chunkSize
+	 *            how much of the source goes into one chunk at most
+	 */
+	public static <T> MessageStream of(T id, InputStream source, int chunkSize) {
+		return new MessageStream(new MessageBuffer<T>().setID(id), new Source() {
+			@Override
+			public int read(ByteBuf into, int length) throws IOException { return into.writeBytes(source, length); }
+
+			@Override
+			public void close() throws IOException { source.close(); }
+		}, chunkSize);
+	}
+
+	/**
+	 * @param id
+	 *            The id every chunk carries
+	 * @param source
+	 *            Where the data is read from, in blocking mode
+	 */
+	public static <T> MessageStream of(T id, ReadableByteChannel source) { return of(id, source, DEFAULT_CHUNK_SIZE); }
+
+	/**
+	 * @param chunkSize
+	 *            how much of the source goes into one chunk at most
+	 */
+	public static <T> MessageStream of(T id, ReadableByteChannel source, int chunkSize) {
+		return new MessageStream(new MessageBuffer<T>().setID(id), new Source() {
+			@Override
+			public int read(ByteBuf into, int length) throws IOException {
+				into.ensureWritable(length);
+				int read = source.read(into.nioBuffer(into.writerIndex(), length));
+				if (read > 0) into.writerIndex(into.writerIndex() + read);
+				return read;
+			}
+
+			@Override
+			public void close() throws IOException { source.close(); }
+		}, chunkSize);
+	}
+
+	private MessageStream(MessageBuffer<?> message, Source source, int chunkSize) {
+		// A reference count of its own, the source is closed with the last reference
+		super(Unpooled.buffer(0));
+		if (chunkSize <= 0) throw new IllegalArgumentException("Chunk size " + chunkSize);
+		this.message = message;
+		this.source = source;
+		this.chunkSize = chunkSize;
+	}
+
+	public int getChunkSize() { return chunkSize; }
+
+	/**
+	 * @return if the first chunk is encoded, the rest has to follow then
+	 */
+	public boolean isStarted() { return stream >= 0; }
+
+	/**
+	 * @return if the last chunk is encoded, or the whole data
+	 */
+	public boolean isFinished() { return finished; }
+
+	/**
+	 * Reads the next chunk from the source, the last one once it ends.
+	 * If reading fails, the stream ends with an aborted chunk.
+	 *
+	 * @param identifiers
+	 *            the codes of the id classes the connection sent so far
+	 * @param streams
+	 *            hands out the number of the stream, only called for the first chunk
+	 * @return the {@link FrameFormat#V2} frame of the chunk, it has to be released once written
+	 */
+	public ByteBuf nextChunk(IdentifierDictionary identifiers, IntSupplier streams) {
+		if (finished) throw new IllegalStateException("Stream " + stream + " is finished");
+		if (stream < 0) stream = streams.getAsInt();
+
+		ByteBuf data = getPooledAllocator().heapBuffer(chunkSize, chunkSize);
+		boolean last = false, aborted = false;
+		try {
+			while (data.isWritable()) {
+				if (source.read(data, data.writableBytes()) < 0) {
+					last = true;
+					break;
+				}
+			}
+		} catch (IOException e) {
+			Logger.error("MessageStream", "Reading stream " + stream + " failed, aborting it", e);
+			data.clear();
+			last = aborted = true;
+		}
+		finished = last;
+
+		PacketBuffer header = pooled(MessageBuffer.HEADER_CAPACITY + 2 * Integer.BYTES);
+		try {
+			message.writeChunkHeaderV2(header, identifiers, stream, last, aborted, data.readableBytes());
+		} catch (RuntimeException e) {
+			header.release();
+			data.release();
+			throw e;
+		}
+		return Unpooled.wrappedBuffer(header, data);
+	}
+
+	/**
+	 * Reads the rest of the source into one message, for peers that can't take chunks
+	 *
+	 * @param maxSize
+	 *            the most bytes the message may have, reading stops right after that
+	 * @return the message, with the id of the stream
+	 * @throws IOException
+	 *             if reading failed or the source holds more than {@code maxSize} bytes,
+	 *             the stream is finished either way
+	 */
+	public MessageBuffer<?> readFully(int maxSize) throws IOException {
+		if (finished) throw new IllegalStateException("Stream " + stream + " is finished");
+		finished = true;
+		while (source.read(message, chunkSize) >= 0) {
+			if (message.readableBytes() > maxSize) throw new IOException(this + " holds more than " + maxSize + " bytes");
+		}
+		return message;
+	}
+
+	@Override
+	public boolean release() { return close(super.release()); }
+
+	@Override
+	public boolean release(int decrement) { return close(super.release(decrement)); }
+
+	private boolean close(boolean deallocated) {
+		if (deallocated) {
+			try {
+				source.close();
+			} catch (IOException e) {
+				Logger.error("MessageStream", "Failed to close the source of stream " + stream, e);
+			}
+		}
+		return deallocated;
+	}
+
+	@Override
+	public String toString() { return "MessageStream<" + message.getID() + ">{stream=" + stream + (finished ? ", finished" : "") + "}"; }
+}
@@ -5,13 +5,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.OutputStream;
 import java.io.Serializable;
 
 import com.sunflow.common.Connection;
 import com.sunflow.util.Logger;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
 
 public class MixedMessage<T extends Serializable> extends MessageBuffer<T> {
 	public static class Owned<T extends Serializable> {
@@ -73,8 +73,8 @@ public class MixedMessage<T extends Serializable> extends MessageBuffer<T> {
 	 */
 
 	@Override
-	protected int writeHeader(OutputStream out) throws IOException {
-		ObjectOutputStream oout = new ObjectOutputStream(out);
+	protected int writeHeader(PacketBuffer header) throws IOException {
+		ObjectOutputStream oout = new ObjectOutputStream(new ByteBufOutputStream(header));
 		oout.writeObject(id);
 		int dataSize = writerIndex();
 		oout.writeInt(dataSize);
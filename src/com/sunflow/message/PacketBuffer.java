@@ -20,6 +20,7 @@ import com.sunflow.error.netty.EncoderException;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import io.netty.util.ByteProcessor;
 
@@ -44,6 +45,39 @@ public class PacketBuffer extends ByteBuf {
 		this.buf = wrapped;
 	}
 
+	/**
+	 * Hands out the buffers of {@link #pooled()}
+	 */
+	private static volatile ByteBufAllocator pooledAllocator = PooledByteBufAllocator.DEFAULT;
+
+	/**
+	 * Sets the allocator of {@link #pooled()}, like an arena allocator of its own
+	 */
+	public static void setPooledAllocator(ByteBufAllocator allocator) { pooledAllocator = allocator; }
+
+	public static ByteBufAllocator getPooledAllocator() { return pooledAllocator; }
+
+	/**
+	 * Creates a buffer whose memory is reused once it's {@link #release() released}, instead
+	 * of being left to the garbage collector. Whoever allocates it owns one reference,
+	 * a {@link com.sunflow.common.Connection} sending it holds its own until it's written.
+	 */
+	public static PacketBuffer pooled() { return new PacketBuffer(pooledAllocator.heapBuffer()); }
+
+	/**
+	 * @see #pooled()
+	 */
+	public static PacketBuffer pooled(int initialCapacity) { return new PacketBuffer(pooledAllocator.heapBuffer(initialCapacity)); }
+
+	/**
+	 * @return if the memory of this buffer goes back to a pool once it's released,
+	 *         instead of being left to the garbage collector
+	 */
+	public boolean isPooled() {
+		ByteBufAllocator alloc = alloc();
+		return alloc == pooledAllocator || alloc instanceof PooledByteBufAllocator;
+	}
+
 	/**
 	 * Transfers this buffer's data to the specified stream
 	 * 
@@ -60,6 +94,25 @@ public class PacketBuffer extends ByteBuf {
 		return bytesToWrite;
 	}
 
+	/**
+	 * @return the bytes {@link #write(OutputStream)} writes, sharing the memory of this buffer
+	 *         where possible, so it must not be changed while the frame is used
+	 * 
+	 * @throws IOException
+	 *             if encoding the frame failed
+	 */
+	public ByteBuf frame() throws IOException {
+		return slice(0, writerIndex());
+	}
+
+	/**
+	 * Like {@link #frame()}, but the frame holds a reference of its own to the memory
+	 * it shares with this buffer, it has to be released once it's used
+	 */
+	public ByteBuf retainedFrame() throws IOException {
+		return retainedSlice(0, writerIndex());
+	}
+
 	/**
 	 * Transfers this buffer's data to the specified stream starting at the current readerIndex.
 	 * 
@@ -94,24 +147,77 @@ public class PacketBuffer extends ByteBuf {
 		return writeBytes(in, amount);
 	}
 
+	/**
+	 * Transfers exactly {@code amount} bytes from the specified stream to this buffer.
+	 * The bytes are copied in bulk straight into the underlying buffer, streams that
+	 * return less than requested are read from again until the amount is complete.
+	 * 
+	 * @return the amount of bytes read
+	 * 
+	 * @throws EOFException
+	 *             if the stream ended before the amount was complete
+	 */
 	public int read(InputStream in, int amount) throws IOException {
-		long s = System.nanoTime();
-		for (int i = 0; i < amount; i++) {
-			int b = in.read();
-			if (b == -1) throw new EOFException();
-			writeByte(b);
+		ensureWritable(amount);
+		int totalReadBytes = 0;
+		while (totalReadBytes < amount) {
+			int currentReadBytes = writeBytes(in, amount - totalReadBytes);
+			if (currentReadBytes == -1) throw new EOFException();
+			totalReadBytes += currentReadBytes;
 		}
 		return amount;
 	}
-//	public int read(InputStream in, int amount) throws IOException {
-//		int totalReadBytes = 0;
-//		while (totalReadBytes < amount) {
-//			int currentReadBytes = writeBytes(in, amount - totalReadBytes);
-//			if (currentReadBytes == -1) throw new EOFException();
-//			totalReadBytes += currentReadBytes;
-//			Logger.net("MessageBuffer", totalReadBytes + "/" + amount + " - (" + currentReadBytes + ")");
-//		}
-//	}
+
+	/**
+	 * Transfers exactly {@code amount} bytes from the specified channel to this buffer,
+	 * without any intermediate copy if the underlying buffer is a direct one.
+	 * The channel should be in blocking mode, a non-blocking one is polled until
+	 * the amount is complete.
+	 * 
+	 * @return the amount of bytes read
+	 * 
+	 * @throws EOFException
+	 *             if the channel reached its end before the amount was complete
+	 */
+	public int read(ScatteringByteChannel in, int amount) throws IOException {
+		ensureWritable(amount);
+		int totalReadBytes = 0;
+		while (totalReadBytes < amount) {
+			int currentReadBytes = writeBytes(in, amount - totalReadBytes);
+			if (currentReadBytes == -1) throw new EOFException();
+			totalReadBytes += currentReadBytes;
+		}
+		return amount;
+	}
+
+	/**
+	 * Reads exactly {@code length} bytes from the specified stream into the array
+	 * 
+	 * @throws EOFException
+	 *             if the stream ended before the array was filled
+	 */
+	protected static void readFully(InputStream in, byte[] bytes, int offset, int length) throws IOException {
+		int totalReadBytes = 0;
+		while (totalReadBytes < length) {
+			int currentReadBytes = in.read(bytes, offset + totalReadBytes, length - totalReadBytes);
+			if (currentReadBytes == -1) throw new EOFException();
+			totalReadBytes += currentReadBytes;
+		}
+	}
+
+	/**
+	 * Reads exactly one frame from the specified stream, without consuming
+	 * any bytes past its end. A plain PacketBuffer has no framing, so this
+	 * simply transfers everything that is available.
+	 * 
+	 * @return the number of bytes read in from the specified stream
+	 * 
+	 * @throws IOException
+	 *             if the specified stream threw an exception during I/O
+	 */
+	public int readFrame(InputStream in) throws IOException {
+		return read(in);
+	}
 
 	public int set(InputStream in) throws IOException {
 		return setBytes(0, in, in.available());
@@ -0,0 +1,66 @@
+package com.sunflow.message;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A part of a {@link MessageStream} as it arrived, the data of the chunk is the data of
+ * the message. The chunks of a stream arrive in order, other messages and the chunks of
+ * other streams might come in between.
+ * <p>
+ * Chunks come from the pool and are released once handled, like any
+ * {@link PacketBuffer#isPooled() pooled} message.
+ *
+ * @param <T>
+ *            The type of messages
+ */
+public class StreamChunk<T> extends MessageBuffer<T> {
+
+	private int stream;
+	private boolean last, aborted;
+
+	/**
+	 * Where the data of this chunk starts within the stream, set by the {@link MessageDecoder}
+	 */
+	long offset;
+	boolean first;
+
+	StreamChunk(ByteBuf wrapped) { super(wrapped); }
+
+	@Override
+	void readChunkHeader(int stream, boolean last, boolean aborted) {
+		this.stream = stream;
+		this.last = last;
+		this.aborted = aborted;
+	}
+
+	/**
+	 * @return the number of the stream, unique among the streams of the connection
+	 */
+	public int getStream() { return stream; }
+
+	/**
+	 * @return where the data of this chunk starts within the stream
+	 */
+	public long getOffset() { return offset; }
+
+	/**
+	 * @return if this is the first chunk of the stream
+	 */
+	public boolean isFirst() { return first; }
+
+	/**
+	 * @return if this is the last chunk of the stream
+	 */
+	public boolean isLast() { return last; }
+
+	/**
+	 * @return if the sender couldn't read its source to the end, the data so far
+	 *         is all there will be. Only the last chunk can be aborted.
+	 */
+	public boolean isAborted() { return aborted; }
+
+	@Override
+	public String toString() {
+		return "StreamChunk<" + id + ">{stream=" + stream + ", offset=" + offset + (last ? ", last" : "") + (aborted ? ", aborted" : "") + ", " + writerIndex() + " bytes}";
+	}
+}
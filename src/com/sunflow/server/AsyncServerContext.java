@@ -0,0 +1,95 @@
+package com.sunflow.server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+import com.sunflow.common.AsyncContext;
+import com.sunflow.common.ISocket;
+import com.sunflow.util.Logger;
+import com.sunflow.util.Side;
+
+/**
+ * Accepts its connections with an {@link AsynchronousServerSocketChannel}, that
+ * shares the channel group with every connection it accepted
+ */
+public class AsyncServerContext extends AsyncContext {
+
+	private AsynchronousServerSocketChannel serverChannel;
+
+	public AsyncServerContext(SocketAddress endpoint) throws IOException {
+		this(null, endpoint);
+	}
+
+	public AsyncServerContext(ThreadGroup serverThreadGroup, SocketAddress endpoint) throws IOException {
+		super(Side.Server, serverThreadGroup);
+		serverChannel = AsynchronousServerSocketChannel.open(group);
+		serverChannel.bind(endpoint);
+		Logger.info("SERVER", "Bound to " + serverChannel.getLocalAddress());
+	}
+
+	/**
+	 * Waits for the next connection on the calling thread
+	 */
+	@Override
+	public void accept(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		AsynchronousSocketChannel channel;
+		try {
+			channel = serverChannel.accept().get();
+		} catch (ExecutionException e) {
+			errorConsumer.accept(e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause()));
+			return;
+		} catch (InterruptedException e) {
+			errorConsumer.accept(new IOException(e));
+			return;
+		}
+		socketConsumer.accept(wrap(channel));
+	}
+
+	@Override
+	public void async_accept(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		try {
+			serverChannel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
+				@Override
+				public void completed(AsynchronousSocketChannel channel, Void attachment) {
+					socketConsumer.accept(wrap(channel));
+				}
+
+				@Override
+				public void failed(Throwable error, Void attachment) {
+					errorConsumer.accept(error instanceof IOException ? (IOException) error : new IOException(error));
+				}
+			});
+		} catch (RuntimeException e) {
+			// Another accept is still pending or the channel got closed
+			errorConsumer.accept(new IOException(e));
+		}
+	}
+
+	@Override
+	public void connect(SocketAddress serverEndpoint,
+			Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		throw new UnsupportedOperationException("connect can only be called from an ClientContext");
+	}
+
+	@Override
+	public void async_connect(SocketAddress serverEndpoint,
+			Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		throw new UnsupportedOperationException("async_connect can only be called from an ClientContext");
+	}
+
+	@Override
+	public void close() {
+		Logger.debug("AsyncServerContext", "close()");
+		super.close();
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			Logger.error("AsyncServerContext", "Failed to close " + serverChannel, e);
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package com.sunflow.server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Consumer;
+
+import com.sunflow.common.ISocket;
+import com.sunflow.common.LoopbackAddress;
+import com.sunflow.common.LoopbackContext;
+import com.sunflow.common.LoopbackSocket;
+import com.sunflow.util.Logger;
+import com.sunflow.util.Side;
+
+/**
+ * Accepts the in-memory connections of clients in the same JVM, that
+ * connect to the {@link LoopbackAddress} it is bound to
+ */
+public class LoopbackServerContext extends LoopbackContext {
+
+	private final LoopbackAddress address;
+
+	private final Object acceptLock = new Object();
+
+	/**
+	 * Accept requests waiting for a client to connect
+	 */
+	private final Deque<Consumer<ISocket>> acceptRequests;
+
+	/**
+	 * Connections that came in while no accept request was waiting
+	 */
+	private final Deque<LoopbackSocket> backlog;
+
+	private volatile boolean bound;
+
+	public LoopbackServerContext(SocketAddress endpoint) throws IOException {
+		this(null, endpoint);
+	}
+
+	public LoopbackServerContext(ThreadGroup serverThreadGroup, SocketAddress endpoint) throws IOException {
+		super(Side.Server, serverThreadGroup);
+		this.acceptRequests = new ArrayDeque<>();
+		this.backlog = new ArrayDeque<>();
+		this.address = loopbackAddress(endpoint);
+		bind(address, this);
+		bound = true;
+		Logger.info("SERVER", "Bound to " + address);
+	}
+
+	@Override
+	protected boolean acceptsConnections() { return bound; }
+
+	@Override
+	protected void incoming(LoopbackSocket socket) {
+		Consumer<ISocket> request;
+		synchronized (acceptLock) {
+			request = acceptRequests.pollFirst();
+			if (request == null) {
+				backlog.offerLast(socket);
+				acceptLock.notifyAll();
+				return;
+			}
+		}
+		request.accept(socket);
+	}
+
+	/**
+	 * Waits for the next connection on the calling thread
+	 */
+	@Override
+	public void accept(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		LoopbackSocket socket;
+		synchronized (acceptLock) {
+			while ((socket = backlog.pollFirst()) == null) {
+				if (!bound) {
+					errorConsumer.accept(new IOException(address + " got closed"));
+					return;
+				}
+				try {
+					acceptLock.wait();
+				} catch (InterruptedException e) {
+					errorConsumer.accept(new IOException(e));
+					return;
+				}
+			}
+		}
+		socketConsumer.accept(socket);
+	}
+
+	@Override
+	public void async_accept(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		LoopbackSocket socket;
+		synchronized (acceptLock) {
+			socket = backlog.pollFirst();
+			if (socket == null) {
+				acceptRequests.offerLast(socketConsumer);
+				return;
+			}
+		}
+		socketConsumer.accept(socket);
+	}
+
+	@Override
+	public void connect(SocketAddress serverEndpoint,
+			Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		throw new UnsupportedOperationException("connect can only be called from an ClientContext");
+	}
+
+	@Override
+	public void async_connect(SocketAddress serverEndpoint,
+			Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		throw new UnsupportedOperationException("async_connect can only be called from an ClientContext");
+	}
+
+	@Override
+	public void close() {
+		Logger.debug("LoopbackServerContext", "close()");
+		super.close();
+		bound = false;
+		unbind(address, this);
+		synchronized (acceptLock) {
+			acceptRequests.clear();
+			for (LoopbackSocket socket : backlog) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					Logger.error("LoopbackServerContext", "Failed to close " + socket, e);
+				}
+			}
+			backlog.clear();
+			acceptLock.notifyAll();
+		}
+	}
+}
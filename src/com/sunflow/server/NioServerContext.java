@@ -0,0 +1,228 @@
+package com.sunflow.server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Consumer;
+
+import com.sunflow.common.ChannelSocket;
+import com.sunflow.common.CommonContext;
+import com.sunflow.common.ISocket;
+import com.sunflow.common.NioContext;
+import com.sunflow.util.Logger;
+import com.sunflow.util.Side;
+import com.sunflow.util.UnixDomainSockets;
+
+public class NioServerContext extends NioContext {
+
+	private ServerSocketChannel serverChannel;
+	private SocketAddress localAddress;
+
+	/**
+	 * Accept requests waiting for a client to connect, only touched by the event loop
+	 */
+	private Deque<AcceptRequest> acceptRequests;
+
+	/**
+	 * The request of {@link #async_acceptLoop(Consumer, Consumer)}, it stays armed
+	 * and takes every connection the single requests leave, only touched by the event loop
+	 */
+	private AcceptRequest acceptLoop;
+
+	/**
+	 * Event loops the accepted connections are spread over, if there are none
+	 * this context drives the connections itself
+	 */
+	private NioWorkerContext[] workers;
+	private Thread[] workerThreads;
+	private WorkerSelection workerSelection;
+	private int nextWorker = 0;
+
+	public NioServerContext(SocketAddress endpoint) throws IOException {
+		this(null, endpoint);
+	}
+
+	public NioServerContext(ThreadGroup serverThreadGroup, SocketAddress endpoint) throws IOException {
+		this(serverThreadGroup, endpoint, 0, WorkerSelection.RoundRobin);
+	}
+
+	/**
+	 * Creates a multi-reactor context, this one only accepts connections and hands
+	 * each of them to one of the workers, which then drives all of its I/O
+	 * 
+	 * @param workerCount
+	 *            the amount of worker loops, {@code 0} to drive the connections on this context
+	 * @param workerSelection
+	 *            how the worker for a new connection is picked
+	 */
+	public NioServerContext(ThreadGroup serverThreadGroup, SocketAddress endpoint,
+			int workerCount, WorkerSelection workerSelection) throws IOException {
+		super(Side.Server, serverThreadGroup);
+		acceptRequests = new ArrayDeque<>();
+		this.workerSelection = workerSelection;
+		workers = new NioWorkerContext[workerCount];
+		workerThreads = new Thread[workerCount];
+		for (int i = 0; i < workerCount; i++) workers[i] = new NioWorkerContext(serverThreadGroup);
+		serverChannel = UnixDomainSockets.isUnixAddress(endpoint) ? UnixDomainSockets.openServerSocketChannel() : ServerSocketChannel.open();
+		serverChannel.bind(endpoint);
+		serverChannel.configureBlocking(false);
+		localAddress = serverChannel.getLocalAddress();
+		Logger.info("SERVER", "Bound to " + localAddress);
+	}
+
+	/**
+	 * The event loop can't block, so this is the same as
+	 * {@link #async_accept(Consumer, Consumer)}
+	 */
+	@Override
+	public void accept(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		async_accept(socketConsumer, errorConsumer);
+	}
+
+	@Override
+	public void async_accept(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		execute(() -> {
+			try {
+				SelectionKey key = serverChannel.keyFor(selector);
+				if (key == null) key = serverChannel.register(selector, 0);
+				acceptRequests.offerLast(new AcceptRequest(socketConsumer, errorConsumer));
+				key.interestOps(SelectionKey.OP_ACCEPT);
+			} catch (IOException e) {
+				errorConsumer.accept(e);
+			}
+		});
+	}
+
+	/**
+	 * Keeps accepting on this event loop without waiting for the consumer to ask again,
+	 * with workers every channel is handed on as soon as it's accepted
+	 */
+	@Override
+	public void async_acceptLoop(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		execute(() -> {
+			try {
+				SelectionKey key = serverChannel.keyFor(selector);
+				if (key == null) key = serverChannel.register(selector, 0);
+				acceptLoop = new AcceptRequest(socketConsumer, errorConsumer);
+				key.interestOps(SelectionKey.OP_ACCEPT);
+			} catch (IOException e) {
+				errorConsumer.accept(e);
+			}
+		});
+	}
+
+	@Override
+	protected void processKey(SelectionKey key) {
+		if (!key.isAcceptable()) return;
+
+		while (!acceptRequests.isEmpty() || acceptLoop != null) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+				// Nobody else is waiting to connect right now
+				if (channel == null) break;
+				if (workers.length == 0) register(channel);
+			} catch (IOException e) {
+				AcceptRequest request = nextRequest();
+				if (request == acceptLoop) acceptLoop = null;
+				request.errorConsumer.accept(e);
+				continue;
+			}
+			AcceptRequest request = nextRequest();
+			if (workers.length == 0) request.socketConsumer.accept(new ChannelSocket(channel));
+			else nextWorker().adopt(channel, request.socketConsumer, request.errorConsumer);
+		}
+
+		if (key.isValid() && acceptRequests.isEmpty() && acceptLoop == null) key.interestOps(0);
+	}
+
+	/**
+	 * @return the oldest single request, or the loop if there are none
+	 */
+	private AcceptRequest nextRequest() {
+		AcceptRequest request = acceptRequests.pollFirst();
+		return request != null ? request : acceptLoop;
+	}
+
+	private NioWorkerContext nextWorker() {
+		if (workerSelection == WorkerSelection.LeastLoad) {
+			NioWorkerContext least = workers[0];
+			for (NioWorkerContext worker : workers) if (worker.load() < least.load()) least = worker;
+			return least;
+		}
+		NioWorkerContext worker = workers[nextWorker];
+		nextWorker = (nextWorker + 1) % workers.length;
+		return worker;
+	}
+
+	@Override
+	public CommonContext contextOf(ISocket socket) {
+		if (!(socket instanceof ChannelSocket)) return this;
+		SocketChannel channel = ((ChannelSocket) socket).channel();
+		for (NioWorkerContext worker : workers) if (worker.owns(channel)) return worker;
+		return this;
+	}
+
+	@Override
+	public void run() {
+		for (int i = 0; i < workers.length; i++) {
+			workerThreads[i] = new Thread(getThreadGroup(), workers[i]::run, "ServerContext-Worker-" + i);
+			workerThreads[i].start();
+		}
+
+		super.run();
+
+		// The acceptor is done, so stop the workers as well
+		for (NioWorkerContext worker : workers) worker.close();
+		for (Thread workerThread : workerThreads) {
+			try {
+				workerThread.join(1000);
+			} catch (InterruptedException e) {
+				Logger.error("NioServerContext", Thread.currentThread() + " got interrupted while waiting for " + workerThread + " to die", e);
+			}
+		}
+	}
+
+	@Override
+	public void connect(SocketAddress serverEndpoint,
+			Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		throw new UnsupportedOperationException("connect can only be called from an ClientContext");
+	}
+
+	@Override
+	public void async_connect(SocketAddress serverEndpoint,
+			Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		throw new UnsupportedOperationException("async_connect can only be called from an ClientContext");
+	}
+
+	@Override
+	protected void closeChannels() {
+		super.closeChannels();
+		try {
+			serverChannel.close();
+			UnixDomainSockets.deleteSocketFile(localAddress);
+		} catch (IOException e) {
+			Logger.error("NioServerContext", "Failed to close " + serverChannel, e);
+		}
+	}
+
+	@Override
+	public void close() {
+		Logger.debug("NioServerContext", "close()");
+		super.close();
+	}
+
+	private static class AcceptRequest {
+		private final Consumer<ISocket> socketConsumer;
+		private final Consumer<IOException> errorConsumer;
+
+		private AcceptRequest(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+			this.socketConsumer = socketConsumer;
+			this.errorConsumer = errorConsumer;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package com.sunflow.server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.sunflow.common.ChannelSocket;
+import com.sunflow.common.ISocket;
+import com.sunflow.common.NioContext;
+import com.sunflow.util.Logger;
+import com.sunflow.util.Side;
+
+/**
+ * An event loop of a multi-reactor {@link NioServerContext}, it drives the
+ * connections the acceptor hands to it, but never accepts any by itself
+ */
+public class NioWorkerContext extends NioContext {
+
+	/**
+	 * The channels registered with this worker and not closed yet, and how many they are.
+	 * The count is read by the acceptor to pick the least busy worker.
+	 */
+	private final Set<SocketChannel> channels = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger connections = new AtomicInteger();
+
+	public NioWorkerContext(ThreadGroup serverThreadGroup) throws IOException {
+		super(Side.Server, serverThreadGroup);
+	}
+
+	/**
+	 * Takes over an accepted channel, the consumer is called on this worker
+	 * so every callback of the connection stays on its thread
+	 */
+	void adopt(SocketChannel channel, Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		execute(() -> {
+			try {
+				register(channel);
+			} catch (IOException e) {
+				errorConsumer.accept(e);
+				return;
+			}
+			socketConsumer.accept(new CountedSocket(channel));
+		});
+	}
+
+	@Override
+	protected void register(SocketChannel channel) throws IOException {
+		super.register(channel);
+		if (channels.add(channel)) connections.incrementAndGet();
+	}
+
+	/**
+	 * Either the connection closed its socket or this worker closed the channel, whichever comes first counts
+	 */
+	@Override
+	protected void channelClosed(SocketChannel channel) {
+		if (channels.remove(channel)) connections.decrementAndGet();
+	}
+
+	/**
+	 * @return if the channel is registered with this worker
+	 */
+	boolean owns(SocketChannel channel) { return channel.keyFor(selector) != null; }
+
+	/**
+	 * @return the amount of connections driven by this worker
+	 */
+	int load() { return connections.get(); }
+
+	@Override
+	public void accept(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		throw new UnsupportedOperationException("accept can only be called from an ServerContext");
+	}
+
+	@Override
+	public void async_accept(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		throw new UnsupportedOperationException("async_accept can only be called from an ServerContext");
+	}
+
+	@Override
+	public void connect(SocketAddress serverEndpoint,
+			Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		throw new UnsupportedOperationException("connect can only be called from an ClientContext");
+	}
+
+	@Override
+	public void async_connect(SocketAddress serverEndpoint,
+			Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
+		throw new UnsupportedOperationException("async_connect can only be called from an ClientContext");
+	}
+
+	@Override
+	public void close() {
+		Logger.debug("NioWorkerContext", "close()");
+		super.close();
+	}
+
+	/**
+	 * A socket of this worker, it counts itself out of {@link #connections} once closed
+	 */
+	private class CountedSocket extends ChannelSocket {
+
+		CountedSocket(SocketChannel channel) { super(channel); }
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				channelClosed(channel());
+			}
+		}
+	}
+}
@@ -3,18 +3,42 @@ package com.sunflow.server;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.util.ArrayDeque;
+import java.net.SocketAddress;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 
+import com.sunflow.common.CommonContext;
 import com.sunflow.common.Connection;
+import com.sunflow.common.ContextType;
+import com.sunflow.common.HandshakeExtensions;
 import com.sunflow.common.Interface;
+import com.sunflow.common.LoopbackAddress;
+import com.sunflow.common.NioContext;
+import com.sunflow.common.Transport;
+import com.sunflow.common.UnreliableChannel;
 import com.sunflow.error.AcceptingException;
+import com.sunflow.message.BroadcastFrame;
 import com.sunflow.message.MessageBuffer;
+import com.sunflow.message.PacketBuffer;
+import com.sunflow.message.StreamChunk;
 import com.sunflow.util.Logger;
 import com.sunflow.util.Side;
-import com.sunflow.util.TSQueue;
+import com.sunflow.util.MPSCQueue;
 
 /**
  * Implementations of this class need to override onClientConnect,
@@ -41,15 +65,73 @@ public class Server<T> extends Interface<T> {
 	 */
 	protected int nIDCounter = 10000;
 
+	/**
+	 * Amount of event loops the connections get spread over
+	 */
+	protected int workerCount = 0;
+
+	protected WorkerSelection workerSelection = WorkerSelection.RoundRobin;
+
+	/**
+	 * The datagram side channel shared by all connections, if enabled
+	 */
+	protected UnreliableChannel m_unreliable;
+
+	/**
+	 * Hands out the tokens of the datagram peers, they can't be guessed from the ones
+	 * a client saw, so nobody can simply send datagrams on behalf of other clients
+	 */
+	private static final SecureRandom UNRELIABLE_TOKENS = new SecureRandom();
+
+	/**
+	 * Runs the parallel broadcasts
+	 */
+	protected ForkJoinPool broadcastPool = ForkJoinPool.commonPool();
+
+	/**
+	 * Started once the previous parallel broadcast is handed to every client,
+	 * guarded by {@link #broadcastLock}
+	 */
+	private CompletableFuture<Void> lastBroadcast = CompletableFuture.completedFuture(null);
+
+	/**
+	 * Orders the parallel broadcasts, not the server itself, approving a connection holds that one
+	 */
+	private final Object broadcastLock = new Object();
+
 	public Server() { this(MessageBuffer::new); }
 
 	public Server(Supplier<MessageBuffer<T>> messageFactory) {
 		super(messageFactory);
 
-		this.m_qMessagesIn = new TSQueue<>();
-		this.m_deqConnections = new ArrayDeque<>();
+		this.m_qMessagesIn = new MPSCQueue<>();
+		this.m_deqConnections = new ConcurrentLinkedDeque<>();
 	}
 
+	/**
+	 * Spreads the connections of a {@link ContextType#Selector} server over several
+	 * event loops, while one acceptor keeps accepting new ones. Every connection stays
+	 * on the worker it was handed to. Only affects servers created afterwards.
+	 * 
+	 * @param workerCount
+	 *            the amount of worker loops, {@code 0} to drive every connection on the acceptor
+	 * @param workerSelection
+	 *            how the worker for a new connection is picked
+	 */
+	public void setWorkers(int workerCount, WorkerSelection workerSelection) {
+		this.workerCount = workerCount;
+		this.workerSelection = workerSelection;
+	}
+
+	/**
+	 * Sets the pool {@link #messageAllClientsParallel(MessageBuffer, Connection...)} and
+	 * {@link #messageOnlyClientsParallel(MessageBuffer, Connection...)} split the clients over
+	 * 
+	 * @param broadcastPool
+	 *            the pool, {@link ForkJoinPool#commonPool()} by default
+	 */
+	public void setBroadcastPool(ForkJoinPool broadcastPool) { this.broadcastPool = broadcastPool; }
+
 	/**
 	 * Creates a server without starting, bound to the specified port. A port number
 	 * of {@code 0} means that the port number is automatically
@@ -61,6 +143,21 @@ public class Server<T> extends Interface<T> {
 	 */
 	public void create(int port) { create(new InetSocketAddress(port)); }
 
+	/**
+	 * Creates a server without starting, bound to the specified port,
+	 * that drives its connections with the specified context type
+	 * 
+	 * @param port
+	 *            the port number, or {@code 0} to use a port
+	 *            number that is automatically allocated.
+	 * @param contextType
+	 *            the I/O model of the server
+	 */
+	public void create(int port, ContextType contextType) {
+		setContextType(contextType);
+		create(port);
+	}
+
 	/**
 	 * Creates a server without starting, bound to a specific address
 	 * (IP address and port number).
@@ -99,19 +196,48 @@ public class Server<T> extends Interface<T> {
 	 * an ephemeral port and a valid local address to bind the socket.
 	 * 
 	 * @param endpoint
-	 *            The ip-address and port number to bind to.
+	 *            The ip-address and port number to bind to, a unix domain socket
+	 *            address or the address of another {@link Transport}, like a {@link LoopbackAddress}
 	 * 
 	 * @return If the server started without errors
 	 */
-	private boolean create(InetSocketAddress endpoint) {
-		threadGroup = new ThreadGroup(endpoint.getPort() + "/Server-Thread-Group");// Create the context
+	public boolean create(SocketAddress endpoint) {
+		String name = endpoint instanceof InetSocketAddress ? String.valueOf(((InetSocketAddress) endpoint).getPort()) : String.valueOf(endpoint);
+		threadGroup = new ThreadGroup(name + "/Server-Thread-Group");// Create the context
 
+		Transport transport = transportFor(endpoint);
 		try {
-			m_context = new ServerContext(threadGroup, endpoint);
+			if (transport != null) m_context = transport.createServerContext(threadGroup, endpoint);
+			else switch (contextTypeFor(endpoint)) {
+				case Selector:
+					m_context = new NioServerContext(threadGroup, endpoint, workerCount, workerSelection);
+					break;
+				case Asynchronous:
+					m_context = new AsyncServerContext(threadGroup, endpoint);
+					break;
+				case VirtualThread:
+					m_context = new ServerContext(threadGroup, endpoint);
+					m_context.setVirtualThreads(true);
+					break;
+				default:
+					m_context = new ServerContext(threadGroup, endpoint);
+					break;
+			}
 		} catch (IOException e) {
 			Logger.fatal("SERVER", "Starting Exception:", e);
 			return false;
 		}
+		m_context.setPoolSettings(poolSettings);
+		m_context.setReadLoop(readLoop);
+
+		// Datagrams need an ip address, other transports go without a side channel
+		if (unreliable && transport == null && endpoint instanceof InetSocketAddress) {
+			try {
+				m_unreliable = UnreliableChannel.open(Side.Server, threadGroup, endpoint);
+			} catch (IOException e) {
+				Logger.error("SERVER", "Couldn't open the unreliable channel, sending everything reliable", e);
+			}
+		}
 		return true;
 	}
 
@@ -170,11 +296,12 @@ public class Server<T> extends Interface<T> {
 	 * an ephemeral port and a valid local address to bind the socket.
 	 * 
 	 * @param endpoint
-	 *            The ip-address and port number to bind to.
+	 *            The ip-address and port number to bind to, a unix domain socket
+	 *            address or the address of another {@link Transport}, like a {@link LoopbackAddress}
 	 * 
 	 * @return If the server started without errors
 	 */
-	public boolean start(InetSocketAddress endpoint) {
+	public boolean start(SocketAddress endpoint) {
 		boolean error = create(endpoint);
 		error = start();
 		return !error;
@@ -184,7 +311,7 @@ public class Server<T> extends Interface<T> {
 		Logger.info("SERVER", "Starting...");
 
 		if (m_context == null) {
-			Logger.error("SERVER", "Can't start a server that isn't created yet\ncall start(int), start(String,int), start(InetAddress,int) or start(InetSocketAddress) instead!");
+			Logger.error("SERVER", "Can't start a server that isn't created yet\ncall start(int), start(String,int), start(InetAddress,int) or start(SocketAddress) instead!");
 			return false;
 		}
 
@@ -215,6 +342,11 @@ public class Server<T> extends Interface<T> {
 		if (!isRunning()) return;
 		// Request the context to close
 		m_context.close();
+		if (m_unreliable != null) try {
+			m_unreliable.close();
+		} catch (IOException e) {
+			Logger.error("SERVER", "Failed to close the unreliable channel", e);
+		}
 
 		try {
 			Logger.debug("SERVER", "Wait 3000 ms for " + m_threadContext + " to die");
@@ -250,26 +382,33 @@ public class Server<T> extends Interface<T> {
 		 * for each incoming connection attempt
 		 */
 
-		m_context.async_accept(socket -> {
+		// Every accepted socket ends up here, the context asks for the next one by itself
+		m_context.async_acceptLoop(socket -> {
 			// Triggered by incoming connection request
 			Logger.info("SERVER", "New Connection: (" + socket.getRemoteSocketAddress() + ")");
 
-			Connection<T> newconn = new Connection<>(Side.Server, m_context, socket, m_qMessagesIn, messageFactory);
+			Connection<T> newconn = new Connection<>(Side.Server, m_context.contextOf(socket), socket, m_qMessagesIn, messageFactory);
 
-			// Give the server impl a chance to deny connection
-			if (onClientConnect(newconn, nIDCounter)) {
+			// Connections might be accepted on several worker loops at once
+			int clientID;
+			boolean approved;
+			synchronized (this) {
+				clientID = nIDCounter;
+				// Give the server impl a chance to deny connection, a denied one doesn't use up an id
+				approved = onClientConnect(newconn, clientID);
+				if (approved) nIDCounter++;
+			}
+
+			if (approved) {
 				// Connection allowed, so add to container of new connections
 				m_deqConnections.offerLast(newconn);
 
-				newconn.connectToClient(this, nIDCounter++);
+				newconn.connectToClient(this, clientID);
 
 				Logger.info("SERVER", "(" + newconn.getID() + ") Connection Approved");
 			} else {
 				Logger.debug("SERVER", "Connection Denied");
 			}
-
-			// Prime the context with more work - again simply wait for another connection...
-			waitForClientConnection();
 		}, error ->
 		// Error has occurred during acceptance
 		Logger.error("SERVER", "New Connection Exception:", new AcceptingException("", error)));
@@ -293,6 +432,37 @@ public class Server<T> extends Interface<T> {
 		}
 	}
 
+	/**
+	 * Send a message to a specific client over the datagram side channel,
+	 * it might get lost or overtake other messages
+	 * 
+	 * @param client
+	 *            The specific client
+	 * @param msg
+	 *            The message
+	 * @see Connection#sendUnreliable(com.sunflow.message.PacketBuffer)
+	 */
+	public void messageClientUnreliable(Connection<T> client, MessageBuffer<T> msg) {
+		// Check client is connected...
+		if (client != null && client.isConnected())
+			client.sendUnreliable(msg);
+		else {
+			// The client couldn't be contacted, so assume it has disconnected.
+			clientNotConnected(client);
+		}
+	}
+
+	/**
+	 * Send a message to all clients over the datagram side channel,
+	 * it might get lost or overtake other messages
+	 * 
+	 * @param msg
+	 *            The message
+	 */
+	public void messageAllClientsUnreliable(MessageBuffer<T> msg) {
+		sendShared(msg, m_deqConnections.iterator(), client -> true, Connection::sendUnreliable);
+	}
+
 	/**
 	 * Send a message to all clients
 	 * 
@@ -310,19 +480,7 @@ public class Server<T> extends Interface<T> {
 	 *            The client to ignore, null to send to everybody
 	 */
 	public void messageAllClients(MessageBuffer<T> msg, Connection<T> ignoreClient) {
-//		System.out.println(m_deqConnections.size());
-		for (Connection<T> client : m_deqConnections) {
-//		for (Iterator<Connection<T>> iterator = m_deqConnections.descendingIterator(); iterator.hasNext();) {
-//			Connection<T> client = iterator.next();
-			// Check client is connected...
-			if (client != null && client.isConnected()) {
-				// Check that it's not the client we want to ignore
-				if (client != ignoreClient) client.send(msg);
-			} else {
-				// The client couldn't be contacted, so assume it has disconnected.
-				clientNotConnected(client);
-			}
-		}
+		sendShared(msg, m_deqConnections.iterator(), client -> client != ignoreClient, Connection::send);
 	}
 
 	/**
@@ -334,57 +492,231 @@ public class Server<T> extends Interface<T> {
 	 *            The client to ignore, null to send to everybody
 	 */
 	public void messageAllClients(MessageBuffer<T> msg, Connection<T>... ignoreClients) {
-//		System.out.println(m_deqConnections.size());
-//		for (Connection<T> client : m_deqConnections) {
-		for (Iterator<Connection<T>> iterator = m_deqConnections.descendingIterator(); iterator.hasNext();) {
-			Connection<T> client = iterator.next();
-			// Check client is connected...
-			if (client != null && client.isConnected()) {
-				// Check that it's not the client we want to ignore
-				boolean ignore = false;
-				for (Connection<T> ignoreClient : ignoreClients) if (client == ignoreClient) {
-					ignore = true;
-					break;
+		sendShared(msg, m_deqConnections.descendingIterator(), client -> !contains(ignoreClients, client), Connection::send);
+	}
+
+	public void messageOnlyClients(MessageBuffer<T> msg, Connection<T>... clients) {
+		sendShared(msg, m_deqConnections.descendingIterator(), client -> contains(clients, client), Connection::send);
+	}
+
+	/**
+	 * Hands the message to the clients the filter accepts, all of them share one encoded
+	 * {@link BroadcastFrame}. Clients found disconnected are removed.
+	 * 
+	 * @param msg
+	 *            The message
+	 * @param clients
+	 *            The clients, in the order they get the message
+	 * @param filter
+	 *            Which of the connected clients get the message
+	 * @param send
+	 *            How the frame is sent to a client
+	 */
+	private void sendShared(MessageBuffer<T> msg, Iterator<Connection<T>> clients, Predicate<Connection<T>> filter, BiConsumer<Connection<T>, PacketBuffer> send) {
+		PacketBuffer shared = new BroadcastFrame(msg);
+		try {
+			while (clients.hasNext()) {
+				Connection<T> client = clients.next();
+				// Check client is connected...
+				if (client != null && client.isConnected()) {
+					if (filter.test(client)) send.accept(client, shared);
+				} else {
+					// The client couldn't be contacted, so assume it has disconnected.
+					clientNotConnected(client);
 				}
-				if (!ignore) client.send(msg);
-			} else {
-				// The client couldn't be contacted, so assume it has disconnected.
-				clientNotConnected(client);
 			}
+		} finally {
+			shared.release();
 		}
 	}
 
-	public void messageOnlyClients(MessageBuffer<T> msg, Connection<T>... clients) {
-//		System.out.println(m_deqConnections.size());
-//		for (Connection<T> client : m_deqConnections) {
-		for (Iterator<Connection<T>> iterator = m_deqConnections.descendingIterator(); iterator.hasNext();) {
-			Connection<T> client = iterator.next();
-			// Check client is connected...
-			if (client != null && client.isConnected()) {
-				// Check that it's not the client we want to ignore
-				boolean send = false;
-				for (Connection<T> ignoreClient : clients) if (client == ignoreClient) {
-					send = true;
-					break;
+	private static boolean contains(Connection<?>[] clients, Connection<?> client) {
+		for (Connection<?> c : clients) if (c == client) return true;
+		return false;
+	}
+
+	/**
+	 * Send a message to all clients except the ignored ones, like
+	 * {@link #messageAllClients(MessageBuffer, Connection...)} but the clients are split
+	 * over the {@link #setBroadcastPool(ForkJoinPool) broadcast pool} and the caller
+	 * doesn't wait for the message to be handed to every one of them.
+	 * <p>
+	 * The broadcast holds a reference of its own to the message, a
+	 * {@link PacketBuffer#pooled() pooled} message can be released right away.
+	 * Clients found disconnected are removed on the pool. Parallel broadcasts reach
+	 * every client in the order they were made, messages sent to a client in any other
+	 * way meanwhile might overtake them.
+	 * 
+	 * @param msg
+	 *            The message, must not be changed until the returned future completes
+	 * @param ignoreClients
+	 *            The clients to ignore
+	 * @return completes with the amount of clients the message was handed to,
+	 *         once every one of them has it queued
+	 */
+	@SafeVarargs
+	public final CompletableFuture<Integer> messageAllClientsParallel(MessageBuffer<T> msg, Connection<T>... ignoreClients) {
+		Set<Connection<T>> ignored = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (Connection<T> ignoreClient : ignoreClients) ignored.add(ignoreClient);
+		return broadcast(msg, () -> m_deqConnections.toArray(new Connection<?>[0]), client -> !ignored.contains(client));
+	}
+
+	/**
+	 * Send a message to the specified clients, like {@link #messageOnlyClients(MessageBuffer, Connection...)}
+	 * but in parallel as {@link #messageAllClientsParallel(MessageBuffer, Connection...)} does
+	 * 
+	 * @param msg
+	 *            The message, must not be changed until the returned future completes
+	 * @param clients
+	 *            The clients to send it to
+	 * @return completes with the amount of clients the message was handed to,
+	 *         once every one of them has it queued
+	 */
+	@SafeVarargs
+	public final CompletableFuture<Integer> messageOnlyClientsParallel(MessageBuffer<T> msg, Connection<T>... clients) {
+		Connection<?>[] recipients = new Connection<?>[clients.length];
+		for (int i = 0; i < clients.length; i++) recipients[i] = clients[i];
+		return broadcast(msg, () -> recipients, client -> true);
+	}
+
+	private CompletableFuture<Integer> broadcast(MessageBuffer<T> msg, Supplier<Connection<?>[]> recipients, Predicate<Connection<T>> filter) {
+		Broadcast broadcast = new Broadcast(new BroadcastFrame(msg));
+		synchronized (broadcastLock) {
+			// Even the recipients are picked on the pool, the caller only pays for handing the task over.
+			// Started one after another, so every client gets the broadcasts in order.
+			lastBroadcast = lastBroadcast.handleAsync((result, error) -> {
+				broadcast.start(recipients.get(), filter);
+				return null;
+			}, broadcastPool);
+			lastBroadcast.whenComplete((result, error) -> {
+				// Only if the pool rejected it, the broadcast handles its own errors
+				if (error != null) broadcast.fail(error);
+			});
+		}
+		return broadcast.done;
+	}
+
+	/**
+	 * A message on its way to many clients. Clients driven by an event loop get it on
+	 * their loop, with one task per loop instead of one per client. The others are
+	 * split over the {@link #broadcastPool}.
+	 */
+	private class Broadcast {
+		private final PacketBuffer shared;
+		private final CompletableFuture<Integer> done = new CompletableFuture<>();
+		private final AtomicInteger sent = new AtomicInteger();
+
+		/**
+		 * The parts still running, the message is released once all of them are done
+		 */
+		private final AtomicInteger pending = new AtomicInteger(1);
+
+		private Broadcast(PacketBuffer shared) { this.shared = shared; }
+
+		private void start(Connection<?>[] recipients, Predicate<Connection<T>> filter) {
+			try {
+				Map<CommonContext, List<Connection<T>>> loops = new IdentityHashMap<>();
+				List<Connection<T>> others = new ArrayList<>();
+				for (Connection<?> recipient : recipients) {
+					@SuppressWarnings("unchecked")
+					Connection<T> client = (Connection<T>) recipient;
+					if (client == null || !filter.test(client)) continue;
+					CommonContext context = client.getContext();
+					// Only event loops defer what's posted to them, the other contexts send right away
+					if (context instanceof NioContext && context.isRunning()) loops.computeIfAbsent(context, c -> new ArrayList<>()).add(client);
+					else others.add(client);
 				}
-				if (send) client.send(msg);
-			} else {
-				// The client couldn't be contacted, so assume it has disconnected.
-				clientNotConnected(client);
+				pending.addAndGet(loops.size());
+				for (Map.Entry<CommonContext, List<Connection<T>>> loop : loops.entrySet()) {
+					List<Connection<T>> clients = loop.getValue();
+					loop.getKey().post("server_broadcast", () -> {
+						try {
+							sent.addAndGet(send(clients, 0, clients.size()));
+						} finally {
+							finish();
+						}
+					});
+				}
+				sent.addAndGet(new Fanout(others, 0, others.size()).invoke());
+				finish();
+			} catch (Throwable t) {
+				fail(t);
+			}
+		}
+
+		/**
+		 * Hands the message to a range of the clients
+		 * 
+		 * @return the amount of clients it was handed to
+		 */
+		private int send(List<Connection<T>> clients, int from, int to) {
+			int count = 0;
+			for (int i = from; i < to; i++) {
+				Connection<T> client = clients.get(i);
+				// Check client is connected...
+				if (client.isConnected()) {
+					client.send(shared);
+					count++;
+				} else {
+					// The client couldn't be contacted, so assume it has disconnected.
+					clientNotConnected(client);
+				}
+			}
+			return count;
+		}
+
+		private void finish() {
+			if (pending.decrementAndGet() != 0) return;
+			shared.release();
+			done.complete(sent.get());
+		}
+
+		private void fail(Throwable t) {
+			// The parts already running hold on to the message until they're done
+			if (done.completeExceptionally(t)) finish();
+		}
+
+		/**
+		 * Hands the message to a range of clients, ranges above {@link #FANOUT_THRESHOLD}
+		 * are split in halves that run in parallel
+		 */
+		private class Fanout extends RecursiveTask<Integer> {
+			private static final long serialVersionUID = 1L;
+
+			private static final int FANOUT_THRESHOLD = 256;
+
+			private final List<Connection<T>> clients;
+			private final int from, to;
+
+			private Fanout(List<Connection<T>> clients, int from, int to) {
+				this.clients = clients;
+				this.from = from;
+				this.to = to;
+			}
+
+			@Override
+			protected Integer compute() {
+				if (to - from <= FANOUT_THRESHOLD) return send(clients, from, to);
+				int middle = (from + to) >>> 1;
+				Fanout upper = new Fanout(clients, middle, to);
+				upper.fork();
+				return new Fanout(clients, from, middle).compute() + upper.join();
 			}
 		}
 	}
 
 	/**
 	 * Called when a client couldn't be contacted, so we assume it has disconnected.
+	 * Broadcasts running at once may all find it, only the one removing it goes on.
 	 * 
 	 * @param client
 	 *            that couldn't be contacted
 	 */
 	private void clientNotConnected(Connection<T> client) {
-		onClientDisconnect(client);
-		m_deqConnections.remove(client);
-		client.disconnect();
+		if (client != null && m_deqConnections.remove(client)) {
+			onClientDisconnect(client);
+			client.disconnect();
+		}
 	}
 
 	/**
@@ -398,7 +730,9 @@ public class Server<T> extends Interface<T> {
 	protected boolean onClientConnect(Connection<T> client, int clientID) { return false; }
 
 	/**
-	 * Called when a client appears to have disconnected
+	 * Called once when a client appears to have disconnected, on the thread that found out:
+	 * the one sending to it, or one of the {@link #setBroadcastPool(ForkJoinPool) broadcast pool}
+	 * for a parallel broadcast. It can run at the same time as the handlers on the update thread.
 	 * 
 	 * @param client
 	 *            The disconnected client
@@ -420,6 +754,57 @@ public class Server<T> extends Interface<T> {
 	 */
 	protected void onMessage(Connection<T> client, MessageBuffer<T> msg) {}
 
+	@Override
+	protected void onChunk(MessageBuffer.Owned<T> chunk) {
+		onChunk(chunk.getRemote(), (StreamChunk<T>) chunk.getMessage());
+	}
+
+	/**
+	 * Called when a chunk of a stream arrives, unless overridden the stream is dropped
+	 * 
+	 * @param client
+	 *            The client that sent the stream
+	 * @param chunk
+	 *            The chunk
+	 * @see Connection#sendStream(Object, java.io.InputStream)
+	 */
+	protected void onChunk(Connection<T> client, StreamChunk<T> chunk) {
+		if (chunk.isFirst()) Logger.debug("SERVER", "(" + client.getID() + ") onChunk isn't overridden, dropped the stream of " + chunk);
+	}
+
 	public void onClientValidated(Connection<T> client) {}
 
+	@Override
+	protected void onExtensions(Connection<T> client, HandshakeExtensions remote) {
+		super.onExtensions(client, remote);
+		PacketBuffer offer = remote.get(HandshakeExtensions.UNRELIABLE);
+		if (m_unreliable == null || offer == null || !(client.getRemoteAddress() instanceof InetSocketAddress)) return;
+
+		// Until the first datagram tells us better, the client is expected at the port it offered
+		InetSocketAddress address = new InetSocketAddress(((InetSocketAddress) client.getRemoteAddress()).getAddress(), offer.readVarInt());
+		UnreliableChannel.Peer peer;
+		// Another client's peer is never replaced, its token is simply taken
+		do peer = m_unreliable.register(UNRELIABLE_TOKENS.nextInt(), address, client::receiveUnreliable);
+		while (peer == null);
+		client.setUnreliable(peer);
+	}
+
+	@Override
+	protected void writeExtensions(Connection<T> client, HandshakeExtensions extensions) {
+		super.writeExtensions(client, extensions);
+		UnreliableChannel.Peer peer = client.getUnreliable();
+		if (peer == null) return;
+		try {
+			PacketBuffer answer = new PacketBuffer();
+			answer.writeVarInt(((InetSocketAddress) m_unreliable.getLocalAddress()).getPort());
+			answer.writeInt(peer.getToken());
+			extensions.put(HandshakeExtensions.UNRELIABLE, answer);
+		} catch (IOException e) {
+			Logger.error("SERVER", "(" + client.getID() + ") Couldn't offer the unreliable channel", e);
+			peer.close();
+			client.setUnreliable(null);
+		}
+	}
+
+
 }
\ No newline at end of file
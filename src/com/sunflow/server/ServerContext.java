@@ -1,12 +1,14 @@
 package com.sunflow.server;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.util.function.Consumer;
 
+import com.sunflow.common.BlockingSocket;
 import com.sunflow.common.CommonContext;
+import com.sunflow.common.ISocket;
 import com.sunflow.util.Logger;
 import com.sunflow.util.Side;
 
@@ -14,11 +16,11 @@ public class ServerContext extends CommonContext {
 
 	private ServerSocket serverSocket;
 
-	public ServerContext(InetSocketAddress endpoint) throws IOException {
+	public ServerContext(SocketAddress endpoint) throws IOException {
 		this(null, endpoint);
 	}
 
-	public ServerContext(ThreadGroup serverThreadGroup, InetSocketAddress endpoint) throws IOException {
+	public ServerContext(ThreadGroup serverThreadGroup, SocketAddress endpoint) throws IOException {
 		super(Side.Server, serverThreadGroup);
 		serverSocket = new ServerSocket();
 //		serverSocket.setSendBufferSize(200000);
@@ -28,34 +30,34 @@ public class ServerContext extends CommonContext {
 	}
 
 	@Override
-	public void accept(Consumer<Socket> socketConsumer, Consumer<IOException> errorConsumer) {
+	public void accept(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
 		task("servercontext_accept", () -> {
 			Socket socket = serverSocket.accept();
-			socketConsumer.accept(socket);
+			socketConsumer.accept(new BlockingSocket(socket));
 		}, errorConsumer);
 	}
 
 	@Override
-	public void async_accept(Consumer<Socket> socketConsumer, Consumer<IOException> errorConsumer) {
+	public void async_accept(Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
 		async_task("servercontext_async_accept", () -> {
 			Socket socket = serverSocket.accept();
 //			socket.setSendBufferSize(200000);
 //			socket.setReceiveBufferSize(200000);
 //			System.out.println(socket.getReceiveBufferSize());
 //			System.out.println(socket.getSendBufferSize());
-			socketConsumer.accept(socket);
+			socketConsumer.accept(new BlockingSocket(socket));
 		}, errorConsumer);
 	}
 
 	@Override
-	public void connect(InetSocketAddress serverEndpoint,
-			Consumer<Socket> socketConsumer, Consumer<IOException> errorConsumer) {
+	public void connect(SocketAddress serverEndpoint,
+			Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
 		throw new UnsupportedOperationException("connect can only be called from an ClientContext");
 	}
 
 	@Override
-	public void async_connect(InetSocketAddress serverEndpoint,
-			Consumer<Socket> socketConsumer, Consumer<IOException> errorConsumer) {
+	public void async_connect(SocketAddress serverEndpoint,
+			Consumer<ISocket> socketConsumer, Consumer<IOException> errorConsumer) {
 		throw new UnsupportedOperationException("async_connect can only be called from an ClientContext");
 	}
 
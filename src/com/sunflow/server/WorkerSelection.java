@@ -0,0 +1,15 @@
+package com.sunflow.server;
+
+/**
+ * How a multi-reactor server picks the worker loop for an accepted connection
+ */
+public enum WorkerSelection {
+	/**
+	 * Hand the connections to the workers one after another
+	 */
+	RoundRobin,
+	/**
+	 * Hand the connection to the worker currently driving the fewest connections
+	 */
+	LeastLoad
+}
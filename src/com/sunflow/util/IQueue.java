@@ -0,0 +1,87 @@
+package com.sunflow.util;
+
+import java.util.Collection;
+
+/**
+ * A queue threads hand elements to each other with, added at the back and taken from the front.
+ * A consumer can sleep on it until an element is added.
+ *
+ * @param <T>
+ *            The type of the elements
+ */
+public interface IQueue<T> {
+
+	/**
+	 * Adds the element at the back and wakes a consumer sleeping on the queue
+	 *
+	 * @param item
+	 *            the element to add, not {@code null}
+	 */
+	void push_back(T item);
+
+	/**
+	 * Retrieves and removes the first element,
+	 * or returns {@code null} if the queue is empty.
+	 *
+	 * @return the head of the queue, or {@code null} if the queue is empty
+	 */
+	T pop_front();
+
+	/**
+	 * Retrieves, but does not remove, the first element,
+	 * or returns {@code null} if the queue is empty.
+	 *
+	 * @return the head of the queue, or {@code null} if the queue is empty
+	 */
+	T front();
+
+	/**
+	 * Returns <tt>true</tt> if the queue contains no elements.
+	 *
+	 * @return <tt>true</tt> if the queue contains no elements
+	 */
+	boolean empty();
+
+	/**
+	 * Returns the number of elements in the queue.
+	 *
+	 * @return the number of elements in the queue
+	 */
+	int count();
+
+	/**
+	 * Removes all of the elements, the queue will be empty after this method returns.
+	 */
+	void clear();
+
+	/**
+	 * Removes up to {@code max} elements from the front and adds them to the collection,
+	 * in the order they were queued.
+	 *
+	 * @param c
+	 *            the collection to add the elements to
+	 * @param max
+	 *            the most elements to remove
+	 * @return the number of elements removed
+	 */
+	int drainTo(Collection<? super T> c, int max);
+
+	/**
+	 * Wakes a consumer sleeping on the queue
+	 */
+	void wake();
+
+	/**
+	 * Sleeps until an element is there
+	 */
+	void sleep();
+
+	/**
+	 * Sleeps until an element is added or the time is up
+	 *
+	 * @param nanos
+	 *            the most time to sleep, {@link Long#MAX_VALUE} sleeps like {@link #sleep()}
+	 * @return if an element is there
+	 */
+	boolean sleep(long nanos);
+}
@@ -0,0 +1,60 @@
+package com.sunflow.util;
+
+/**
+ * Limits of the received messages waiting to be handled. Once they are exceeded,
+ * connections stop reading from their sockets, so TCP holds back the peers,
+ * until enough messages have been handled to fall to the low watermarks.
+ */
+public class InboundLimits {
+
+	/**
+	 * No limits, connections always read
+	 */
+	public static final InboundLimits UNBOUNDED = new InboundLimits(Long.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+
+	public final long maxBytes;
+	public final int maxMessages;
+	public final long lowBytes;
+	public final int lowMessages;
+
+	/**
+	 * Reading resumes at half of both limits
+	 *
+	 * @see #InboundLimits(long, int, long, int)
+	 */
+	public InboundLimits(long maxBytes, int maxMessages) { this(maxBytes, maxMessages, maxBytes / 2, maxMessages / 2); }
+
+	/**
+	 * @param maxBytes
+	 *            the most bytes of data waiting, reading stops beyond
+	 * @param maxMessages
+	 *            the most messages waiting, reading stops beyond
+	 * @param lowBytes
+	 *            reading resumes once the bytes fell to it, and the messages to theirs
+	 * @param lowMessages
+	 *            reading resumes once the messages fell to it, and the bytes to theirs
+	 */
+	public InboundLimits(long maxBytes, int maxMessages, long lowBytes, int lowMessages) {
+		if (maxBytes <= 0 || maxMessages <= 0 || lowBytes < 0 || lowMessages < 0 || lowBytes > maxBytes || lowMessages > maxMessages)
+			throw new IllegalArgumentException("Invalid limits: bytes=" + lowBytes + "/" + maxBytes + ", messages=" + lowMessages + "/" + maxMessages);
+		this.maxBytes = maxBytes;
+		this.maxMessages = maxMessages;
+		this.lowBytes = lowBytes;
+		this.lowMessages = lowMessages;
+	}
+
+	/**
+	 * @return if reading has to stop with that much waiting
+	 */
+	public boolean exceeded(long bytes, int messages) { return bytes > maxBytes || messages > maxMessages; }
+
+	/**
+	 * @return if reading may resume with that much waiting
+	 */
+	public boolean drained(long bytes, int messages) { return bytes <= lowBytes && messages <= lowMessages; }
+
+	@Override
+	public String toString() {
+		return "InboundLimits{bytes=" + lowBytes + "/" + maxBytes + ", messages=" + lowMessages + "/" + maxMessages + "}";
+	}
+}
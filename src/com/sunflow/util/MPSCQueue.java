@@ -0,0 +1,148 @@
+package com.sunflow.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A queue any number of threads add to at the back, while only one thread at
+ * a time takes from the front. Neither side takes a lock: adding is one atomic swap of
+ * the tail, taking only reads what the producers linked in.
+ * <p>
+ * A consumer waiting in {@link #sleep()} yields a few times first, then it's parked.
+ * Producers only unpark it while it's actually parked, otherwise adding costs no signal at all.
+ *
+ * @param <T>
+ *            The type of the elements
+ */
+public class MPSCQueue<T> implements IQueue<T> {
+
+	private static class Node<T> {
+		T item;
+		volatile Node<T> next;
+
+		Node(T item) { this.item = item; }
+	}
+
+	/**
+	 * The node whose successor is the front, only used by the consumer
+	 */
+	private Node<T> head;
+
+	/**
+	 * The last node, producers swap in their node and link it to the one they replaced
+	 */
+	private final AtomicReference<Node<T>> tail;
+
+	/**
+	 * How often {@link #sleep()} gives way to other threads before it parks, producers
+	 * sending bursts usually add the next element by then, which is cheaper than parking
+	 */
+	private static final int YIELDS = 16;
+
+	/**
+	 * The consumer while it's parked in {@link #sleep()}
+	 */
+	private volatile Thread waiter;
+
+	public MPSCQueue() {
+		head = new Node<>(null);
+		tail = new AtomicReference<>(head);
+	}
+
+	@Override
+	public void push_back(T item) {
+		if (item == null) throw new NullPointerException();
+		Node<T> node = new Node<>(item);
+		// Until the link is set the consumer sees the queue end before this node, as if it wasn't added yet
+		tail.getAndSet(node).next = node;
+		wake();
+	}
+
+	@Override
+	public T pop_front() {
+		Node<T> next = head.next;
+		if (next == null) return null;
+		T item = next.item;
+		// The node becomes the one before the front, it must not keep the item alive
+		next.item = null;
+		head = next;
+		return item;
+	}
+
+	@Override
+	public T front() {
+		Node<T> next = head.next;
+		return next == null ? null : next.item;
+	}
+
+	/**
+	 * Follows the links once, only the last node taken becomes the new head
+	 */
+	@Override
+	public int drainTo(Collection<? super T> c, int max) {
+		int count = 0;
+		Node<T> node = head, next;
+		while (count < max && (next = node.next) != null) {
+			c.add(next.item);
+			next.item = null;
+			node = next;
+			count++;
+		}
+		head = node;
+		return count;
+	}
+
+	@Override
+	public boolean empty() { return head.next == null; }
+
+	/**
+	 * Counts the elements one by one, only meant for diagnostics
+	 */
+	@Override
+	public int count() {
+		int count = 0;
+		for (Node<T> node = head.next; node != null; node = node.next) count++;
+		return count;
+	}
+
+	@Override
+	public void clear() { while (pop_front() != null) {} }
+
+	@Override
+	public void wake() {
+		Thread thread = waiter;
+		if (thread != null) LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Parks the consumer until an element is there
+	 */
+	@Override
+	public void sleep() { sleep(Long.MAX_VALUE); }
+
+	/**
+	 * Parks the consumer until an element is there or the time is up
+	 */
+	@Override
+	public boolean sleep(long nanos) {
+		long start = System.nanoTime();
+		for (int i = 0; i < YIELDS; i++) {
+			if (!empty()) return true;
+			Thread.yield();
+		}
+		// Announced before checking again, a producer adding meanwhile either sees it or is seen
+		waiter = Thread.currentThread();
+		try {
+			long left;
+			while (empty() && (left = nanos - (System.nanoTime() - start)) > 0) {
+				if (nanos == Long.MAX_VALUE) LockSupport.park(this);
+				else LockSupport.parkNanos(this, left);
+				if (Thread.interrupted()) Logger.error("MPSCQueue_sleep", "MPSCQueue got interrupted while waiting!");
+			}
+		} finally {
+			waiter = null;
+		}
+		return !empty();
+	}
+}
@@ -0,0 +1,81 @@
+package com.sunflow.util;
+
+/**
+ * Limits of the messages a connection holds on to until they are written,
+ * so a peer that doesn't keep up can't make the queue grow without end
+ */
+public class OutboundLimits {
+
+	/**
+	 * What happens to a message sent once the queue is full
+	 */
+	public enum Overflow {
+		/**
+		 * Block the sending thread until there's room again, or the connection is closed.
+		 * Threads of the context are never blocked, they would be needed to make room,
+		 * their messages are queued anyway.
+		 */
+		Block,
+		/**
+		 * Drop the oldest messages that aren't being written yet until the message fits
+		 */
+		DropOldest,
+		/**
+		 * Drop the message
+		 */
+		DropNewest,
+		/**
+		 * Close the connection, the peer is too slow to be kept
+		 */
+		Disconnect
+	}
+
+	/**
+	 * No limits, the queue grows as long as there are messages
+	 */
+	public static final OutboundLimits UNBOUNDED = new OutboundLimits(Long.MAX_VALUE, Integer.MAX_VALUE, Overflow.Block, Long.MAX_VALUE, Long.MAX_VALUE);
+
+	public final long maxBytes;
+	public final int maxMessages;
+	public final Overflow overflow;
+	public final long lowWatermark;
+	public final long highWatermark;
+
+	/**
+	 * Puts the watermarks at a half and a quarter of the byte limit
+	 *
+	 * @see #OutboundLimits(long, int, Overflow, long, long)
+	 */
+	public OutboundLimits(long maxBytes, int maxMessages, Overflow overflow) {
+		this(maxBytes, maxMessages, overflow, maxBytes / 4, maxBytes / 2);
+	}
+
+	/**
+	 * @param maxBytes
+	 *            the most bytes of data queued, a single larger message is still taken
+	 *            if the queue is empty
+	 * @param maxMessages
+	 *            the most messages queued
+	 * @param overflow
+	 *            what happens once either limit is reached
+	 * @param lowWatermark
+	 *            once the queued bytes fall to it, the connection is writable again
+	 * @param highWatermark
+	 *            once the queued bytes exceed it, the connection isn't writable anymore,
+	 *            until they fell to the low watermark
+	 */
+	public OutboundLimits(long maxBytes, int maxMessages, Overflow overflow, long lowWatermark, long highWatermark) {
+		if (maxBytes <= 0 || maxMessages <= 0 || lowWatermark < 0 || highWatermark < lowWatermark)
+			throw new IllegalArgumentException("Invalid limits: bytes=" + maxBytes + ", messages=" + maxMessages + ", watermarks=" + lowWatermark + "/" + highWatermark);
+		this.maxBytes = maxBytes;
+		this.maxMessages = maxMessages;
+		this.overflow = overflow;
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+	}
+
+	@Override
+	public String toString() {
+		return "OutboundLimits{bytes=" + maxBytes + ", messages=" + maxMessages + ", " + overflow + ", watermarks=" + lowWatermark + "/" + highWatermark + "}";
+	}
+}
@@ -0,0 +1,80 @@
+package com.sunflow.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits of the worker pool a context runs its async tasks on
+ */
+public class PoolSettings {
+
+	/**
+	 * What happens to a task once all threads are busy and the queue is full. Tasks are never
+	 * dropped silently, they continue I/O whose callbacks would never be called then.
+	 */
+	public enum Rejection {
+		/**
+		 * Fail the task, its error consumer gets a {@link java.util.concurrent.RejectedExecutionException}
+		 */
+		Abort,
+		/**
+		 * Run the task on the thread that submitted it
+		 */
+		CallerRuns
+	}
+
+	/**
+	 * Blocking contexts keep one thread per connection busy with reading,
+	 * so the default hands tasks directly to threads instead of queueing them
+	 */
+	public static final PoolSettings DEFAULT = new PoolSettings(Runtime.getRuntime().availableProcessors(), 1024, 0, Rejection.Abort);
+
+	public final int coreSize;
+	public final int maxSize;
+	public final int queueSize;
+	public final Rejection rejection;
+
+	/**
+	 * @param coreSize
+	 *            threads kept alive even when idle
+	 * @param maxSize
+	 *            maximum amount of threads
+	 * @param queueSize
+	 *            tasks waiting for a thread once {@code coreSize} threads are busy,
+	 *            {@code 0} hands every task directly to a thread
+	 * @param rejection
+	 *            what happens once {@code maxSize} threads are busy and the queue is full
+	 */
+	public PoolSettings(int coreSize, int maxSize, int queueSize, Rejection rejection) {
+		if (coreSize < 0 || maxSize <= 0 || maxSize < coreSize || queueSize < 0)
+			throw new IllegalArgumentException("Invalid pool size: core=" + coreSize + ", max=" + maxSize + ", queue=" + queueSize);
+		this.coreSize = coreSize;
+		this.maxSize = maxSize;
+		this.queueSize = queueSize;
+		this.rejection = rejection;
+	}
+
+	public ThreadPoolExecutor createExecutor(ThreadFactory threadFactory) {
+		BlockingQueue<Runnable> queue = queueSize == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(queueSize);
+		return new ThreadPoolExecutor(coreSize, maxSize, 60, TimeUnit.SECONDS, queue, threadFactory, rejectionHandler());
+	}
+
+	private RejectedExecutionHandler rejectionHandler() {
+		switch (rejection) {
+			case CallerRuns:
+				return new ThreadPoolExecutor.CallerRunsPolicy();
+			default:
+				return new ThreadPoolExecutor.AbortPolicy();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "PoolSettings{core=" + coreSize + ", max=" + maxSize + ", queue=" + queueSize + ", " + rejection + "}";
+	}
+}
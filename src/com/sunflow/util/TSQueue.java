@@ -1,12 +1,14 @@
 package com.sunflow.util;
 
 import java.util.ArrayDeque;
+import java.util.Collection;
 import java.util.Deque;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
-public class TSQueue<T> {
+public class TSQueue<T> implements IQueue<T> {
 	protected ReentrantLock lock = new ReentrantLock();
 	protected Deque<T> deqQueue;
 
@@ -52,6 +54,7 @@ public class TSQueue<T> {
 	 *
 	 * @return the head of this deque, or {@code null} if this deque is empty
 	 */
+	@Override
 	public T front() { return tssupplier(deqQueue::peekFirst); }
 
 	/**
@@ -105,6 +108,7 @@ public class TSQueue<T> {
 	 *             element prevents it from being added to this deque
 	 */
 
+	@Override
 	public void push_back(T item) { tsconsumer(deqQueue::offerLast, item); wake(); }
 
 	/**
@@ -112,6 +116,7 @@ public class TSQueue<T> {
 	 *
 	 * @return <tt>true</tt> if this collection contains no elements
 	 */
+	@Override
 	public boolean empty() { return tssupplier(deqQueue::isEmpty); }
 
 	/**
@@ -119,6 +124,7 @@ public class TSQueue<T> {
 	 *
 	 * @return the number of elements in this deque
 	 */
+	@Override
 	public int count() { return tssupplier(deqQueue::size); }
 
 	/**
@@ -129,6 +135,7 @@ public class TSQueue<T> {
 	 *             if the <tt>clear</tt> operation
 	 *             is not supported by this collection
 	 */
+	@Override
 	public void clear() { tsrunnable(deqQueue::clear); }
 
 	/**
@@ -137,6 +144,7 @@ public class TSQueue<T> {
 	 *
 	 * @return the head of this deque, or {@code null} if this deque is empty
 	 */
+	@Override
 	public T pop_front() { return tssupplier(deqQueue::pollFirst); }
 
 	/**
@@ -147,12 +155,37 @@ public class TSQueue<T> {
 	 */
 	public T pop_back() { return tssupplier(deqQueue::pollLast); }
 
+	/**
+	 * Removes up to {@code max} elements from the front and adds them to the collection,
+	 * in the order they were queued, taking the lock only once.
+	 *
+	 * @param c
+	 *            the collection to add the elements to
+	 * @param max
+	 *            the most elements to remove
+	 * @return the number of elements removed
+	 */
+	@Override
+	public int drainTo(Collection<? super T> c, int max) {
+		return tssupplier(() -> {
+			int count = 0;
+			T item;
+			while (count < max && (item = deqQueue.pollFirst()) != null) {
+				c.add(item);
+				count++;
+			}
+			return count;
+		});
+	}
+
+	@Override
 	public void wake() {
 		synchronized (this) {
 			notify();
 		}
 	}
 
+	@Override
 	public void sleep() {
 		synchronized (this) {
 			while (empty()) try {
@@ -162,4 +195,29 @@ public class TSQueue<T> {
 			}
 		}
 	}
+
+	/**
+	 * Sleeps until an element is added or the time is up
+	 *
+	 * @param nanos
+	 *            the most time to sleep, {@link Long#MAX_VALUE} sleeps like {@link #sleep()}
+	 * @return if an element is there
+	 */
+	@Override
+	public boolean sleep(long nanos) {
+		if (nanos == Long.MAX_VALUE) {
+			sleep();
+			return true;
+		}
+		long start = System.nanoTime();
+		synchronized (this) {
+			long left;
+			while (empty() && (left = nanos - (System.nanoTime() - start)) > 0) try {
+				TimeUnit.NANOSECONDS.timedWait(this, left);
+			} catch (InterruptedException e) {
+				Logger.error("TSQueue_sleep", "TSQueue got interrupted while waiting!", e);
+			}
+		}
+		return !empty();
+	}
 }
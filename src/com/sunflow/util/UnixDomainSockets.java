@@ -0,0 +1,126 @@
+package com.sunflow.util;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Access to unix domain socket channels (Java 16+) while still compiling against Java 8,
+ * on older runtimes {@link #isSupported()} is false
+ */
+public class UnixDomainSockets {
+
+	private static final Class<?> addressClass;
+	private static final ProtocolFamily unix;
+	private static final Method of;
+	private static final Method getPath;
+	private static final Method openSocketChannel;
+	private static final Method openServerSocketChannel;
+
+	static {
+		Class<?> a = null;
+		ProtocolFamily u = null;
+		Method o = null, p = null, s = null, ss = null;
+		try {
+			a = Class.forName("java.net.UnixDomainSocketAddress");
+			u = StandardProtocolFamily.valueOf("UNIX");
+			o = a.getMethod("of", String.class);
+			p = a.getMethod("getPath");
+			s = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+			ss = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+		} catch (ReflectiveOperationException | IllegalArgumentException ex) {
+			a = null;
+			u = null;
+			o = p = s = ss = null;
+		}
+		addressClass = a;
+		unix = u;
+		of = o;
+		getPath = p;
+		openSocketChannel = s;
+		openServerSocketChannel = ss;
+	}
+
+	public static boolean isSupported() { return addressClass != null; }
+
+	/**
+	 * @return if the endpoint is a {@code java.net.UnixDomainSocketAddress}
+	 */
+	public static boolean isUnixAddress(SocketAddress endpoint) {
+		return isSupported() && addressClass.isInstance(endpoint);
+	}
+
+	/**
+	 * @param path
+	 *            the socket file both sides meet at
+	 * @return a {@code java.net.UnixDomainSocketAddress} for the path
+	 * @throws UnsupportedOperationException
+	 *             if the runtime has no unix domain sockets
+	 */
+	public static SocketAddress address(String path) {
+		checkSupported();
+		try {
+			return (SocketAddress) of.invoke(null, path);
+		} catch (InvocationTargetException e) {
+			throw rethrow(e);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Couldn't create a unix domain socket address", e);
+		}
+	}
+
+	/**
+	 * @return an unconnected unix domain {@link SocketChannel}
+	 */
+	public static SocketChannel openSocketChannel() throws IOException {
+		checkSupported();
+		return (SocketChannel) open(openSocketChannel);
+	}
+
+	/**
+	 * @return an unbound unix domain {@link ServerSocketChannel}
+	 */
+	public static ServerSocketChannel openServerSocketChannel() throws IOException {
+		checkSupported();
+		return (ServerSocketChannel) open(openServerSocketChannel);
+	}
+
+	/**
+	 * Unlike TCP ports the socket file outlives the server,
+	 * it has to be deleted before the path can be bound again
+	 */
+	public static void deleteSocketFile(SocketAddress endpoint) throws IOException {
+		if (!isUnixAddress(endpoint)) return;
+		try {
+			Files.deleteIfExists((Path) getPath.invoke(endpoint));
+		} catch (ReflectiveOperationException e) {
+			throw new IOException("Couldn't get the path of " + endpoint, e);
+		}
+	}
+
+	private static Object open(Method open) throws IOException {
+		try {
+			return open.invoke(null, unix);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw rethrow(e);
+		} catch (ReflectiveOperationException e) {
+			throw new IOException("Couldn't open a unix domain channel", e);
+		}
+	}
+
+	private static RuntimeException rethrow(InvocationTargetException e) {
+		if (e.getCause() instanceof RuntimeException) return (RuntimeException) e.getCause();
+		return new UnsupportedOperationException(e.getCause());
+	}
+
+	private static void checkSupported() {
+		if (!isSupported()) throw new UnsupportedOperationException("Unix domain sockets need Java 16 or newer, running on " + System.getProperty("java.version"));
+	}
+}
@@ -0,0 +1,83 @@
+package com.sunflow.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads (Java 21+) while still compiling against Java 8,
+ * on older runtimes {@link #isSupported()} is false
+ */
+public class VirtualThreads {
+
+	private static final Method ofVirtual;
+	private static final Method name;
+	private static final Method factory;
+	private static final Method newThreadPerTaskExecutor;
+
+	static {
+		Method o = null, n = null, f = null, e = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			o = Thread.class.getMethod("ofVirtual");
+			n = builder.getMethod("name", String.class, long.class);
+			f = builder.getMethod("factory");
+			e = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			// Java 19 and 20 have the methods as a preview, they throw unless it's enabled
+			f.invoke(n.invoke(o.invoke(null), "probe", 0L));
+		} catch (ReflectiveOperationException | RuntimeException | LinkageError ex) {
+			o = n = f = e = null;
+		}
+		ofVirtual = o;
+		name = n;
+		factory = f;
+		newThreadPerTaskExecutor = e;
+	}
+
+	/**
+	 * @return if virtual threads can be created, the runtime was tried once when the class loaded
+	 */
+	public static boolean isSupported() { return ofVirtual != null; }
+
+	/**
+	 * @param prefix
+	 *            the threads are named prefix0, prefix1, ...
+	 * @return a factory creating virtual threads
+	 * @throws UnsupportedOperationException
+	 *             if the runtime has no virtual threads
+	 */
+	public static ThreadFactory factory(String prefix) {
+		if (!isSupported()) throw new UnsupportedOperationException("Virtual threads need Java 21 or newer, running on " + System.getProperty("java.version"));
+		try {
+			Object builder = ofVirtual.invoke(null);
+			builder = name.invoke(builder, prefix, 0L);
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Couldn't create a virtual thread factory", e);
+		}
+	}
+
+	/**
+	 * @return an executor starting a new virtual thread for every task
+	 * @throws UnsupportedOperationException
+	 *             if the runtime has no virtual threads
+	 */
+	public static ExecutorService newExecutor(String prefix) { return newExecutor(factory(prefix)); }
+
+	/**
+	 * @param threadFactory
+	 *            a factory creating virtual threads, usually wrapping {@link #factory(String)}
+	 * @return an executor starting a new thread of the factory for every task
+	 * @throws UnsupportedOperationException
+	 *             if the runtime has no virtual threads
+	 */
+	public static ExecutorService newExecutor(ThreadFactory threadFactory) {
+		if (!isSupported()) throw new UnsupportedOperationException("Virtual threads need Java 21 or newer, running on " + System.getProperty("java.version"));
+		try {
+			return (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Couldn't create a virtual thread executor", e);
+		}
+	}
+}
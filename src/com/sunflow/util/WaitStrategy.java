@@ -0,0 +1,77 @@
+package com.sunflow.util;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How the thread calling {@link com.sunflow.common.Interface#update(java.time.Duration) update}
+ * waits for messages while its queue is empty. Spinning notices a message soonest but keeps
+ * a CPU core busy, blocking costs nothing while idle but has to be woken by the thread adding.
+ *
+ * @author SunFlow
+ */
+@FunctionalInterface
+public interface WaitStrategy {
+
+	/**
+	 * Spins until an element is there, the lowest latency at the cost of a whole core
+	 */
+	WaitStrategy BUSY_SPIN = (queue, nanos) -> {
+		long start = System.nanoTime();
+		while (queue.empty()) if (System.nanoTime() - start >= nanos) return false;
+		return true;
+	};
+
+	/**
+	 * Sleeps on the queue until an element is added, as {@link IQueue#sleep()} does
+	 */
+	WaitStrategy BLOCKING = (queue, nanos) -> queue.sleep(nanos);
+
+	/**
+	 * Spins a while, then gives way to other threads between looking at the queue
+	 *
+	 * @param spins
+	 *            how often the queue is looked at before yielding
+	 */
+	static WaitStrategy spinThenYield(int spins) {
+		return (queue, nanos) -> {
+			long start = System.nanoTime();
+			for (int i = 0; queue.empty(); i++) {
+				if (System.nanoTime() - start >= nanos) return false;
+				if (i >= spins) Thread.yield();
+			}
+			return true;
+		};
+	}
+
+	/**
+	 * Spins a while, then parks between looking at the queue. Nobody has to wake the thread,
+	 * the park time bounds how late an element is noticed.
+	 *
+	 * @param spins
+	 *            how often the queue is looked at before parking
+	 * @param parkNanos
+	 *            how long the thread is parked at a time
+	 */
+	static WaitStrategy spinThenPark(int spins, long parkNanos) {
+		return (queue, nanos) -> {
+			long start = System.nanoTime();
+			for (int i = 0; queue.empty(); i++) {
+				long elapsed = System.nanoTime() - start;
+				if (elapsed >= nanos) return false;
+				if (i >= spins) LockSupport.parkNanos(Math.min(parkNanos, nanos - elapsed));
+			}
+			return true;
+		};
+	}
+
+	/**
+	 * Waits until the queue has an element or the time is up
+	 *
+	 * @param queue
+	 *            the queue to wait on
+	 * @param nanos
+	 *            the most time to wait, {@link Long#MAX_VALUE} waits for good
+	 * @return if the queue has an element
+	 */
+	boolean await(IQueue<?> queue, long nanos);
+}